@@ -0,0 +1,279 @@
+package apps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values of an array symbol. Elements that were never set read as zero. The
+ * representation is picked from the declared size and the number of elements
+ * actually set: a plain int[] in the common case, an open-addressing map when
+ * few elements are set, and a direct buffer outside the heap when a dense array
+ * is very large. Every representation reads an element in constant time.
+ * Arrays backed by a SymbolProvider fetch each element on first read instead.
+ */
+public abstract class ArrayStorage {
+
+    /**
+     * Use a sparse map when fewer than one element in this many is set
+     */
+    static final int SPARSE_RATIO = 4;
+
+    /**
+     * Dense arrays with at least this many elements are kept off the heap
+     */
+    static final int OFF_HEAP_LENGTH = 1 << 24;
+
+    /**
+     * Declared size
+     */
+    final int length;
+
+    ArrayStorage(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Returns one element
+     *
+     * @param index Index of the element
+     * @return Value, zero if never set
+     * @throws ArrayIndexOutOfBoundsException If index is not within the declared size
+     */
+    public abstract int get(int index);
+
+    /**
+     * Sets one element
+     *
+     * @param index Index of the element
+     * @param value Value
+     * @throws ArrayIndexOutOfBoundsException If index is not within the declared size
+     */
+    public abstract void set(int index, int value);
+
+    /**
+     * @return Declared size
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the backing int[] of a heap-allocated dense array
+     *
+     * @return Values, or null if this array is not stored as an int[]
+     */
+    public int[] dense() {
+        return null;
+    }
+
+    /**
+     * Wraps an existing int[] without copying it
+     *
+     * @param values Values
+     * @return Storage backed by values
+     */
+    public static ArrayStorage of(int[] values) {
+        return new Dense(values);
+    }
+
+    /**
+     * Creates storage for an array of the given size with the given elements set,
+     * choosing the representation from how many are set
+     *
+     * @param length Declared size
+     * @param indices Indices of the elements that are set
+     * @param values Values of the elements that are set
+     * @param count Number of entries used in indices and values
+     * @return Storage
+     * @throws ArrayIndexOutOfBoundsException If an index is not within length
+     */
+    public static ArrayStorage create(int length, int[] indices, int[] values, int count) {
+        ArrayStorage storage;
+        if ((long)count * SPARSE_RATIO < length) {
+            storage = new Sparse(length, count);
+        } else if (length >= OFF_HEAP_LENGTH && length <= Integer.MAX_VALUE / 4) {
+            storage = new OffHeap(length);
+        } else {
+            storage = new Dense(new int[length]);
+        }
+        for (int i = 0; i < count; i++) {
+            storage.set(indices[i], values[i]);
+        }
+        return storage;
+    }
+
+    static ArrayIndexOutOfBoundsException outOfBounds(int index, int length) {
+        return new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+    }
+
+    /**
+     * Plain int[] on the heap
+     */
+    static final class Dense extends ArrayStorage {
+        final int[] values;
+
+        Dense(int[] values) {
+            super(values.length);
+            this.values = values;
+        }
+
+        public int get(int index) {
+            return values[index];
+        }
+
+        public void set(int index, int value) {
+            values[index] = value;
+        }
+
+        public int[] dense() {
+            return values;
+        }
+    }
+
+    /**
+     * Open-addressing hash map from index to value with linear probing. Empty
+     * slots hold key -1.
+     */
+    static final class Sparse extends ArrayStorage {
+        private int[] keys;
+        private int[] vals;
+        private int size;
+
+        Sparse(int length, int expected) {
+            super(length);
+            int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) * 2;
+            keys = new int[capacity];
+            vals = new int[capacity];
+            Arrays.fill(keys, -1);
+        }
+
+        private static int hash(int index) {
+            int h = index * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        public int get(int index) {
+            if (index < 0 || index >= length) {
+                throw outOfBounds(index, length);
+            }
+            int mask = keys.length - 1;
+            for (int i = hash(index) & mask; ; i = (i + 1) & mask) {
+                int key = keys[i];
+                if (key == index) {
+                    return vals[i];
+                }
+                if (key == -1) {
+                    return 0;
+                }
+            }
+        }
+
+        public void set(int index, int value) {
+            if (index < 0 || index >= length) {
+                throw outOfBounds(index, length);
+            }
+            int mask = keys.length - 1;
+            int i = hash(index) & mask;
+            while (keys[i] != -1 && keys[i] != index) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == -1) {
+                keys[i] = index;
+                size++;
+            }
+            vals[i] = value;
+            if (size * 2 > keys.length) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldVals = vals;
+            keys = new int[oldKeys.length * 2];
+            vals = new int[oldKeys.length * 2];
+            Arrays.fill(keys, -1);
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != -1) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != -1) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    vals[i] = oldVals[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Direct buffer outside the Java heap, so a very large array adds nothing to
+     * the work of the garbage collector
+     */
+    static final class OffHeap extends ArrayStorage {
+        private final ByteBuffer buffer;
+
+        OffHeap(int length) {
+            super(length);
+            buffer = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder());
+        }
+
+        public int get(int index) {
+            if (index < 0 || index >= length) {
+                throw outOfBounds(index, length);
+            }
+            return buffer.getInt(index << 2);
+        }
+
+        public void set(int index, int value) {
+            if (index < 0 || index >= length) {
+                throw outOfBounds(index, length);
+            }
+            buffer.putInt(index << 2, value);
+        }
+    }
+
+    /**
+     * Array whose elements are fetched from a SymbolProvider the first time
+     * they are read, and then kept in a cache of bounded size for the rest of
+     * the evaluation. When the cache is full the least recently read element
+     * is dropped, and is fetched again if it is read again. Elements cannot be
+     * set.
+     */
+    static final class Provided extends ArrayStorage {
+        private final SymbolProvider provider;
+        private final String name;
+        private final LinkedHashMap<Integer,Integer> cache;
+
+        Provided(SymbolProvider provider, String name, int cacheSize) {
+            super(provider.arrayLength(name));
+            this.provider = provider;
+            this.name = name;
+            cache = new LinkedHashMap<Integer,Integer>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Integer,Integer> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        public int get(int index) {
+            if (index < 0 || index >= length) {
+                throw outOfBounds(index, length);
+            }
+            Integer value = cache.get(index);
+            if (value == null) {
+                value = provider.element(name, index);
+                cache.put(index, value);
+            }
+            return value;
+        }
+
+        public void set(int index, int value) {
+            throw new UnsupportedOperationException("array " + name + " is read from a symbol provider");
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package apps;
+
+/**
+ * A (name, array of integer values) pair for an array variable. The name is a
+ * sequence of one or more letters.
+ */
+public class ArraySymbol {
+
+    /**
+     * Name, sequence of letters
+     */
+    public String name;
+
+    /**
+     * Array of integer values
+     */
+    public int[] values;
+
+    /**
+     * Initializes this symbol with the given name and a null array of values
+     *
+     * @param name Variable name
+     */
+    public ArraySymbol(String name) {
+        this.name = name;
+        values = null;
+    }
+
+    public String toString() {
+        if (values == null || values.length == 0) {
+            return name + "=[ ]";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(name);
+        sb.append("=[");
+        sb.append(values[0]);
+        for (int i = 1; i < values.length; i++) {
+            sb.append(',');
+            sb.append(values[i]);
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    /**
+     * Symbols are equal if they have the same name
+     */
+    public boolean equals(Object o) {
+        if (o == null || !(o instanceof ArraySymbol)) {
+            return false;
+        }
+        ArraySymbol as = (ArraySymbol)o;
+        return name.equals(as.name);
+    }
+
+    public int hashCode() {
+        return name.hashCode();
+    }
+}
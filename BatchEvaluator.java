@@ -0,0 +1,428 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates an expression tree over many rows of scalar values at once. The
+ * rows are processed in fixed-size chunks, and each node is applied to a whole
+ * chunk in one simple loop, which the JIT can unroll and vectorize. Every row
+ * goes through exactly the same operations as a single evaluation, so the
+ * results are identical. In typed arithmetic integral subtrees are computed in
+ * long buffers and real ones in double buffers.
+ * <p>
+ * Element-wise evaluation of an expression over whole arrays uses the same
+ * loops, with row r standing for element r: a whole-array reference A[] reads
+ * A[r], and scalars have the same value in every row. Large element ranges are
+ * split into chunks computed in parallel with fork/join.
+ */
+class BatchEvaluator {
+
+    /**
+     * Rows per chunk. Small enough that the working buffers stay in cache.
+     */
+    static final int CHUNK = 512;
+
+    /**
+     * Fewest elements worth handing to a separate fork/join task
+     */
+    static final int PARALLEL_GRAIN = 64 * CHUNK;
+
+    /**
+     * Scalar values, by slot and then row, or null if every row has the same
+     * scalar values
+     */
+    private final int[][] columns;
+
+    /**
+     * Scalar values shared by all rows, by slot, when there are no columns
+     */
+    private final int[] scalars;
+
+    /**
+     * Array values, by slot, shared by all rows
+     */
+    private final ArrayStorage[] arrays;
+
+    /**
+     * Scratch buffers, one per level of the tree
+     */
+    private final ArrayList<float[]> buffers = new ArrayList<float[]>();
+    private final ArrayList<long[]> longBuffers = new ArrayList<long[]>();
+    private final ArrayList<double[]> doubleBuffers = new ArrayList<double[]>();
+
+    /**
+     * First row of the current chunk
+     */
+    private int from;
+
+    /**
+     * Rows in the current chunk
+     */
+    private int length;
+
+    private BatchEvaluator(int[][] columns, int[] scalars, ArrayStorage[] arrays) {
+        this.columns = columns;
+        this.scalars = scalars;
+        this.arrays = arrays;
+    }
+
+    /**
+     * Evaluates a tree for every row
+     *
+     * @param root Root of the tree
+     * @param columns Scalar values, by slot and then row
+     * @param arrays Array values, by slot
+     * @param out Receives one result per row; its length is the number of rows
+     * @param typed True for typed arithmetic, with each result rounded to float,
+     *        false for float arithmetic
+     */
+    static void evaluate(Node root, int[][] columns, ArrayStorage[] arrays, float[] out,
+            boolean typed) {
+        new BatchEvaluator(columns, null, arrays).run(root, typed, 0, out.length, out, null, null);
+    }
+
+    /**
+     * Evaluates a tree element-wise: element i of the result is the value of
+     * the tree with every whole-array reference A[] read as A[i]. Exactly one of
+     * the outputs is non-null, and its length is the number of elements.
+     *
+     * @param root Root of the tree
+     * @param b Symbol values, only read. Bindings with a provider cache what
+     *        they fetch, so they are evaluated on the calling thread alone.
+     * @param typed True for typed arithmetic, false for float
+     * @param out Receives float results, rounded from typed ones, or null
+     * @param outDouble Receives double results, widened from float ones, or null
+     * @param outLong Receives exact results of an integral tree in typed
+     *        arithmetic, or null
+     */
+    static void evaluateElements(Node root, Bindings b, boolean typed, float[] out,
+            double[] outDouble, long[] outLong) {
+        int n = out != null ? out.length : outDouble != null ? outDouble.length : outLong.length;
+        Elements task = new Elements(root, b, typed, out, outDouble, outLong, 0, n);
+        if (n < 2 * PARALLEL_GRAIN || ForkJoinPool.getCommonPoolParallelism() < 2 || b.provided()) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /**
+     * Element-wise evaluation of a range of elements, split in halves on chunk
+     * boundaries until the pieces are small enough to compute directly
+     */
+    private static final class Elements extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node root;
+        private final Bindings b;
+        private final boolean typed;
+        private final float[] out;
+        private final double[] outDouble;
+        private final long[] outLong;
+        private final int from;
+        private final int to;
+
+        Elements(Node root, Bindings b, boolean typed, float[] out, double[] outDouble,
+                long[] outLong, int from, int to) {
+            this.root = root;
+            this.b = b;
+            this.typed = typed;
+            this.out = out;
+            this.outDouble = outDouble;
+            this.outLong = outLong;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from < 2 * PARALLEL_GRAIN) {
+                new BatchEvaluator(null, b.scalars, b.storage)
+                    .run(root, typed, from, to, out, outDouble, outLong);
+                return;
+            }
+            int middle = from + (to - from) / 2 / CHUNK * CHUNK;
+            invokeAll(new Elements(root, b, typed, out, outDouble, outLong, from, middle),
+                new Elements(root, b, typed, out, outDouble, outLong, middle, to));
+        }
+    }
+
+    /**
+     * Evaluates rows start to end - 1 chunk by chunk into whichever output is
+     * non-null
+     */
+    private void run(Node root, boolean typed, int start, int end, float[] out,
+            double[] outDouble, long[] outLong) {
+        float[] result = !typed ? new float[CHUNK] : null;
+        double[] real = typed && outLong == null ? new double[CHUNK] : null;
+        long[] exact = outLong != null ? new long[CHUNK] : null;
+        for (from = start; from < end; from += CHUNK) {
+            length = Math.min(CHUNK, end - from);
+            if (exact != null) {
+                evaluateLong(root, exact, 0);
+                System.arraycopy(exact, 0, outLong, from, length);
+            } else if (typed) {
+                evaluateDouble(root, real, 0);
+                if (outDouble != null) {
+                    System.arraycopy(real, 0, outDouble, from, length);
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        out[from + i] = (float)real[i];
+                    }
+                }
+            } else {
+                evaluate(root, result, 0);
+                if (out != null) {
+                    System.arraycopy(result, 0, out, from, length);
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        outDouble[from + i] = result[i];
+                    }
+                }
+            }
+        }
+    }
+
+    private float[] buffer(int level) {
+        while (buffers.size() <= level) {
+            buffers.add(new float[CHUNK]);
+        }
+        return buffers.get(level);
+    }
+
+    private long[] longBuffer(int level) {
+        while (longBuffers.size() <= level) {
+            longBuffers.add(new long[CHUNK]);
+        }
+        return longBuffers.get(level);
+    }
+
+    private double[] doubleBuffer(int level) {
+        while (doubleBuffers.size() <= level) {
+            doubleBuffers.add(new double[CHUNK]);
+        }
+        return doubleBuffers.get(level);
+    }
+
+    /**
+     * Evaluates a subtree for the current chunk into dst
+     */
+    private void evaluate(Node node, float[] dst, int level) {
+        int n = length;
+        if (node instanceof Node.Constant) {
+            float value = ((Node.Constant)node).value;
+            for (int i = 0; i < n; i++) {
+                dst[i] = value;
+            }
+        } else if (node instanceof Node.Scalar) {
+            int slot = ((Node.Scalar)node).slot;
+            if (columns == null) {
+                float value = scalars[slot];
+                for (int i = 0; i < n; i++) {
+                    dst[i] = value;
+                }
+                return;
+            }
+            int[] column = columns[slot];
+            int base = from;
+            for (int i = 0; i < n; i++) {
+                dst[i] = column[base + i];
+            }
+        } else if (node instanceof Node.Index) {
+            int base = from;
+            for (int i = 0; i < n; i++) {
+                dst[i] = base + i;
+            }
+        } else if (node instanceof Node.Element) {
+            Node.Element element = (Node.Element)node;
+            ArrayStorage storage = arrays[element.slot];
+            int[] values = storage.dense();
+            if (element.subscript instanceof Node.Index) {
+                int base = from;
+                for (int i = 0; i < n; i++) {
+                    dst[i] = values != null ? values[base + i] : storage.get(base + i);
+                }
+                return;
+            }
+            evaluate(element.subscript, dst, level);
+            if (values != null) {
+                for (int i = 0; i < n; i++) {
+                    dst[i] = values[(int)Math.floor(dst[i])];
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    dst[i] = storage.get((int)Math.floor(dst[i]));
+                }
+            }
+        } else if (node instanceof Node.Negate) {
+            evaluate(((Node.Negate)node).operand, dst, level);
+            for (int i = 0; i < n; i++) {
+                dst[i] = -dst[i];
+            }
+        } else {
+            Node.Binary binary = (Node.Binary)node;
+            float[] right = buffer(level);
+            evaluate(binary.left, dst, level);
+            evaluate(binary.right, right, level + 1);
+            switch (binary.op) {
+                case '+':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] += right[i];
+                    }
+                    break;
+                case '-':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] -= right[i];
+                    }
+                    break;
+                case '*':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] *= right[i];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        dst[i] /= right[i];
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Evaluates an integral subtree for the current chunk into dst, in long
+     * arithmetic. Uses only the buffers of the given level and deeper.
+     */
+    private void evaluateLong(Node node, long[] dst, int level) {
+        int n = length;
+        if (node instanceof Node.Constant) {
+            long value = ((Node.Constant)node).exact;
+            for (int i = 0; i < n; i++) {
+                dst[i] = value;
+            }
+        } else if (node instanceof Node.Scalar) {
+            int slot = ((Node.Scalar)node).slot;
+            if (columns == null) {
+                long value = scalars[slot];
+                for (int i = 0; i < n; i++) {
+                    dst[i] = value;
+                }
+                return;
+            }
+            int[] column = columns[slot];
+            int base = from;
+            for (int i = 0; i < n; i++) {
+                dst[i] = column[base + i];
+            }
+        } else if (node instanceof Node.Index) {
+            int base = from;
+            for (int i = 0; i < n; i++) {
+                dst[i] = base + i;
+            }
+        } else if (node instanceof Node.Element) {
+            Node.Element element = (Node.Element)node;
+            ArrayStorage storage = arrays[element.slot];
+            int[] values = storage.dense();
+            if (element.subscript instanceof Node.Index) {
+                int base = from;
+                for (int i = 0; i < n; i++) {
+                    dst[i] = values != null ? values[base + i] : storage.get(base + i);
+                }
+            } else if (element.subscript.integral()) {
+                evaluateLong(element.subscript, dst, level + 1);
+                for (int i = 0; i < n; i++) {
+                    int k = Node.index(dst[i]);
+                    dst[i] = values != null ? values[k] : storage.get(k);
+                }
+            } else {
+                double[] subscript = doubleBuffer(level);
+                evaluateDouble(element.subscript, subscript, level + 1);
+                for (int i = 0; i < n; i++) {
+                    int k = (int)Math.floor(subscript[i]);
+                    dst[i] = values != null ? values[k] : storage.get(k);
+                }
+            }
+        } else if (node instanceof Node.Negate) {
+            evaluateLong(((Node.Negate)node).operand, dst, level + 1);
+            for (int i = 0; i < n; i++) {
+                dst[i] = -dst[i];
+            }
+        } else {
+            Node.Binary binary = (Node.Binary)node;
+            long[] right = longBuffer(level);
+            evaluateLong(binary.left, dst, level + 1);
+            evaluateLong(binary.right, right, level + 1);
+            switch (binary.op) {
+                case '+':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] += right[i];
+                    }
+                    break;
+                case '-':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] -= right[i];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        dst[i] *= right[i];
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Evaluates a subtree for the current chunk into dst, in typed arithmetic.
+     * An integral subtree is computed in long and then converted. Uses only the
+     * buffers of the given level and deeper.
+     */
+    private void evaluateDouble(Node node, double[] dst, int level) {
+        int n = length;
+        if (node.integral()) {
+            long[] exact = longBuffer(level);
+            evaluateLong(node, exact, level + 1);
+            for (int i = 0; i < n; i++) {
+                dst[i] = exact[i];
+            }
+        } else if (node instanceof Node.Constant) {
+            double value = ((Node.Constant)node).real;
+            for (int i = 0; i < n; i++) {
+                dst[i] = value;
+            }
+        } else if (node instanceof Node.Negate) {
+            evaluateDouble(((Node.Negate)node).operand, dst, level + 1);
+            for (int i = 0; i < n; i++) {
+                dst[i] = -dst[i];
+            }
+        } else {
+            Node.Binary binary = (Node.Binary)node;
+            double[] right = doubleBuffer(level);
+            evaluateDouble(binary.left, dst, level + 1);
+            evaluateDouble(binary.right, right, level + 1);
+            switch (binary.op) {
+                case '+':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] += right[i];
+                    }
+                    break;
+                case '-':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] -= right[i];
+                    }
+                    break;
+                case '*':
+                    for (int i = 0; i < n; i++) {
+                        dst[i] *= right[i];
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < n; i++) {
+                        dst[i] /= right[i];
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package apps;
+
+import java.util.Arrays;
+
+/**
+ * Symbol values for one evaluation of a compiled expression. Values are held in
+ * primitive arrays indexed by the slots assigned when the expression was compiled.
+ * Bindings also carry the scratch space evaluation works in, so one Bindings
+ * object must not be used by two threads at once.
+ * <p>
+ * Bindings created with a SymbolProvider start out empty and fetch each scalar
+ * the first time it is read, and each array element the first time that
+ * element is read. What is fetched is kept until reset() is called, so the
+ * bindings act as a cache for one evaluation, or for as many as run between
+ * resets. Since every read may fill that cache, such bindings must not be
+ * shared across threads, not even by evaluations that only read; each thread
+ * takes its own copy().
+ */
+public class Bindings {
+
+    /**
+     * Most elements of each provided array kept at once, unless another size
+     * is given
+     */
+    public static final int DEFAULT_ELEMENT_CACHE_SIZE = 1024;
+
+    /**
+     * Scalar values, by slot
+     */
+    final int[] scalars;
+
+    /**
+     * Array values, by slot
+     */
+    final ArrayStorage[] storage;
+
+    /**
+     * Backing int[] of each array stored densely on the heap, null for other
+     * arrays. Kept alongside storage so the common case reads an int[] directly.
+     */
+    final int[][] arrays;
+
+    /**
+     * Operand stacks for postfix evaluation, reused from one evaluation to the
+     * next: one for float arithmetic, and one each for the integral and real
+     * values of typed arithmetic
+     */
+    private float[] stack;
+    private long[] longStack;
+    private double[] doubleStack;
+
+    /**
+     * Source of values not yet fetched, or null if all values are set directly
+     */
+    private final SymbolProvider provider;
+
+    /**
+     * Names of the symbols, by slot, for asking the provider
+     */
+    private final String[] scalarNames;
+    private final String[] arrayNames;
+
+    /**
+     * Whether each scalar has been fetched or set since the last reset
+     */
+    private final boolean[] present;
+
+    /**
+     * Most elements of each provided array kept at once
+     */
+    private final int elementCacheSize;
+
+    /**
+     * Initializes bindings with room for the given number of scalar and array slots.
+     * All scalars are zero and all arrays are null.
+     *
+     * @param scalarCount Number of scalar slots
+     * @param arrayCount Number of array slots
+     */
+    public Bindings(int scalarCount, int arrayCount) {
+        scalars = new int[scalarCount];
+        storage = new ArrayStorage[arrayCount];
+        arrays = new int[arrayCount][];
+        provider = null;
+        scalarNames = null;
+        arrayNames = null;
+        present = null;
+        elementCacheSize = 0;
+    }
+
+    /**
+     * Initializes bindings that fetch values from a provider as they are read
+     *
+     * @param scalarNames Names of the scalars, by slot
+     * @param arrayNames Names of the arrays, by slot
+     * @param provider Source of values
+     * @param elementCacheSize Most elements of each array kept at once
+     */
+    Bindings(String[] scalarNames, String[] arrayNames, SymbolProvider provider, int elementCacheSize) {
+        if (elementCacheSize < 1) {
+            throw new IllegalArgumentException("element cache size must be positive: " + elementCacheSize);
+        }
+        scalars = new int[scalarNames.length];
+        storage = new ArrayStorage[arrayNames.length];
+        arrays = new int[arrayNames.length][];
+        this.provider = provider;
+        this.scalarNames = scalarNames;
+        this.arrayNames = arrayNames;
+        present = new boolean[scalarNames.length];
+        this.elementCacheSize = elementCacheSize;
+    }
+
+    /**
+     * Creates a copy for use by another thread. Scalar values are copied; array
+     * values are shared, since evaluation only reads them. A copy of bindings
+     * with a provider uses the same provider and starts out empty.
+     *
+     * @return New bindings with the same values
+     */
+    public Bindings copy() {
+        if (provider != null) {
+            return new Bindings(scalarNames, arrayNames, provider, elementCacheSize);
+        }
+        Bindings b = new Bindings(scalars.length, arrays.length);
+        System.arraycopy(scalars, 0, b.scalars, 0, scalars.length);
+        System.arraycopy(storage, 0, b.storage, 0, storage.length);
+        System.arraycopy(arrays, 0, b.arrays, 0, arrays.length);
+        return b;
+    }
+
+    /**
+     * Sets the value of a scalar symbol
+     *
+     * @param slot Slot of the scalar, see CompiledExpression.scalarSlot
+     * @param value Value
+     */
+    public void setScalar(int slot, int value) {
+        scalars[slot] = value;
+        if (present != null) {
+            present[slot] = true;
+        }
+    }
+
+    /**
+     * Sets the values of an array symbol. The array is used as is, not copied.
+     *
+     * @param slot Slot of the array, see CompiledExpression.arraySlot
+     * @param values Values
+     */
+    public void setArray(int slot, int[] values) {
+        storage[slot] = values == null ? null : ArrayStorage.of(values);
+        arrays[slot] = values;
+    }
+
+    /**
+     * Sets the values of an array symbol
+     *
+     * @param slot Slot of the array, see CompiledExpression.arraySlot
+     * @param values Values
+     */
+    public void setArray(int slot, ArrayStorage values) {
+        storage[slot] = values;
+        arrays[slot] = values == null ? null : values.dense();
+    }
+
+    /**
+     * Sets one element of an array symbol. The storage is written in place, so
+     * copies made with copy(), which share it, see the change too.
+     *
+     * @param slot Slot of the array
+     * @param index Index of the element
+     * @param value Value
+     * @throws UnsupportedOperationException If the array is fetched from a
+     *         provider
+     */
+    public void setElement(int slot, int index, int value) {
+        array(slot).set(index, value);
+    }
+
+    /**
+     * Returns the values of an array symbol
+     *
+     * @param slot Slot of the array
+     * @return Values, or null if not set
+     */
+    public ArrayStorage array(int slot) {
+        if (storage[slot] == null && provider != null) {
+            return fetchArray(slot);
+        }
+        return storage[slot];
+    }
+
+    /**
+     * Returns the value of a scalar symbol
+     *
+     * @param slot Slot of the scalar
+     * @return Value
+     */
+    public int scalar(int slot) {
+        if (provider != null && !present[slot]) {
+            fetchScalar(slot);
+        }
+        return scalars[slot];
+    }
+
+    /**
+     * Returns one element of an array symbol
+     *
+     * @param slot Slot of the array
+     * @param index Index of the element
+     * @return Value of the element
+     */
+    public int element(int slot, int index) {
+        int[] dense = arrays[slot];
+        if (dense != null) {
+            return dense[index];
+        }
+        ArrayStorage values = storage[slot];
+        if (values == null && provider != null) {
+            values = fetchArray(slot);
+        }
+        return values.get(index);
+    }
+
+    /**
+     * @return True if values are fetched from a SymbolProvider
+     */
+    public boolean provided() {
+        return provider != null;
+    }
+
+    /**
+     * Forgets every value fetched from the provider, and every value set
+     * directly, so that the next evaluation fetches them again. Does nothing
+     * for bindings without a provider.
+     */
+    public void reset() {
+        if (provider == null) {
+            return;
+        }
+        Arrays.fill(present, false);
+        Arrays.fill(storage, null);
+        Arrays.fill(arrays, null);
+    }
+
+    /**
+     * Fetches every scalar not yet present, for evaluation paths that read the
+     * scalars directly
+     */
+    void fetchScalars() {
+        for (int slot = 0; provider != null && slot < scalars.length; slot++) {
+            if (!present[slot]) {
+                fetchScalar(slot);
+            }
+        }
+    }
+
+    /**
+     * Sets up every array not yet present, for evaluation paths that read the
+     * array storage directly. Elements are still fetched as they are read.
+     */
+    void fetchArrays() {
+        for (int slot = 0; provider != null && slot < storage.length; slot++) {
+            if (storage[slot] == null) {
+                fetchArray(slot);
+            }
+        }
+    }
+
+    private void fetchScalar(int slot) {
+        scalars[slot] = provider.scalar(scalarNames[slot]);
+        present[slot] = true;
+    }
+
+    private ArrayStorage fetchArray(int slot) {
+        storage[slot] = new ArrayStorage.Provided(provider, arrayNames[slot], elementCacheSize);
+        return storage[slot];
+    }
+
+    /**
+     * Returns the operand stack, growing it if it is smaller than size
+     *
+     * @param size Required depth
+     * @return Stack
+     */
+    float[] stack(int size) {
+        if (stack == null || stack.length < size) {
+            stack = new float[size];
+        }
+        return stack;
+    }
+
+    /**
+     * Returns the stack of integral values, growing it if it is smaller than size
+     *
+     * @param size Required depth
+     * @return Stack
+     */
+    long[] longStack(int size) {
+        if (longStack == null || longStack.length < size) {
+            longStack = new long[size];
+        }
+        return longStack;
+    }
+
+    /**
+     * Returns the stack of real values, growing it if it is smaller than size
+     *
+     * @param size Required depth
+     * @return Stack
+     */
+    double[] doubleStack(int size) {
+        if (doubleStack == null || doubleStack.length < size) {
+            doubleStack = new double[size];
+        }
+        return doubleStack;
+    }
+}
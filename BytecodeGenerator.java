@@ -0,0 +1,512 @@
+package apps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Turns an expression tree into a hidden class whose single method computes the
+ * whole expression in straight-line bytecode, so the JIT can inline and
+ * register-allocate it like hand-written code. The arithmetic is the same as in
+ * the interpreter, float or typed, so both backends give identical results. In
+ * typed arithmetic integral subtrees use the JVM's long instructions and real
+ * ones its double instructions.
+ */
+class BytecodeGenerator {
+
+    /**
+     * Interface implemented by every generated class. A class generated for
+     * float arithmetic implements only evaluate. One generated for typed
+     * arithmetic implements evaluateLong if its result is integral and
+     * evaluateDouble if not, and the methods above it are derived from that.
+     */
+    interface Kernel {
+        default float evaluate(int[] scalars, Bindings b) {
+            return (float)evaluateDouble(scalars, b);
+        }
+
+        default double evaluateDouble(int[] scalars, Bindings b) {
+            return evaluateLong(scalars, b);
+        }
+
+        default long evaluateLong(int[] scalars, Bindings b) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Largest method body the JVM accepts
+     */
+    private static final int MAX_CODE = 65535;
+
+    private static final String CLASS_NAME = "apps/BytecodeGenerator$Generated";
+    private static final String KERNEL_NAME = "apps/BytecodeGenerator$Kernel";
+
+    /**
+     * Constant pool, in class file form
+     */
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String,Integer> poolIndex = new HashMap<String,Integer>();
+    private int poolCount = 1;
+
+    /**
+     * Body of the evaluate method
+     */
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    /**
+     * Number of parents of each node
+     */
+    private final IdentityHashMap<Node,Integer> uses;
+
+    /**
+     * Local variable holding each shared node that has been emitted
+     */
+    private final IdentityHashMap<Node,Integer> locals = new IdentityHashMap<Node,Integer>();
+
+    /**
+     * First local free for temporaries, after this, scalars and arrays
+     */
+    private static final int FIRST_LOCAL = 3;
+
+    /**
+     * Next free local; longs and doubles take two
+     */
+    private int nextLocal = FIRST_LOCAL;
+
+    /**
+     * Whether code is generated for typed arithmetic rather than float
+     */
+    private final boolean typed;
+
+    private BytecodeGenerator(Node root, boolean typed) {
+        uses = Optimizer.useCounts(root);
+        this.typed = typed;
+    }
+
+    /**
+     * Generates and loads a kernel for an expression tree
+     *
+     * @param root Root of the tree
+     * @param typed True for typed arithmetic, false for float
+     * @return Instance of the generated class
+     * @throws ReflectiveOperationException If the class cannot be defined
+     * @throws IllegalStateException If the expression is too large for one method
+     */
+    static Kernel generate(Node root, boolean typed) throws ReflectiveOperationException {
+        byte[] bytes;
+        try {
+            bytes = new BytecodeGenerator(root, typed).classBytes(root);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        Class<?> generated = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+        return (Kernel)generated.getDeclaredConstructor().newInstance();
+    }
+
+    private byte[] classBytes(Node root) throws IOException {
+        String method = "evaluate";
+        String type = "([ILapps/Bindings;)F";
+        if (typed && root.integral()) {
+            emitTyped(root);
+            code.write(0xad); // lreturn
+            method = "evaluateLong";
+            type = "([ILapps/Bindings;)J";
+        } else if (typed) {
+            emitTyped(root);
+            code.write(0xaf); // dreturn
+            method = "evaluateDouble";
+            type = "([ILapps/Bindings;)D";
+        } else {
+            emit(root);
+            code.write(0xae); // freturn
+        }
+        if (code.size() > MAX_CODE) {
+            throw new IllegalStateException("expression too large for one method: "
+                + code.size() + " bytes of code");
+        }
+
+        int thisClass = classRef(CLASS_NAME);
+        int superClass = classRef("java/lang/Object");
+        int kernel = classRef(KERNEL_NAME);
+        int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int evalName = utf8(method);
+        int evalType = utf8(type);
+        int codeName = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(poolCount);
+        pool.writeTo(out);
+        out.writeShort(0x0010 | 0x0020); // final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(kernel);
+        out.writeShort(0); // no fields
+        out.writeShort(2);
+
+        // constructor: aload_0, invokespecial Object.<init>, return
+        out.writeShort(0x0001);
+        out.writeShort(initName);
+        out.writeShort(initType);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + 5);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeInt(5);
+        out.writeByte(0x2a);
+        out.writeByte(0xb7);
+        out.writeShort(objectInit);
+        out.writeByte(0xb1);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        out.writeShort(0x0001);
+        out.writeShort(evalName);
+        out.writeShort(evalType);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.size());
+        out.writeShort(maxDepth);
+        out.writeShort(nextLocal);
+        out.writeInt(code.size());
+        code.writeTo(out);
+        out.writeShort(0);
+        out.writeShort(0);
+
+        out.writeShort(0); // no class attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Emits code that leaves the float value of a subtree on the operand stack.
+     * A node with several parents is computed once and kept in a local variable.
+     */
+    private void emit(Node node) throws IOException {
+        Integer local = locals.get(node);
+        if (local != null) {
+            local(0x17, local, 1); // fload
+            return;
+        }
+        emitNode(node);
+        if (shared(node)) {
+            local = nextLocal++;
+            locals.put(node, local);
+            op(0x59, 1); // dup
+            local(0x38, local, -1); // fstore
+        }
+    }
+
+    private boolean shared(Node node) {
+        return uses.get(node) > 1 && !(node instanceof Node.Constant) && !(node instanceof Node.Scalar);
+    }
+
+    private void emitNode(Node node) throws IOException {
+        if (node instanceof Node.Constant) {
+            float value = ((Node.Constant)node).value;
+            if (Float.floatToRawIntBits(value) == 0) {
+                op(0x0b, 1); // fconst_0
+            } else if (value == 1f) {
+                op(0x0c, 1);
+            } else if (value == 2f) {
+                op(0x0d, 1);
+            } else {
+                ldc(floatConst(value));
+            }
+        } else if (node instanceof Node.Scalar) {
+            op(0x2b, 1); // aload_1
+            pushInt(((Node.Scalar)node).slot);
+            op(0x2e, -1); // iaload
+            op(0x86, 0); // i2f
+        } else if (node instanceof Node.Element) {
+            Node.Element element = (Node.Element)node;
+            op(0x2c, 1); // aload_2
+            pushInt(element.slot);
+            emit(element.subscript);
+            op(0x8d, 1); // f2d
+            op(0xb8, 0); // invokestatic Math.floor(D)D
+            u2(methodRef("java/lang/Math", "floor", "(D)D"));
+            op(0x8e, -1); // d2i
+            op(0xb6, -2); // invokevirtual Bindings.element(II)I
+            u2(methodRef("apps/Bindings", "element", "(II)I"));
+            op(0x86, 0); // i2f
+        } else if (node instanceof Node.Negate) {
+            emit(((Node.Negate)node).operand);
+            op(0x76, 0); // fneg
+        } else {
+            Node.Binary binary = (Node.Binary)node;
+            emit(binary.left);
+            emit(binary.right);
+            switch (binary.op) {
+                case '+': op(0x62, -1); break;
+                case '-': op(0x66, -1); break;
+                case '*': op(0x6a, -1); break;
+                default:  op(0x6e, -1); break;
+            }
+        }
+    }
+
+    /**
+     * Emits code that leaves the typed value of a subtree on the operand stack:
+     * a long if it is integral, a double if not. Both take two stack slots.
+     */
+    private void emitTyped(Node node) throws IOException {
+        boolean integral = node.integral();
+        Integer local = locals.get(node);
+        if (local != null) {
+            local(integral ? 0x16 : 0x18, local, 2); // lload, dload
+            return;
+        }
+        if (integral) {
+            emitLong(node);
+        } else {
+            emitDouble(node);
+        }
+        if (shared(node)) {
+            local = nextLocal;
+            nextLocal += 2;
+            locals.put(node, local);
+            op(0x5c, 2); // dup2
+            local(integral ? 0x37 : 0x39, local, -2); // lstore, dstore
+        }
+    }
+
+    /**
+     * Emits code that leaves the typed value of a subtree on the operand stack
+     * as a double
+     */
+    private void emitReal(Node node) throws IOException {
+        emitTyped(node);
+        if (node.integral()) {
+            op(0x8a, 0); // l2d
+        }
+    }
+
+    private void emitLong(Node node) throws IOException {
+        if (node instanceof Node.Constant) {
+            long value = ((Node.Constant)node).exact;
+            if (value == 0 || value == 1) {
+                op(0x09 + (int)value, 2); // lconst_<n>
+            } else {
+                ldc2(longConst(value));
+            }
+        } else if (node instanceof Node.Scalar) {
+            op(0x2b, 1); // aload_1
+            pushInt(((Node.Scalar)node).slot);
+            op(0x2e, -1); // iaload
+            op(0x85, 1); // i2l
+        } else if (node instanceof Node.Element) {
+            Node.Element element = (Node.Element)node;
+            op(0x2c, 1); // aload_2
+            pushInt(element.slot);
+            emitTyped(element.subscript);
+            if (element.subscript.integral()) {
+                op(0xb8, -1); // invokestatic Node.index(J)I
+                u2(methodRef("apps/Node", "index", "(J)I"));
+            } else {
+                op(0xb8, 0); // invokestatic Math.floor(D)D
+                u2(methodRef("java/lang/Math", "floor", "(D)D"));
+                op(0x8e, -1); // d2i
+            }
+            op(0xb6, -2); // invokevirtual Bindings.element(II)I
+            u2(methodRef("apps/Bindings", "element", "(II)I"));
+            op(0x85, 1); // i2l
+        } else if (node instanceof Node.Negate) {
+            emitTyped(((Node.Negate)node).operand);
+            op(0x75, 0); // lneg
+        } else {
+            Node.Binary binary = (Node.Binary)node;
+            emitTyped(binary.left);
+            emitTyped(binary.right);
+            switch (binary.op) {
+                case '+': op(0x61, -2); break;
+                case '-': op(0x65, -2); break;
+                default:  op(0x69, -2); break;
+            }
+        }
+    }
+
+    private void emitDouble(Node node) throws IOException {
+        if (node instanceof Node.Constant) {
+            double value = ((Node.Constant)node).real;
+            if (Double.doubleToRawLongBits(value) == 0) {
+                op(0x0e, 2); // dconst_0
+            } else if (value == 1.0) {
+                op(0x0f, 2);
+            } else {
+                ldc2(doubleConst(value));
+            }
+        } else if (node instanceof Node.Negate) {
+            emitReal(((Node.Negate)node).operand);
+            op(0x77, 0); // dneg
+        } else {
+            Node.Binary binary = (Node.Binary)node;
+            emitReal(binary.left);
+            emitReal(binary.right);
+            switch (binary.op) {
+                case '+': op(0x63, -2); break;
+                case '-': op(0x67, -2); break;
+                case '*': op(0x6b, -2); break;
+                default:  op(0x6f, -2); break;
+            }
+        }
+    }
+
+    private void op(int opcode, int stackChange) {
+        code.write(opcode);
+        depth += stackChange;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void local(int opcode, int index, int stackChange) {
+        if (index < 256) {
+            op(opcode, stackChange);
+            code.write(index);
+        } else {
+            code.write(0xc4); // wide
+            op(opcode, stackChange);
+            u2(index);
+        }
+    }
+
+    private void u2(int value) {
+        code.write(value >>> 8);
+        code.write(value);
+    }
+
+    private void pushInt(int value) throws IOException {
+        if (value <= 5) {
+            op(0x03 + value, 1); // iconst_<n>
+        } else if (value <= Byte.MAX_VALUE) {
+            op(0x10, 1); // bipush
+            code.write(value);
+        } else if (value <= Short.MAX_VALUE) {
+            op(0x11, 1); // sipush
+            u2(value);
+        } else {
+            ldc(intConst(value));
+        }
+    }
+
+    private void ldc(int index) {
+        if (index < 256) {
+            op(0x12, 1);
+            code.write(index);
+        } else {
+            op(0x13, 1); // ldc_w
+            u2(index);
+        }
+    }
+
+    private void ldc2(int index) {
+        op(0x14, 2); // ldc2_w
+        u2(index);
+    }
+
+    private int utf8(String s) throws IOException {
+        Integer index = poolIndex.get("U" + s);
+        if (index == null) {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(s);
+            index = poolCount++;
+            poolIndex.put("U" + s, index);
+        }
+        return index;
+    }
+
+    private int classRef(String name) throws IOException {
+        Integer index = poolIndex.get("C" + name);
+        if (index == null) {
+            int nameIndex = utf8(name);
+            poolOut.writeByte(7);
+            poolOut.writeShort(nameIndex);
+            index = poolCount++;
+            poolIndex.put("C" + name, index);
+        }
+        return index;
+    }
+
+    private int methodRef(String owner, String name, String type) throws IOException {
+        String key = "M" + owner + "." + name + type;
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            poolOut.writeByte(12); // NameAndType
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(typeIndex);
+            int nameAndType = poolCount++;
+            poolOut.writeByte(10);
+            poolOut.writeShort(ownerIndex);
+            poolOut.writeShort(nameAndType);
+            index = poolCount++;
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private int floatConst(float value) throws IOException {
+        String key = "F" + Float.floatToRawIntBits(value);
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            poolOut.writeByte(4);
+            poolOut.writeFloat(value);
+            index = poolCount++;
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private int longConst(long value) throws IOException {
+        String key = "J" + value;
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            poolOut.writeByte(5);
+            poolOut.writeLong(value);
+            index = poolCount;
+            poolCount += 2; // longs take two entries
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private int doubleConst(double value) throws IOException {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            poolOut.writeByte(6);
+            poolOut.writeDouble(value);
+            index = poolCount;
+            poolCount += 2; // doubles take two entries
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private int intConst(int value) throws IOException {
+        String key = "I" + value;
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            poolOut.writeByte(3);
+            poolOut.writeInt(value);
+            index = poolCount++;
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,214 @@
+package apps;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the values fetched from another symbol provider across evaluations,
+ * so that each scalar, array size and array element is fetched once for as
+ * long as it stays cached. Entries are evicted least recently used first once
+ * the cache holds more than its capacity, and optionally expire a fixed time
+ * after they were fetched, for sources whose values change. Thread-safe.
+ */
+public class CachingSymbolProvider implements SymbolProvider {
+
+    /**
+     * Cached value: a scalar (index SCALAR), an array size (index LENGTH) or an
+     * array element
+     */
+    private static final class Key {
+        static final int SCALAR = -1;
+        static final int LENGTH = -2;
+
+        final String name;
+        final int index;
+
+        Key(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return index == k.index && name.equals(k.name);
+        }
+
+        public int hashCode() {
+            return name.hashCode() * 31 + index;
+        }
+    }
+
+    /**
+     * Value with the time it was fetched
+     */
+    private static final class Entry {
+        final int value;
+        final long fetched;
+
+        Entry(int value, long fetched) {
+            this.value = value;
+            this.fetched = fetched;
+        }
+    }
+
+    /**
+     * Provider values are fetched from on a miss
+     */
+    private final SymbolProvider source;
+
+    /**
+     * Most entries kept
+     */
+    private final int capacity;
+
+    /**
+     * Nanoseconds an entry stays valid after it is fetched, or 0 for no limit
+     */
+    private final long maxAgeNanos;
+
+    /**
+     * Entries in access order, least recently used first. Guarded by this.
+     */
+    private final LinkedHashMap<Key,Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initializes an empty cache whose entries never expire
+     *
+     * @param source Provider to fetch values from
+     * @param capacity Most entries kept
+     */
+    public CachingSymbolProvider(SymbolProvider source, int capacity) {
+        this(source, capacity, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Initializes an empty cache
+     *
+     * @param source Provider to fetch values from
+     * @param capacity Most entries kept
+     * @param maxAge Time an entry stays valid after it is fetched, or 0 for no
+     *        limit
+     * @param unit Unit of maxAge
+     */
+    public CachingSymbolProvider(SymbolProvider source, int capacity, long maxAge, TimeUnit unit) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("maximum age must not be negative: " + maxAge);
+        }
+        this.source = source;
+        this.capacity = capacity;
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key,Entry> eldest) {
+                if (size() > CachingSymbolProvider.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int scalar(String name) {
+        Key key = new Key(name, Key.SCALAR);
+        Entry e = lookup(key);
+        return e != null ? e.value : store(key, source.scalar(name));
+    }
+
+    public int arrayLength(String name) {
+        Key key = new Key(name, Key.LENGTH);
+        Entry e = lookup(key);
+        return e != null ? e.value : store(key, source.arrayLength(name));
+    }
+
+    public int element(String name, int index) {
+        Key key = new Key(name, index);
+        Entry e = lookup(key);
+        return e != null ? e.value : store(key, source.element(name, index));
+    }
+
+    /**
+     * Finds a valid entry, dropping it if it has expired. Counts the lookup as
+     * a hit or a miss.
+     */
+    private Entry lookup(Key key) {
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null && maxAgeNanos > 0 && System.nanoTime() - e.fetched > maxAgeNanos) {
+                entries.remove(key);
+                e = null;
+            }
+            if (e != null) {
+                hits.incrementAndGet();
+                return e;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a value fetched outside the lock. Two threads that miss on the
+     * same key at once may both fetch it; the last to finish wins.
+     */
+    private int store(Key key, int value) {
+        Entry e = new Entry(value, System.nanoTime());
+        synchronized (this) {
+            entries.put(key, e);
+        }
+        return value;
+    }
+
+    /**
+     * @return Number of entries currently held, including expired ones not yet
+     *         looked up
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all entries, so every value is fetched again. The counters are
+     * not reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of lookups answered from the cache
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of lookups that went to the source
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of entries evicted to stay within capacity
+     */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return "CachingSymbolProvider[size=" + size() + ", capacity=" + capacity + ", hits=" + hits()
+            + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+    }
+}
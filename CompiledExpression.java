@@ -0,0 +1,734 @@
+package apps;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An expression parsed once into an immutable evaluation tree, with every symbol
+ * resolved to a slot. Evaluating it does no string work; symbol values are
+ * supplied through a Bindings object.
+ * <p>
+ * A compiled expression is immutable and safe to share between threads. All
+ * per-evaluation state lives in the Bindings, so each thread evaluating at the
+ * same time needs its own Bindings object; see Bindings.copy.
+ * <p>
+ * An expression that refers to whole arrays, as in A[] + B[]*c, is
+ * element-wise: it is evaluated for every index at once with evaluateArray,
+ * in chunked primitive loops, and cannot be evaluated to a single value.
+ * <p>
+ * Parsing, optimization and the interpreter handle expressions nested to any
+ * depth. The batch loops and generated bytecode walk the tree recursively, so
+ * an expression nested deeper than MAX_RECURSIVE_DEPTH always runs on the
+ * interpreter, one row at a time in a batch.
+ * <p>
+ * A single evaluation of a very large expression can be spread over several
+ * threads with evaluateParallel, which gives the same result as evaluate.
+ */
+public class CompiledExpression {
+
+    /**
+     * Ways of executing a compiled expression
+     */
+    public enum Backend {
+        /**
+         * Run the postfix form of the evaluation tree on a primitive stack
+         */
+        INTERPRETER,
+
+        /**
+         * Run a class generated at compile time from the evaluation tree
+         */
+        BYTECODE
+    }
+
+    /**
+     * Kinds of arithmetic an expression can be evaluated in
+     */
+    public enum Arithmetic {
+        /**
+         * Infer a type for every subterm: subterms made only of integers,
+         * addition, subtraction, multiplication and negation run exactly in long,
+         * and everything else in double. Array subscripts are used exactly when
+         * integral.
+         */
+        TYPED,
+
+        /**
+         * Run every operation in float, as the original string-based evaluator
+         * did, for results identical to it
+         */
+        FLOAT
+    }
+
+    /**
+     * Deepest nesting the batch loops and bytecode generator are used for
+     */
+    static final int MAX_RECURSIVE_DEPTH = 1000;
+
+    /**
+     * Fewest nodes for which evaluateParallel uses several threads, unless
+     * another minimum is given. Smaller expressions take too little time to
+     * repay splitting the work; ParallelBenchmark shows where it starts to pay
+     * on a given machine.
+     */
+    public static final int DEFAULT_PARALLEL_NODES = 1 << 14;
+
+    /**
+     * Source text
+     */
+    final String expr;
+
+    /**
+     * Scalar slots, by name
+     */
+    final Map<String,Integer> scalarSlots;
+
+    /**
+     * Array slots, by name
+     */
+    final Map<String,Integer> arraySlots;
+
+    /**
+     * Names of scalar symbols, by slot
+     */
+    final String[] scalarNames;
+
+    /**
+     * Names of array symbols, by slot
+     */
+    final String[] arrayNames;
+
+    /**
+     * Arithmetic used for evaluation
+     */
+    final Arithmetic arithmetic;
+
+    /**
+     * Root of the evaluation tree, which is a DAG if the expression was optimized
+     */
+    final Node root;
+
+    /**
+     * Number of nodes produced by the parser
+     */
+    final int sourceNodeCount;
+
+    /**
+     * Number of distinct nodes evaluated, after optimization if any
+     */
+    final int nodeCount;
+
+    /**
+     * Slots of the arrays referred to as a whole, empty unless the expression
+     * is element-wise
+     */
+    final int[] wholeArrays;
+
+    /**
+     * Whether the tree is nested deeper than MAX_RECURSIVE_DEPTH
+     */
+    final boolean deep;
+
+    /**
+     * Postfix form of the tree, run by the interpreter, or null for an
+     * element-wise expression
+     */
+    final Program program;
+
+    /**
+     * Generated code for the tree, or null when the interpreter is used
+     */
+    final BytecodeGenerator.Kernel kernel;
+
+    /**
+     * Split of the tree for evaluateParallel, made on first use
+     */
+    private volatile ParallelEvaluator parallel;
+
+    /**
+     * Compiles an expression against the given symbols
+     *
+     * @param expr Expression
+     * @param symbols Symbols in the expression, with their slots
+     * @param matchOf Partner position of each bracket, see Expression.matchBrackets
+     * @param backend Requested backend. If BYTECODE is requested but code cannot
+     *        be generated, the interpreter is used instead.
+     * @param optimize Whether to fold constants, drop identity operations and
+     *        merge common subexpressions, see Optimizer
+     * @param arithmetic Arithmetic to evaluate in
+     * @throws IllegalArgumentException If the expression is malformed, uses a
+     *         symbol that is not in the table, or is element-wise and nested
+     *         deeper than MAX_RECURSIVE_DEPTH
+     */
+    CompiledExpression(String expr, SymbolTable symbols, int[] matchOf, Backend backend,
+            boolean optimize, Arithmetic arithmetic) {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.COMPILE);
+        this.expr = expr;
+        this.arithmetic = arithmetic;
+        boolean typed = arithmetic == Arithmetic.TYPED;
+        scalarNames = new String[symbols.scalarCount()];
+        for (int i = 0; i < scalarNames.length; i++) {
+            scalarNames[i] = symbols.scalarName(i);
+        }
+        scalarSlots = slots(scalarNames);
+        arrayNames = new String[symbols.arrayCount()];
+        for (int i = 0; i < arrayNames.length; i++) {
+            arrayNames[i] = symbols.arrayName(i);
+        }
+        arraySlots = slots(arrayNames);
+        Node parsed = new Parser(expr, symbols, matchOf).parse();
+        root = optimize ? Optimizer.optimize(parsed, typed) : parsed;
+        IdentityHashMap<Node,Integer> uses = Optimizer.useCounts(root);
+        sourceNodeCount = optimize ? Optimizer.countNodes(parsed) : uses.size();
+        nodeCount = uses.size();
+        wholeArrays = wholeArrays(uses.keySet(), arrayNames.length);
+        deep = nodeCount > MAX_RECURSIVE_DEPTH && Optimizer.depth(root) > MAX_RECURSIVE_DEPTH;
+        if (deep && wholeArrays.length > 0) {
+            throw new IllegalArgumentException("element-wise expression nested deeper than "
+                + MAX_RECURSIVE_DEPTH + ": " + expr);
+        }
+        program = wholeArrays.length == 0 ? Program.compile(root, typed, uses) : null;
+        kernel = backend == Backend.BYTECODE && program != null && !deep ? generate(root, typed) : null;
+        if (span != null) {
+            span.end(expr);
+            ExpressionMetrics.compiled(this);
+        }
+    }
+
+    /**
+     * Rebuilds a compiled expression from its evaluation tree, as read back by
+     * ExpressionArchive, without parsing the text again
+     *
+     * @param expr Source text
+     * @param scalarNames Names of the scalars, by slot
+     * @param arrayNames Names of the arrays, by slot
+     * @param root Root of the evaluation tree, already optimized if wanted
+     * @param uses Number of uses of every node of the tree, see
+     *        Optimizer.useCounts
+     * @param sourceNodeCount Number of nodes the parser produced
+     * @param backend Requested backend
+     * @param arithmetic Arithmetic the tree was built for
+     */
+    CompiledExpression(String expr, String[] scalarNames, String[] arrayNames, Node root,
+            IdentityHashMap<Node,Integer> uses, int sourceNodeCount, Backend backend,
+            Arithmetic arithmetic) {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.COMPILE);
+        this.expr = expr;
+        this.arithmetic = arithmetic;
+        boolean typed = arithmetic == Arithmetic.TYPED;
+        this.scalarNames = scalarNames;
+        this.arrayNames = arrayNames;
+        scalarSlots = slots(scalarNames);
+        arraySlots = slots(arrayNames);
+        this.root = root;
+        this.sourceNodeCount = sourceNodeCount;
+        nodeCount = uses.size();
+        wholeArrays = wholeArrays(uses.keySet(), arrayNames.length);
+        deep = nodeCount > MAX_RECURSIVE_DEPTH && Optimizer.depth(root) > MAX_RECURSIVE_DEPTH;
+        if (deep && wholeArrays.length > 0) {
+            throw new IllegalArgumentException("element-wise expression nested deeper than "
+                + MAX_RECURSIVE_DEPTH + ": " + expr);
+        }
+        program = wholeArrays.length == 0 ? Program.compile(root, typed, uses) : null;
+        kernel = backend == Backend.BYTECODE && program != null && !deep ? generate(root, typed) : null;
+        if (span != null) {
+            span.end(expr);
+            ExpressionMetrics.compiled(this);
+        }
+    }
+
+    private static Map<String,Integer> slots(String[] names) {
+        HashMap<String,Integer> slots = new HashMap<String,Integer>();
+        for (int i = 0; i < names.length; i++) {
+            slots.put(names[i], i);
+        }
+        return Collections.unmodifiableMap(slots);
+    }
+
+    private static BytecodeGenerator.Kernel generate(Node root, boolean typed) {
+        try {
+            return BytecodeGenerator.generate(root, typed);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the arrays that the nodes of a tree refer to as a whole
+     */
+    private static int[] wholeArrays(Set<Node> nodes, int arrayCount) {
+        boolean[] whole = new boolean[arrayCount];
+        int count = 0;
+        for (Node node : nodes) {
+            if (node instanceof Node.Element && ((Node.Element)node).subscript instanceof Node.Index
+                    && !whole[((Node.Element)node).slot]) {
+                whole[((Node.Element)node).slot] = true;
+                count++;
+            }
+        }
+        int[] slots = new int[count];
+        for (int slot = 0, i = 0; slot < arrayCount; slot++) {
+            if (whole[slot]) {
+                slots[i++] = slot;
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Returns the backend actually in use, which is INTERPRETER if bytecode was
+     * requested but could not be generated. Element-wise expressions are always
+     * evaluated by the batch loops of evaluateArray, whatever the backend.
+     *
+     * @return Backend
+     */
+    public Backend backend() {
+        return kernel == null ? Backend.INTERPRETER : Backend.BYTECODE;
+    }
+
+    /**
+     * @return Arithmetic the expression is evaluated in
+     */
+    public Arithmetic arithmetic() {
+        return arithmetic;
+    }
+
+    /**
+     * @return Number of nodes in the parsed expression
+     */
+    public int sourceNodeCount() {
+        return sourceNodeCount;
+    }
+
+    /**
+     * @return Number of distinct nodes evaluated, which is smaller than
+     *         sourceNodeCount() if optimization folded or merged any
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the slot of a scalar symbol
+     *
+     * @param name Name of the scalar
+     * @return Slot, or -1 if the expression has no such scalar
+     */
+    public int scalarSlot(String name) {
+        Integer slot = scalarSlots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Returns the slot of an array symbol
+     *
+     * @param name Name of the array
+     * @return Slot, or -1 if the expression has no such array
+     */
+    public int arraySlot(String name) {
+        Integer slot = arraySlots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Creates empty bindings sized for this expression
+     *
+     * @return New bindings, with all scalars zero and all arrays null
+     */
+    public Bindings newBindings() {
+        return new Bindings(scalarNames.length, arrayNames.length);
+    }
+
+    /**
+     * Creates bindings that fetch values from a provider as the expression
+     * reads them, keeping up to Bindings.DEFAULT_ELEMENT_CACHE_SIZE elements
+     * of each array
+     *
+     * @param provider Source of values
+     * @return New bindings, with nothing fetched yet
+     */
+    public Bindings newBindings(SymbolProvider provider) {
+        return newBindings(provider, Bindings.DEFAULT_ELEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates bindings that fetch values from a provider as the expression
+     * reads them. Such bindings are always evaluated by the interpreter, which
+     * reads each scalar through the bindings; batch and element-wise
+     * evaluation fetch every scalar up front.
+     *
+     * @param provider Source of values
+     * @param elementCacheSize Most elements of each array kept at once; an
+     *        element dropped from the cache is fetched again if read again
+     * @return New bindings, with nothing fetched yet
+     */
+    public Bindings newBindings(SymbolProvider provider, int elementCacheSize) {
+        return new Bindings(scalarNames, arrayNames, provider, elementCacheSize);
+    }
+
+    /**
+     * Evaluates the expression. Apart from growing the operand stack of a fresh
+     * Bindings object on its first use, and timing the call when metrics are on
+     * (see ExpressionMetrics), this allocates nothing. A Bindings object
+     * must not be used by two evaluations at the same time.
+     *
+     * @param b Symbol values
+     * @return Result of evaluation, rounded to float if it was computed in typed
+     *         arithmetic
+     */
+    public float evaluate(Bindings b) {
+        requireScalar();
+        if (arithmetic == Arithmetic.TYPED) {
+            return (float)evaluateDouble(b);
+        }
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        float result = kernel != null && !b.provided() ? kernel.evaluate(b.scalars, b) : program.evaluate(b);
+        if (span != null) {
+            span.end(expr);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the expression without rounding the result to float. In float
+     * arithmetic this is the float result, widened.
+     *
+     * @param b Symbol values
+     * @return Result of evaluation
+     */
+    public double evaluateDouble(Bindings b) {
+        requireScalar();
+        if (arithmetic == Arithmetic.FLOAT) {
+            return evaluate(b);
+        }
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        double result = kernel != null && !b.provided() ? kernel.evaluateDouble(b.scalars, b) : program.evaluateDouble(b);
+        if (span != null) {
+            span.end(expr);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the expression using several threads if it has at least
+     * DEFAULT_PARALLEL_NODES nodes, see evaluateDoubleParallel
+     *
+     * @param b Symbol values
+     * @return Result of evaluation, the same as evaluate(b)
+     */
+    public float evaluateParallel(Bindings b) {
+        return (float)evaluateDoubleParallel(b, DEFAULT_PARALLEL_NODES);
+    }
+
+    /**
+     * Evaluates the expression using several threads if it is large enough,
+     * see evaluateDoubleParallel
+     *
+     * @param b Symbol values
+     * @param minNodes Fewest nodes for which several threads are used
+     * @return Result of evaluation, the same as evaluate(b)
+     */
+    public float evaluateParallel(Bindings b, int minNodes) {
+        return (float)evaluateDoubleParallel(b, minNodes);
+    }
+
+    /**
+     * Evaluates the expression without rounding the result to float, using
+     * several threads if it has at least DEFAULT_PARALLEL_NODES nodes, see
+     * evaluateDoubleParallel(Bindings, int)
+     *
+     * @param b Symbol values
+     * @return Result of evaluation, the same as evaluateDouble(b)
+     */
+    public double evaluateDoubleParallel(Bindings b) {
+        return evaluateDoubleParallel(b, DEFAULT_PARALLEL_NODES);
+    }
+
+    /**
+     * Evaluates the expression without rounding the result to float, using
+     * several threads if it has at least minNodes nodes and the common
+     * fork/join pool has more than one. Independent subtrees are computed in
+     * parallel and the nodes above them then combine their values in the
+     * usual order, so the result is the same as evaluateDouble(b), bit for
+     * bit. Smaller expressions are evaluated as by evaluateDouble(b).
+     *
+     * @param b Symbol values
+     * @param minNodes Fewest nodes for which several threads are used
+     * @return Result of evaluation, the same as evaluateDouble(b)
+     */
+    public double evaluateDoubleParallel(Bindings b, int minNodes) {
+        requireScalar();
+        if (nodeCount < minNodes || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            return evaluateDouble(b);
+        }
+        ParallelEvaluator split = parallel;
+        if (split == null) {
+            split = new ParallelEvaluator(root, arithmetic == Arithmetic.TYPED, ParallelEvaluator.grain(nodeCount));
+            parallel = split;
+        }
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        double result = split.evaluateDouble(b, true);
+        if (span != null) {
+            span.end(expr);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the expression as evaluateDouble(b) does, but reads the
+     * symbols through another Bindings object, which sees the same values as b,
+     * so that it can observe the reads
+     *
+     * @param b Symbol values
+     * @param reads Bindings the generated code or interpreter reads through
+     * @return Result of evaluation
+     */
+    double evaluateDouble(Bindings b, Bindings reads) {
+        requireScalar();
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        double result;
+        if (arithmetic == Arithmetic.FLOAT) {
+            result = kernel != null && !b.provided() ? kernel.evaluate(b.scalars, reads) : program.evaluate(reads);
+        } else {
+            result = kernel != null && !b.provided() ? kernel.evaluateDouble(b.scalars, reads)
+                : program.evaluateDouble(reads);
+        }
+        if (span != null) {
+            span.end(expr);
+        }
+        return result;
+    }
+
+    /**
+     * Tells whether the result is computed exactly, in which case it can be
+     * read with evaluateLong
+     *
+     * @return True if the expression uses typed arithmetic and is integral:
+     *         it has no division or real constant, and its value provably fits
+     *         in a long
+     */
+    public boolean integral() {
+        return arithmetic == Arithmetic.TYPED && root.integral();
+    }
+
+    /**
+     * Evaluates an integral expression exactly
+     *
+     * @param b Symbol values
+     * @return Result of evaluation
+     * @throws IllegalStateException If the expression is not integral, see
+     *         integral()
+     */
+    public long evaluateLong(Bindings b) {
+        if (!integral()) {
+            throw new IllegalStateException("not an integral expression: " + expr);
+        }
+        requireScalar();
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        long result = kernel != null && !b.provided() ? kernel.evaluateLong(b.scalars, b) : program.evaluateLong(b);
+        if (span != null) {
+            span.end(expr);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the expression once per row of scalar values. Row r uses
+     * scalarColumns[slot][r] as the value of each scalar; the arrays are shared
+     * by all rows. The results are the same as evaluating each row separately
+     * with evaluate(Bindings).
+     *
+     * @param scalarColumns Scalar values, by slot and then row. Each column must
+     *        have at least out.length entries.
+     * @param arrays Array values, by slot
+     * @param out Receives the result for each row
+     * @throws IllegalArgumentException If the number of columns or arrays does
+     *         not match the expression, or a column is too short
+     */
+    public void evaluateBatch(int[][] scalarColumns, int[][] arrays, float[] out) {
+        if (scalarColumns.length != scalarNames.length || arrays.length != arrayNames.length) {
+            throw new IllegalArgumentException("expected " + scalarNames.length + " columns and "
+                + arrayNames.length + " arrays");
+        }
+        ArrayStorage[] storage = new ArrayStorage[arrays.length];
+        for (int i = 0; i < arrays.length; i++) {
+            storage[i] = arrays[i] == null ? null : ArrayStorage.of(arrays[i]);
+        }
+        evaluateBatch(scalarColumns, storage, out);
+    }
+
+    /**
+     * Evaluates the expression once per row of scalar values, taking the arrays
+     * from a Bindings object. The scalar values in the bindings are not used.
+     *
+     * @param scalarColumns Scalar values, by slot and then row
+     * @param arrays Bindings holding the array values
+     * @param out Receives the result for each row
+     * @throws IllegalArgumentException If the number of columns or arrays does
+     *         not match the expression, or a column is too short
+     */
+    public void evaluateBatch(int[][] scalarColumns, Bindings arrays, float[] out) {
+        if (arrays.storage.length != arrayNames.length) {
+            throw new IllegalArgumentException("expected " + arrayNames.length + " arrays");
+        }
+        arrays.fetchArrays();
+        evaluateBatch(scalarColumns, arrays.storage, out);
+    }
+
+    private void evaluateBatch(int[][] scalarColumns, ArrayStorage[] arrays, float[] out) {
+        requireScalar();
+        if (scalarColumns.length != scalarNames.length) {
+            throw new IllegalArgumentException("expected " + scalarNames.length + " columns");
+        }
+        for (int i = 0; i < scalarColumns.length; i++) {
+            if (scalarColumns[i].length < out.length) {
+                throw new IllegalArgumentException("column for " + scalarNames[i]
+                    + " has fewer than " + out.length + " rows");
+            }
+        }
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        if (deep) {
+            evaluateRows(scalarColumns, arrays, out);
+        } else {
+            BatchEvaluator.evaluate(root, scalarColumns, arrays, out, arithmetic == Arithmetic.TYPED);
+        }
+        if (span != null) {
+            span.end(expr);
+        }
+    }
+
+    /**
+     * Evaluates rows one at a time on the interpreter, for a tree too deep for
+     * the batch loops
+     */
+    private void evaluateRows(int[][] scalarColumns, ArrayStorage[] arrays, float[] out) {
+        Bindings row = newBindings();
+        for (int slot = 0; slot < arrays.length; slot++) {
+            row.setArray(slot, arrays[slot]);
+        }
+        for (int r = 0; r < out.length; r++) {
+            for (int slot = 0; slot < scalarColumns.length; slot++) {
+                row.setScalar(slot, scalarColumns[slot][r]);
+            }
+            out[r] = arithmetic == Arithmetic.TYPED ? (float)program.evaluateDouble(row) : program.evaluate(row);
+        }
+    }
+
+    /**
+     * Tells whether the expression refers to whole arrays, in which case it is
+     * evaluated with evaluateArray
+     *
+     * @return True if some array is referred to as A[]
+     */
+    public boolean elementwise() {
+        return wholeArrays.length > 0;
+    }
+
+    /**
+     * Returns the number of elements an element-wise evaluation produces: the
+     * common length of the arrays referred to as a whole
+     *
+     * @param b Symbol values
+     * @return Number of elements
+     * @throws IllegalStateException If the expression is not element-wise
+     * @throws IllegalArgumentException If a whole array has no values, or the
+     *         whole arrays differ in length
+     */
+    public int elementCount(Bindings b) {
+        if (!elementwise()) {
+            throw new IllegalStateException("not an element-wise expression: " + expr);
+        }
+        int length = -1;
+        for (int slot : wholeArrays) {
+            ArrayStorage storage = b.array(slot);
+            if (storage == null) {
+                throw new IllegalArgumentException("no values for array " + arrayNames[slot]);
+            }
+            if (length >= 0 && storage.length() != length) {
+                throw new IllegalArgumentException("arrays of different lengths in: " + expr);
+            }
+            length = storage.length();
+        }
+        return length;
+    }
+
+    /**
+     * Evaluates an element-wise expression for every index. Element i of the
+     * result is the value of the expression with each whole-array reference
+     * A[] read as A[i]; scalars and subscripted elements are the same for every
+     * index. Large arrays are split into chunks evaluated in parallel on the
+     * common fork/join pool. Bindings without a provider are only read, so
+     * several threads may evaluate against the same Bindings object at once.
+     * Bindings with a provider fill their caches as values are read; they are
+     * evaluated on the calling thread alone and must not be shared.
+     *
+     * @param b Symbol values
+     * @return Result for each index, rounded to float if it was computed in
+     *         typed arithmetic
+     * @throws IllegalStateException If the expression is not element-wise
+     * @throws IllegalArgumentException If the whole arrays differ in length
+     */
+    public float[] evaluateArray(Bindings b) {
+        float[] out = new float[elementCount(b)];
+        evaluateArray(b, out, null, null);
+        return out;
+    }
+
+    /**
+     * Evaluates an element-wise expression for every index, without rounding
+     * the results to float; see evaluateArray
+     *
+     * @param b Symbol values
+     * @return Result for each index
+     * @throws IllegalStateException If the expression is not element-wise
+     * @throws IllegalArgumentException If the whole arrays differ in length
+     */
+    public double[] evaluateDoubleArray(Bindings b) {
+        double[] out = new double[elementCount(b)];
+        evaluateArray(b, null, out, null);
+        return out;
+    }
+
+    /**
+     * Evaluates an integral element-wise expression exactly for every index;
+     * see evaluateArray
+     *
+     * @param b Symbol values
+     * @return Result for each index
+     * @throws IllegalStateException If the expression is not element-wise or
+     *         not integral
+     * @throws IllegalArgumentException If the whole arrays differ in length
+     */
+    public long[] evaluateLongArray(Bindings b) {
+        if (!integral()) {
+            throw new IllegalStateException("not an integral expression: " + expr);
+        }
+        long[] out = new long[elementCount(b)];
+        evaluateArray(b, null, null, out);
+        return out;
+    }
+
+    private void evaluateArray(Bindings b, float[] out, double[] outDouble, long[] outLong) {
+        b.fetchScalars();
+        b.fetchArrays();
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        BatchEvaluator.evaluateElements(root, b, arithmetic == Arithmetic.TYPED, out, outDouble, outLong);
+        if (span != null) {
+            span.end(expr);
+        }
+    }
+
+    private void requireScalar() {
+        if (program == null) {
+            throw new IllegalStateException("element-wise expression, see evaluateArray: " + expr);
+        }
+    }
+
+    public String toString() {
+        return expr;
+    }
+}
@@ -1,13 +1,14 @@
 package apps;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 
 import java.util.Scanner;
 import java.util.StringTokenizer;
 
-import structures.Stack;
-
 public class Expression {
 
     /**
@@ -25,6 +26,17 @@ public class Expression {
      */
     ArrayList<ArraySymbol> arrays;
 
+    /**
+     * Slots of the symbols; slot i of each kind is the symbol at position i of
+     * the scalars or arrays list
+     */
+    SymbolTable symbols;
+
+    /**
+     * Symbol values, by slot, as loaded by loadSymbolValues
+     */
+    Bindings values;
+
     /**
      * Positions of opening brackets
      */
@@ -35,6 +47,48 @@ public class Expression {
      */
     ArrayList<Integer> closingBracketIndex;
 
+    /**
+     * Position of the partner of each bracket, -1 for other characters
+     */
+    int[] matchOf;
+
+    /**
+     * Compiled form of the expression, built on first use by compile()
+     */
+    CompiledExpression compiled;
+
+    /**
+     * Backend requested for the compiled form
+     */
+    CompiledExpression.Backend backend;
+
+    /**
+     * Whether compile() runs the optimizer
+     */
+    boolean optimize;
+
+    /**
+     * Arithmetic requested for the compiled form
+     */
+    CompiledExpression.Arithmetic arithmetic;
+
+    /**
+     * Evaluations after which evaluate() promotes the expression to its
+     * optimized form, or 0 if evaluate() uses compile() as it is
+     */
+    long tierThreshold;
+
+    /**
+     * Tiered form of the expression, built on first use by tiered()
+     */
+    TieredExpression tiered;
+
+    /**
+     * Fewest nodes for which evaluate() spreads the expression over several
+     * threads, or 0 to always evaluate on one
+     */
+    int parallelNodes;
+
     /**
      * String containing all delimiters (characters other than variables and constants),
      * to be used with StringTokenizer
@@ -43,7 +97,8 @@ public class Expression {
 
     /**
      * Initializes this Expression object with an input expression. Sets all other
-     * fields to null.
+     * fields to null, and selects the interpreter backend without optimization,
+     * in typed arithmetic, without tiering, evaluated on one thread.
      *
      * @param expr Expression
      */
@@ -51,8 +106,18 @@ public class Expression {
         this.expr = expr;
         scalars = null;
         arrays = null;
+        symbols = null;
+        values = null;
         openingBracketIndex = null;
         closingBracketIndex = null;
+        matchOf = null;
+        compiled = null;
+        tiered = null;
+        backend = CompiledExpression.Backend.INTERPRETER;
+        optimize = false;
+        arithmetic = CompiledExpression.Arithmetic.TYPED;
+        tierThreshold = 0;
+        parallelNodes = 0;
     }
 
     /**
@@ -72,68 +137,55 @@ public class Expression {
      * @return True if brackets are matched correctly, false if not
      */
     public boolean isLegallyMatched() {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.MATCH_BRACKETS);
         openingBracketIndex = new ArrayList<Integer>();
         closingBracketIndex  = new ArrayList<Integer>();
-        // COMPLETE THIS METHOD
-        Stack<Bracket> brackets = new Stack<Bracket>();
-        Stack<Bracket> close = new Stack<Bracket>();
-        for (int i = 0; i < expr.length(); i++)
-        {
-            if (expr.charAt(i) == '(' || expr.charAt(i) == '[')
-            {
-                    brackets.push(new Bracket(expr.charAt(i), i));
+        matchOf = matchBrackets(expr);
+        if (matchOf != null) {
+            for (int i = 0; i < expr.length(); i++) {
+                char ch = expr.charAt(i);
+                if (ch == '(' || ch == '[') {
                     openingBracketIndex.add(i);
+                    closingBracketIndex.add(matchOf[i]);
+                }
             }
+        }
+        if (span != null) {
+            span.end(expr);
+        }
+        return matchOf != null;
+    }
 
-            else if (expr.charAt(i) == ')')
-            {
-            	if (brackets.isEmpty())
-            		return false;
-                if (brackets.peek().ch == '(')
-                {
-                    brackets.pop();
-                    if (brackets.isEmpty())
-                    {
-                        closingBracketIndex.add(i);
-                        while (!close.isEmpty())
-                        {
-                            closingBracketIndex.add(close.pop().pos);
-                        }
-                    }
-                    else
-                        close.push(new Bracket(expr.charAt(i), i));
+    /**
+     * Matches parentheses and square brackets in a single pass. In the returned
+     * table, the entry at the position of each bracket is the position of its
+     * partner, and every other entry is -1.
+     *
+     * @param expr Expression
+     * @return Table of partner positions, or null if the brackets are not matched
+     */
+    static int[] matchBrackets(String expr) {
+        int[] matchOf = new int[expr.length()];
+        int[] open = new int[expr.length()];
+        int top = 0;
+        for (int i = 0; i < expr.length(); i++) {
+            matchOf[i] = -1;
+            char ch = expr.charAt(i);
+            if (ch == '(' || ch == '[') {
+                open[top++] = i;
+            } else if (ch == ')' || ch == ']') {
+                if (top == 0) {
+                    return null;
                 }
-                else
-                    return false;
-            }
-            else if (expr.charAt(i) == ']')
-            {
-            	if (brackets.isEmpty())
-            		return false;
-                if (brackets.peek().ch == '[')
-                {
-                    brackets.pop();
-                    if (brackets.isEmpty())
-                    {
-                        closingBracketIndex.add(i);
-                        while (!close.isEmpty())
-                        {
-                            closingBracketIndex.add(close.pop().pos);
-                        }
-                    }
-                    else
-                        close.push(new Bracket(expr.charAt(i), i));
+                int o = open[--top];
+                if (expr.charAt(o) != (ch == ')' ? '(' : '[')) {
+                    return null;
                 }
-                else
-                    return false;
+                matchOf[o] = i;
+                matchOf[i] = o;
             }
-            else
-                continue;
         }
-       
-        return brackets.isEmpty();
-        // FOLLOWING LINE ADDED TO MAKE COMPILER HAPPY
-
+        return top == 0 ? matchOf : null;
     }
 
     /**
@@ -144,529 +196,339 @@ public class Expression {
      * zero - they will be loaded from a file in the loadSymbolValues method.
      */
     public void buildSymbols() {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.BUILD_SYMBOLS);
         arrays = new ArrayList<ArraySymbol>();
         scalars = new ArrayList<ScalarSymbol>();
+        symbols = new SymbolTable();
+        compiled = null;
+        tiered = null;
 
-        String temp = "";
-        for (int i = 0; i < expr.length(); i++)
-        {
-            temp = temp + expr.charAt(i);
-            if (expr.charAt(i) == '[')
-            {
-                temp = temp + "~";
-            }
+        symbols.addSymbols(expr);
+        for (int i = 0; i < symbols.scalarCount(); i++) {
+            scalars.add(new ScalarSymbol(symbols.scalarName(i)));
         }
-        StringTokenizer str = new StringTokenizer(temp, " \t*+-/()]~");
-
-        while (str.hasMoreElements())
-        {
-            String x = str.nextToken();
-            if (x.charAt(x.length()-1) == '[')
-            {
-                arrays.add(new ArraySymbol(x.substring(0, x.length()-1)));
-            }
-            else
-            {
-                if (!Character.isLetter(x.charAt(0)))
-                    continue;
-                else
-                    scalars.add(new ScalarSymbol(x));
-            }
-
+        for (int i = 0; i < symbols.arrayCount(); i++) {
+            arrays.add(new ArraySymbol(symbols.arrayName(i)));
+        }
+        values = symbols.newBindings();
+        if (span != null) {
+            span.end(expr);
         }
-
-
     }
     
 
     /**
-     * Loads values for symbols in the expression
+     * Loads values for symbols in the expression. Each array is stored in the
+     * representation that suits it, see ArrayStorage; the values field of an
+     * ArraySymbol is only set for arrays stored as a plain int[].
      *
      * @param sc Scanner for values input
      * @throws IOException If there is a problem with the input
      */
     public void loadSymbolValues(Scanner sc)
     throws IOException {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.LOAD_VALUES);
+        loadValues(sc, symbols, values);
+        copyValuesToSymbols();
+        if (span != null) {
+            span.end(expr);
+        }
+    }
+
+    /**
+     * Loads values for symbols in the expression from a file. The file has the
+     * same format as the input to loadSymbolValues(Scanner), but is parsed
+     * directly from bytes, which is much faster for large files.
+     *
+     * @param path File of values
+     * @throws IOException If there is a problem with the input
+     */
+    public void loadSymbolValues(Path path)
+    throws IOException {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.LOAD_VALUES);
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ValueLoader.load(in, symbols, values);
+        }
+        copyValuesToSymbols();
+        if (span != null) {
+            span.end(expr);
+        }
+    }
+
+    /**
+     * Fetches symbol values from a provider as evaluation reads them, instead
+     * of loading them all up front. Replaces any values already loaded; the
+     * symbol lists are not filled in. Builds the symbols first if that has not
+     * been done.
+     *
+     * @param provider Source of values
+     */
+    public void setSymbolProvider(SymbolProvider provider) {
+        if (scalars == null || arrays == null) {
+            buildSymbols();
+        }
+        values = symbols.newBindings(provider, Bindings.DEFAULT_ELEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * Reads symbol values in the format of loadSymbolValues(Scanner) into
+     * bindings. Lines for symbols that are not in the table are skipped.
+     *
+     * @param sc Scanner for values input
+     * @param symbols Symbols whose values are wanted
+     * @param values Receives the values, by slot
+     * @throws IOException If an array has no (index,value) pairs or an index
+     *         has no value
+     */
+    static void loadValues(Scanner sc, SymbolTable symbols, Bindings values)
+    throws IOException {
+        int line = 0;
         while (sc.hasNextLine()) {
+            line++;
             StringTokenizer st = new StringTokenizer(sc.nextLine().trim());
             int numTokens = st.countTokens();
+            if (numTokens == 0) {
+                continue;
+            }
             String sym = st.nextToken();
-            ScalarSymbol ssymbol = new ScalarSymbol(sym);
-            ArraySymbol asymbol = new ArraySymbol(sym);
-            int ssi = scalars.indexOf(ssymbol);
-            int asi = arrays.indexOf(asymbol);
+            int ssi = symbols.scalarSlot(sym);
+            int asi = symbols.arraySlot(sym);
             if (ssi == -1 && asi == -1) {
                 continue;
             }
             int num = Integer.parseInt(st.nextToken());
             if (numTokens == 2) { // scalar symbol
-                scalars.get(ssi).value = num;
+                if (ssi == -1) {
+                    throw new IOException("no (index,value) pairs for array " + sym + " at line " + line);
+                }
+                values.setScalar(ssi, num);
             } else { // array symbol
-                asymbol = arrays.get(asi);
-                asymbol.values = new int[num];
+                if (asi == -1) {
+                    continue;
+                }
                 // following are (index,val) pairs
-                while (st.hasMoreTokens()) {
+                int count = numTokens - 2;
+                int[] indices = new int[count];
+                int[] vals = new int[count];
+                for (int i = 0; i < count; i++) {
                     String tok = st.nextToken();
                     StringTokenizer stt = new StringTokenizer(tok," (,)");
-                    int index = Integer.parseInt(stt.nextToken());
-                    int val = Integer.parseInt(stt.nextToken());
-                    asymbol.values[index] = val;
+                    indices[i] = Integer.parseInt(stt.nextToken());
+                    if (!stt.hasMoreTokens()) {
+                        throw new IOException("index " + indices[i] + " has no value at line " + line);
+                    }
+                    vals[i] = Integer.parseInt(stt.nextToken());
                 }
+                values.setArray(asi, ArrayStorage.create(num, indices, vals, count));
             }
         }
     }
 
     /**
-     * Evaluates the expression, using RECURSION to evaluate subexpressions and to evaluate array
-     * subscript expressions.
-     *
-     * @return Result of evaluation
+     * Copies loaded values from the bindings into the symbol lists
      */
-    public float evaluate() {
-
-        String last = evaluate_recur(expr);
-         
-        return Float.parseFloat(last);
+    private void copyValuesToSymbols() {
+        for (int i = 0; i < scalars.size(); i++) {
+            scalars.get(i).value = values.scalar(i);
+        }
+        for (int i = 0; i < arrays.size(); i++) {
+            arrays.get(i).values = values.arrays[i];
+        }
     }
-    
-    //Recursive Solution
-    private String evaluate_recur(String expression)
-    {
-        for (int i = 0; i < expression.length(); i++)
-        {
-
-            if (expression.charAt(i) == '(' && i != expression.length()-1) //handles parenthesis
-            {
-                String before = expression.substring(0, i);
-                String after = expression.substring(findEndIndex(expression)+1, expression.length());
-                String s = evaluate_recur(expression.substring(i+1, findEndIndex(expression)));//recursive call
-                String output = before + s + after;
-                if (after.trim().length() > 1)
-                	return evaluate_recur("" + output); //recursive call
-                else
-                	return "" + baseEvaluate(output); // evaluates expression using numbers
-
 
+    /**
+     * Compiles the expression into an evaluation tree, building the symbol lists
+     * first if that has not been done. The result is kept, so repeated calls
+     * return the same object until buildSymbols is called again.
+     *
+     * @return Compiled expression
+     * @throws IllegalArgumentException If the expression is malformed
+     */
+    public CompiledExpression compile() {
+        if (compiled == null) {
+            if (matchOf == null && !isLegallyMatched()) {
+                throw new IllegalArgumentException("brackets not matched in: " + expr);
             }
-            if (expression.charAt(i) == '[' && i != expression.length()-1) //handles square brackets
-            {
-                String before = expression.substring(0, i+1);
-                String after = expression.substring(findEndIndex(expression), expression.length());
-                String s = evaluate_recur(expression.substring(i+1, findEndIndex(expression))); //recursive call
-                String output = before + s + after;
-                if (after.trim().length() > 1)
-                	return evaluate_recur(Math.floor(baseEvaluate(before + s + after.charAt(0))) + after.substring(1)); //recursive call
-                else
-                	return "" + Math.floor(baseEvaluate(output)); // evaluates expression using numbers
+            if (scalars == null || arrays == null) {
+                buildSymbols();
             }
-
+            compiled = new CompiledExpression(expr, symbols, matchOf, backend, optimize, arithmetic);
         }
-        return "" + baseEvaluate(expression);
+        return compiled;
     }
-    private Integer findEndIndex(String expression)
-    {
-        ArrayList<Integer> opening = getOpeningBracketIndexList(expression);
-        ArrayList<Integer> closing = getClosingBracketIndexList(expression);
-
-        return closing.get(0);
-    }
-
 
-    private float baseEvaluate(String expression) //converts expressions that have variables into an expression with just numbers 
-    {
-        String translated = "";
-        for (int i = 0; i < expression.trim().length(); i++)
-        {
-            String temp = "";
-            if (expression.charAt(i) == '.') {
-                translated = translated + expression.charAt(i);
-                continue;
+    /**
+     * Returns the tiered form of the expression, which starts on the
+     * unoptimized interpreter and promotes itself to optimized bytecode on a
+     * background thread after the threshold set by setTiering, or
+     * TieredExpression.DEFAULT_THRESHOLD if none was set. Builds the symbol
+     * lists first if that has not been done. The result is kept, so repeated
+     * calls return the same object until the expression is reconfigured.
+     *
+     * @return Tiered expression
+     * @throws IllegalArgumentException If the expression is malformed
+     */
+    public TieredExpression tiered() {
+        if (tiered == null) {
+            if (matchOf == null && !isLegallyMatched()) {
+                throw new IllegalArgumentException("brackets not matched in: " + expr);
             }
-            if (expression.charAt(i) == ')' || expression.charAt(i) == '(')
-            	continue;
-            if (Character.isLetter(expression.charAt(i)))
-
-            {
-            	boolean loop = true;
-                while (loop){
-                	temp = temp + expression.charAt(i);;
-                    if (i != expression.length()-1 && Character.isLetter(expression.charAt(i+1)))
-                    {
-                        loop=true;
-                    }
-                    else
-                    {
-                        loop = false;
-                        break;
-                    }
-                    i++;
-                }
-
-
-
-                boolean found = false;
-                int index = 0;
-                ScalarSymbol scale;
-                while (!found && index < scalars.size())
-                {
-                    scale = scalars.get(index);
-                    if (temp.equals(scale.name))
-                    {
-                        translated = translated + scale.value;
-                        found = true;
-                    }
-                    else
-                        index++;
-                }
-
-                boolean found2 = false;
-                int index2 = 0;
-                int j = 0;
-                ArraySymbol arr;
-                while (!found2 && index2 < arrays.size())
-                {
-                    arr = arrays.get(index2);
-                        if (temp.equals(arr.name))
-                        {
-                            String ind = "";
-                            int a = i+1;
-                            while (a < expression.length())
-                            {
-                                if (Character.isDigit(expression.charAt(a)))
-                                {
-                                    ind = "" + expression.charAt(a);
-                                    break;
-                                }
-                                a++;
-                            }
-                            j = a;
-                            Integer indy = Integer.parseInt(ind);
-                            translated = translated + arr.values[indy];
-                            found2 = true;
-                        }
-                        else
-                            index2++;
-                }
-                if (found2)
-                {
-                    while (j < expression.length())
-                    {
-                        if (expression.charAt(j) == ']')
-                        {
-                            i = j;
-                            break;
-                        }
-                        j++;
-
-                    }
-                }
+            if (scalars == null || arrays == null) {
+                buildSymbols();
             }
-            else
-                translated = translated + expression.charAt(i);
+            tiered = new TieredExpression(expr, symbols, matchOf, arithmetic,
+                tierThreshold > 0 ? tierThreshold : TieredExpression.DEFAULT_THRESHOLD);
         }
-
-
-        return postfixToSolution(infixToPostfix(translated));
-
-
-
+        return tiered;
     }
-    private String infixToPostfix (String str) //converts expression of numbers from infix to postfix notation using stacks
-    {
-        Stack <String> postfix = new Stack<String>();
-        String pst = "";
-        int i = 0;
-
-
-        while (i < str. length())
-        {
-                String op = "";
-                op = op + str.charAt(i);
-                if (Character.isDigit(str.charAt(i)) || str.charAt(i) == '.')
-                {
-                    boolean loop = true;
-                    while (loop){
-                        pst = pst + str.charAt(i);
-                        if (i != str.length()-1 && (Character.isDigit(str.charAt(i+1)) || str.charAt(i+1) == '.'))
-                        {
-                            i++;
-                            continue;
-                        }
-                        else
-                        {
-                            pst = pst + "~";
-                            loop = false;
-                        }
-                    }
-                    i++;
-                    continue;
-                }
 
-                else if (str.charAt(i) == ' ')
-                {
-                    i++;
-                    continue;
-                }
-
-
-
-                else
-                {
-                    if (postfix.isEmpty())
-                    {
-                        postfix.push(op);
-                    }
-                    else
-                    {
-                        boolean loop = true;
-                        while (loop)
-                        {
-                            if (postfix.isEmpty() == true)
-                            {
-                                postfix.push(op);
-                                break;
-                            }
-
-                            String topStackValue = postfix.peek();
-                            char scannedChar = str.charAt(i);
-                            boolean higherPrecedence = false;
-                            //handles precedence of operators 
-                            if ((topStackValue.equals("*") || topStackValue.equals ("/")) && (scannedChar == '+' || scannedChar == '-'))
-                                higherPrecedence = true;
-                            else if ((topStackValue.equals("+") || topStackValue.equals("-")) && (scannedChar == '+' || scannedChar == '-'))
-                                higherPrecedence = true;
-                            else if ((topStackValue.equals("*") || topStackValue.equals("/")) && (scannedChar == '*' || scannedChar == '/'))
-                                higherPrecedence = true;
-                            else
-                                higherPrecedence = false;
-
-                            if (higherPrecedence == true)
-                            {
-                                String x = postfix.pop();
-                                pst = pst + x + "~";
-
-                            }
-                            else
-                            {
-                                postfix.push("" + scannedChar);
-                                loop = false;
-                            }
-                        }
-                    }
-                }
-                i++;
-        } // }
-        while (!(postfix.isEmpty()))
-        {
-            pst = pst + postfix.peek() + "~";
-            postfix.pop();
+    /**
+     * Makes evaluate() and evaluateDouble() go through tiered(), promoting the
+     * expression after the given number of evaluations, or turns tiering off.
+     * While tiering is on, the backend and optimizer settings do not affect
+     * evaluate().
+     *
+     * @param threshold Evaluations before promotion, or 0 to evaluate the
+     *        result of compile() instead
+     * @throws IllegalArgumentException If threshold is negative
+     */
+    public void setTiering(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        if (threshold != tierThreshold) {
+            tierThreshold = threshold;
+            tiered = null;
         }
-
-        return pst;
     }
 
-
-
-    
-    private float postfixToSolution (String str) //converts postfix notation to a value 
-    {
-        Stack<Float> operand = new Stack<Float>();
-        Stack<Character> operand_excep= new Stack<Character>();
-        StringTokenizer str_token = new StringTokenizer(str, "~");
-
-        while (str_token.hasMoreElements())
-        {
-            String op = str_token.nextToken();
-
-            if (Character.isDigit(op.charAt(0)))
-            {
-                Float x = Float.parseFloat(op);
-                operand.push(x);
-            }
-            else
-            {
-            	if (operand.size()==1)
-            	{
-            		if (op.charAt(0) == '-')
-            		{
-            			Float operand1 = operand.peek();
-            			operand.pop();
-            			Float operand2 = (float)0;
-            			char operator = op.charAt(0);
-            			Float retValue = findValue(operand1, operand2, operator);
-            			operand.push(retValue);
-            		}
-            		else
-            		{
-            			operand_excep.push(op.charAt(0));
-            		}
-            	}
-            	else if (!operand_excep.isEmpty())
-            	{
-            		char operator = operand_excep.pop();
-            		Float operand1 = operand.peek();
-            		operand.pop();
-            		Float operand2 = operand.peek();
-            		Float retValue = findValue(operand1, operand2, operator);
-            		operand.pop();
-            		if (op.charAt(0)=='-')
-            			operand.push(0-retValue);
-            		else
-            			operand.push(0-retValue);;
-            	}
-            	else
-            	{
-            		Float operand1 = operand.peek();
-            		operand.pop();
-            		Float operand2 = operand.peek();
-            		char operator = op.charAt(0);
-            		Float retValue = findValue(operand1, operand2, operator);
-            		operand.pop();
-            		operand.push(retValue);
-            	}
-            }
+    /**
+     * Selects the backend used by compile(). Takes effect the next time the
+     * expression is compiled.
+     *
+     * @param backend Backend
+     */
+    public void setBackend(CompiledExpression.Backend backend) {
+        if (backend != this.backend) {
+            this.backend = backend;
+            compiled = null;
+            tiered = null;
         }
-
-        return operand.peek();
     }
 
-    private Float findValue(Float a, Float b, char x)
-    {
-        if (x == '+')
-            return a + b;
-        else if (x == '-')
-            return b - a;
-        else if (x == '*')
-            return a * b;
-        else
-            return b / a;
+    /**
+     * Turns the optimizer on or off for compile(). When on, constant subterms
+     * are folded, identity operations such as x*1 are dropped, and repeated
+     * subterms are computed only once. Takes effect the next time the expression
+     * is compiled.
+     *
+     * @param optimize True to optimize
+     */
+    public void setOptimize(boolean optimize) {
+        if (optimize != this.optimize) {
+            this.optimize = optimize;
+            compiled = null;
+            tiered = null;
+        }
     }
 
-    private ArrayList<Integer> getOpeningBracketIndexList(String expression) { //utility method 
-        ArrayList<Integer> openingIndex = new ArrayList<Integer>();
-        ArrayList<Integer> closingIndex = new ArrayList<Integer>();
-        // COMPLETE THIS METHOD
-        Stack<Bracket> brackets = new Stack<Bracket>();
-        Stack<Bracket> close = new Stack<Bracket>();
-        for (int i = 0; i < expression.length(); i++)
-        {
-            if (expression.charAt(i) == '(' || expression.charAt(i) == '[')
-            {
-                    brackets.push(new Bracket(expression.charAt(i), i));
-                    openingIndex.add(i);
-            }
-
-            else if (expression.charAt(i) == ')')
-            {
-
-                if (brackets.peek().ch == '(')
-                {
-                    brackets.pop();
-                    if (brackets.isEmpty())
-                    {
-                        closingIndex.add(i);
-                        while (!close.isEmpty())
-                        {
-                            closingIndex.add(close.pop().pos);
-                        }
-                    }
-                    else
-                        close.push(new Bracket(expression.charAt(i), i));
-                }
-
-            }
-            else if (expression.charAt(i) == ']')
-            {
-
-                if (brackets.peek().ch == '[')
-                {
-                    brackets.pop();
-                    if (brackets.isEmpty())
-                    {
-                        closingIndex.add(i);
-                        while (!close.isEmpty())
-                        {
-                            closingIndex.add(close.pop().pos);
-                        }
-                    }
-                    else
-                        close.push(new Bracket(expression.charAt(i), i));
-                }
-
-            }
-            else
-                continue;
+    /**
+     * Selects the arithmetic used by compile(). TYPED, the default, computes
+     * integer subterms exactly and the rest in double; FLOAT reproduces the
+     * results of the original evaluator. Takes effect the next time the
+     * expression is compiled.
+     *
+     * @param arithmetic Arithmetic
+     */
+    public void setArithmetic(CompiledExpression.Arithmetic arithmetic) {
+        if (arithmetic != this.arithmetic) {
+            this.arithmetic = arithmetic;
+            compiled = null;
+            tiered = null;
         }
-
-        return openingIndex;
-        // FOLLOWING LINE ADDED TO MAKE COMPILER HAPPY
-
     }
 
+    /**
+     * Lets evaluate() and evaluateDouble() spread an expression of at least
+     * CompiledExpression.DEFAULT_PARALLEL_NODES nodes over several threads,
+     * see CompiledExpression.evaluateParallel. The result is the same either
+     * way. Does not apply while tiering is on.
+     *
+     * @param parallel True to evaluate in parallel
+     */
+    public void setParallel(boolean parallel) {
+        setParallel(parallel ? CompiledExpression.DEFAULT_PARALLEL_NODES : 0);
+    }
 
-
-    private ArrayList<Integer> getClosingBracketIndexList(String expression) { //utility method
-        ArrayList<Integer> openingIndex = new ArrayList<Integer>();
-        ArrayList<Integer> closingIndex = new ArrayList<Integer>();
-        // COMPLETE THIS METHOD
-        Stack<Bracket> brackets = new Stack<Bracket>();
-        Stack<Bracket> close = new Stack<Bracket>();
-        for (int i = 0; i < expression.length(); i++)
-        {
-            if (expression.charAt(i) == '(' || expression.charAt(i) == '[')
-            {
-                    brackets.push(new Bracket(expression.charAt(i), i));
-                    openingIndex.add(i);
-            }
-
-            else if (expression.charAt(i) == ')')
-            {
-
-                if (brackets.peek().ch == '(')
-                {
-                    brackets.pop();
-                    if (brackets.isEmpty())
-                    {
-                        closingIndex.add(i);
-                        while (!close.isEmpty())
-                        {
-                            closingIndex.add(close.pop().pos);
-                        }
-                    }
-                    else
-                        close.push(new Bracket(expression.charAt(i), i));
-                }
-
-            }
-            else if (expression.charAt(i) == ']')
-            {
-
-                if (brackets.peek().ch == '[')
-                {
-                    brackets.pop();
-                    if (brackets.isEmpty())
-                    {
-                        closingIndex.add(i);
-                        while (!close.isEmpty())
-                        {
-                            closingIndex.add(close.pop().pos);
-                        }
-                    }
-                    else
-                        close.push(new Bracket(expression.charAt(i), i));
-                }
-
-            }
-            else
-                continue;
+    /**
+     * Lets evaluate() and evaluateDouble() spread an expression over several
+     * threads once it has at least the given number of nodes, or turns
+     * parallel evaluation off. The result is the same either way. Does not
+     * apply while tiering is on.
+     *
+     * @param minNodes Fewest nodes for which several threads are used, or 0
+     *        to always evaluate on one
+     * @throws IllegalArgumentException If minNodes is negative
+     */
+    public void setParallel(int minNodes) {
+        if (minNodes < 0) {
+            throw new IllegalArgumentException("node count must not be negative: " + minNodes);
         }
+        parallelNodes = minNodes;
+    }
 
-        return closingIndex;
-        // FOLLOWING LINE ADDED TO MAKE COMPILER HAPPY
+    /**
+     * Evaluates the expression with the values loaded by loadSymbolValues.
+     * In typed arithmetic the result is rounded to float; see evaluateDouble.
+     * An Expression is not thread-safe; to evaluate from several threads, share
+     * the result of compile() and give each thread its own copy of the values.
+     *
+     * @return Result of evaluation
+     */
+    public float evaluate() {
+        if (tierThreshold > 0) {
+            return tiered().evaluate(values);
+        }
+        CompiledExpression ce = compile();
+        return parallelNodes > 0 ? ce.evaluateParallel(values, parallelNodes) : ce.evaluate(values);
+    }
 
+    /**
+     * Evaluates the expression with the values loaded by loadSymbolValues,
+     * without rounding the result to float
+     *
+     * @return Result of evaluation
+     */
+    public double evaluateDouble() {
+        if (tierThreshold > 0) {
+            return tiered().evaluateDouble(values);
+        }
+        CompiledExpression ce = compile();
+        return parallelNodes > 0 ? ce.evaluateDoubleParallel(values, parallelNodes) : ce.evaluateDouble(values);
     }
 
+    /**
+     * Evaluates an element-wise expression, one that refers to whole arrays as
+     * in A[] + B[]*c, for every index with the values loaded by
+     * loadSymbolValues; see CompiledExpression.evaluateArray
+     *
+     * @return Result for each index
+     * @throws IllegalStateException If the expression is not element-wise
+     */
+    public float[] evaluateArray() {
+        return compile().evaluateArray(values);
+    }
 
+    /**
+     * Evaluates an element-wise expression for every index without rounding
+     * the results to float
+     *
+     * @return Result for each index
+     * @throws IllegalStateException If the expression is not element-wise
+     */
+    public double[] evaluateDoubleArray() {
+        return compile().evaluateDoubleArray(values);
+    }
 
     public void printScalars() {
         for (ScalarSymbol ss: scalars) {
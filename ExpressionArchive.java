@@ -0,0 +1,402 @@
+package apps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Stores compiled expressions in a compact binary file, so that a process can
+ * load thousands of them at startup without matching brackets, scanning for
+ * symbols or parsing. Loading maps the file into memory and rebuilds each
+ * evaluation tree directly from its stored nodes.
+ * <p>
+ * The file starts with a fixed header:
+ * <pre>
+ *    magic     int    "EXPA"
+ *    version   short  VERSION
+ *    reserved  short  0
+ *    count     int    number of expressions
+ *    checksum  int    CRC-32 of everything after the header
+ * </pre>
+ * followed by a table of every distinct string used (expression texts and
+ * symbol names), each as a length and UTF-8 bytes, and then one record per
+ * expression: the string numbers of its text and symbol names, its arithmetic,
+ * and its nodes in postorder, children before parents, with the root last.
+ * Each node is a kind byte, which for a binary node includes the operator,
+ * and its operands: a slot number, how far back each child is, or the value
+ * of a constant. Counts, numbers and distances are variable-length, seven bits
+ * per byte with the high bit set on all but the last byte, so most take one
+ * byte; integral constants are stored the same way after zigzag encoding.
+ * Real constants and the fixed header are big-endian.
+ * <p>
+ * A file with another magic number or version, a bad checksum or an
+ * inconsistent record is rejected with an IOException; the caller can then
+ * fall back to compiling the text.
+ */
+public class ExpressionArchive {
+
+    /**
+     * "EXPA" in ASCII
+     */
+    static final int MAGIC = 0x45585041;
+
+    /**
+     * Format version, raised whenever the layout or the meaning of a node changes
+     */
+    static final short VERSION = 1;
+
+    /**
+     * Size of the fixed header
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Node kinds. A binary node is BINARY plus the position of its operator in
+     * OPERATORS.
+     */
+    private static final byte INTEGRAL = 0;
+    private static final byte REAL = 1;
+    private static final byte SCALAR = 2;
+    private static final byte ELEMENT = 3;
+    private static final byte NEGATE = 4;
+    private static final byte INDEX = 5;
+    private static final byte BINARY = 6;
+
+    private static final String OPERATORS = "+-*/";
+
+    private ExpressionArchive() {
+    }
+
+    /**
+     * Writes compiled expressions to a file, replacing it if it exists
+     *
+     * @param path File to write
+     * @param expressions Expressions, in the order read() returns them
+     * @throws IOException If the file cannot be written
+     */
+    public static void write(Path path, List<CompiledExpression> expressions)
+    throws IOException {
+        ArrayList<String> strings = new ArrayList<String>();
+        HashMap<String,Integer> stringIds = new HashMap<String,Integer>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        for (CompiledExpression ce : expressions) {
+            writeVarint(out, string(ce.expr, strings, stringIds));
+            out.writeByte(ce.arithmetic.ordinal());
+            writeVarint(out, ce.scalarNames.length);
+            for (String name : ce.scalarNames) {
+                writeVarint(out, string(name, strings, stringIds));
+            }
+            writeVarint(out, ce.arrayNames.length);
+            for (String name : ce.arrayNames) {
+                writeVarint(out, string(name, strings, stringIds));
+            }
+            writeVarint(out, ce.sourceNodeCount);
+            writeNodes(ce.root, out);
+        }
+        out.flush();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream table = new DataOutputStream(body);
+        writeVarint(table, strings.size());
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(table, bytes.length);
+            table.write(bytes);
+        }
+        records.writeTo(table);
+        table.flush();
+
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short)0)
+            .putInt(expressions.size()).putInt((int)crc.getValue()).flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer contents = ByteBuffer.wrap(bytes);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        }
+    }
+
+    private static int string(String s, ArrayList<String> strings, HashMap<String,Integer> ids) {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s);
+        }
+        return id;
+    }
+
+    /**
+     * Writes the nodes of a tree or DAG in postorder, each shared node once
+     */
+    private static void writeNodes(Node root, DataOutputStream out)
+    throws IOException {
+        ArrayList<Node> order = Optimizer.postorder(root);
+        IdentityHashMap<Node,Integer> index = new IdentityHashMap<Node,Integer>(order.size());
+        for (int i = 0; i < order.size(); i++) {
+            index.put(order.get(i), i);
+        }
+        writeVarint(out, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            Node node = order.get(i);
+            if (node instanceof Node.Constant) {
+                Node.Constant c = (Node.Constant)node;
+                if (c.integral()) {
+                    out.writeByte(INTEGRAL);
+                    writeVarint(out, (c.exact << 1) ^ (c.exact >> 63));
+                } else {
+                    out.writeByte(REAL);
+                    out.writeFloat(c.value);
+                    out.writeDouble(c.real);
+                }
+            } else if (node instanceof Node.Scalar) {
+                out.writeByte(SCALAR);
+                writeVarint(out, ((Node.Scalar)node).slot);
+            } else if (node instanceof Node.Index) {
+                out.writeByte(INDEX);
+            } else if (node instanceof Node.Element) {
+                out.writeByte(ELEMENT);
+                writeVarint(out, ((Node.Element)node).slot);
+                writeVarint(out, i - index.get(((Node.Element)node).subscript));
+            } else if (node instanceof Node.Negate) {
+                out.writeByte(NEGATE);
+                writeVarint(out, i - index.get(((Node.Negate)node).operand));
+            } else {
+                Node.Binary binary = (Node.Binary)node;
+                out.writeByte(BINARY + OPERATORS.indexOf(binary.op));
+                writeVarint(out, i - index.get(binary.left));
+                writeVarint(out, i - index.get(binary.right));
+            }
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long v)
+    throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int)(v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    /**
+     * Reads back the expressions in a file, to be run by the interpreter
+     *
+     * @param path File written by write()
+     * @return Compiled expressions, in the order they were written
+     * @throws IOException If the file cannot be read, is not an archive of this
+     *         version, or is corrupt
+     */
+    public static List<CompiledExpression> read(Path path)
+    throws IOException {
+        return read(path, CompiledExpression.Backend.INTERPRETER);
+    }
+
+    /**
+     * Reads back the expressions in a file
+     *
+     * @param path File written by write()
+     * @param backend Backend to compile each expression for
+     * @return Compiled expressions, in the order they were written
+     * @throws IOException If the file cannot be read, is not an archive of this
+     *         version, or is corrupt
+     */
+    public static List<CompiledExpression> read(Path path, CompiledExpression.Backend backend)
+    throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("not an expression archive: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        try {
+            return read(buffer, backend);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                | NegativeArraySizeException e) {
+            throw new IOException("corrupt expression archive: " + path, e);
+        }
+    }
+
+    private static List<CompiledExpression> read(ByteBuffer buffer, CompiledExpression.Backend backend)
+    throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not an expression archive");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException("unsupported expression archive version " + version
+                + ", expected " + VERSION);
+        }
+        buffer.getShort();
+        int count = buffer.getInt();
+        int checksum = buffer.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int)crc.getValue() != checksum) {
+            throw new IOException("expression archive checksum mismatch");
+        }
+
+        String[] strings = new String[varint(buffer)];
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < strings.length; i++) {
+            int length = varint(buffer);
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        CompiledExpression.Arithmetic[] arithmetics = CompiledExpression.Arithmetic.values();
+        ArrayList<CompiledExpression> expressions = new ArrayList<CompiledExpression>();
+        for (int e = 0; e < count; e++) {
+            String expr = strings[varint(buffer)];
+            byte ordinal = buffer.get();
+            if (ordinal < 0 || ordinal >= arithmetics.length) {
+                throw new IOException("bad arithmetic " + ordinal + " in expression archive");
+            }
+            CompiledExpression.Arithmetic arithmetic = arithmetics[ordinal];
+            String[] scalarNames = new String[varint(buffer)];
+            for (int i = 0; i < scalarNames.length; i++) {
+                scalarNames[i] = strings[varint(buffer)];
+            }
+            String[] arrayNames = new String[varint(buffer)];
+            for (int i = 0; i < arrayNames.length; i++) {
+                arrayNames[i] = strings[varint(buffer)];
+            }
+            int sourceNodeCount = varint(buffer);
+            Node[] nodes = new Node[varint(buffer)];
+            IdentityHashMap<Node,Integer> uses = new IdentityHashMap<Node,Integer>(nodes.length);
+            Node root = readNodes(buffer, nodes, scalarNames.length, arrayNames.length, uses);
+            expressions.add(new CompiledExpression(expr, scalarNames, arrayNames, root, uses,
+                sourceNodeCount, backend, arithmetic));
+        }
+        if (buffer.hasRemaining()) {
+            throw new IOException("trailing bytes in expression archive");
+        }
+        return expressions;
+    }
+
+    /**
+     * Rebuilds a tree from its nodes in postorder, checking that every slot is in
+     * range and every child precedes its parent. Counts the uses of each node
+     * on the way, as Optimizer.useCounts would.
+     */
+    private static Node readNodes(ByteBuffer buffer, Node[] nodes, int scalarCount, int arrayCount,
+            IdentityHashMap<Node,Integer> uses)
+    throws IOException {
+        if (nodes.length == 0) {
+            throw new IOException("empty expression in archive");
+        }
+        int[] useCount = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            byte kind = buffer.get();
+            switch (kind) {
+                case INTEGRAL:
+                    long zigzag = varlong(buffer);
+                    long exact = (zigzag >>> 1) ^ -(zigzag & 1);
+                    nodes[i] = new Node.Constant((float)exact, (double)exact, exact, true);
+                    break;
+                case REAL:
+                    nodes[i] = new Node.Constant(buffer.getFloat(), buffer.getDouble(), 0, false);
+                    break;
+                case SCALAR:
+                    nodes[i] = new Node.Scalar(slot(buffer, scalarCount));
+                    break;
+                case INDEX:
+                    nodes[i] = new Node.Index();
+                    break;
+                case ELEMENT:
+                    int slot = slot(buffer, arrayCount);
+                    nodes[i] = new Node.Element(slot, child(buffer, nodes, useCount, i));
+                    break;
+                case NEGATE:
+                    nodes[i] = new Node.Negate(child(buffer, nodes, useCount, i));
+                    break;
+                default:
+                    if (kind < BINARY || kind >= BINARY + OPERATORS.length()) {
+                        throw new IOException("bad node kind " + kind + " in expression archive");
+                    }
+                    Node left = child(buffer, nodes, useCount, i);
+                    Node right = child(buffer, nodes, useCount, i);
+                    nodes[i] = new Node.Binary(OPERATORS.charAt(kind - BINARY), left, right);
+                    break;
+            }
+        }
+        useCount[nodes.length - 1]++;
+        for (int i = 0; i < nodes.length; i++) {
+            if (useCount[i] == 0) {
+                throw new IOException("unused node in expression archive");
+            }
+            uses.put(nodes[i], useCount[i]);
+        }
+        return nodes[nodes.length - 1];
+    }
+
+    private static int slot(ByteBuffer buffer, int count)
+    throws IOException {
+        int slot = varint(buffer);
+        if (slot >= count) {
+            throw new IOException("bad symbol slot in expression archive");
+        }
+        return slot;
+    }
+
+    private static Node child(ByteBuffer buffer, Node[] nodes, int[] useCount, int parent)
+    throws IOException {
+        int distance = varint(buffer);
+        if (distance < 1 || distance > parent) {
+            throw new IOException("bad node reference in expression archive");
+        }
+        useCount[parent - distance]++;
+        return nodes[parent - distance];
+    }
+
+    /**
+     * Reads a variable-length number that must fit in a non-negative int
+     */
+    private static int varint(ByteBuffer buffer)
+    throws IOException {
+        long v = varlong(buffer);
+        if (v < 0 || v > Integer.MAX_VALUE) {
+            throw new IOException("number out of range in expression archive");
+        }
+        return (int)v;
+    }
+
+    private static long varlong(ByteBuffer buffer)
+    throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            v |= (long)(b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw new IOException("bad number in expression archive");
+    }
+}
@@ -0,0 +1,132 @@
+package apps;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe cache of compiled expressions, keyed by expression text. Entries
+ * are evicted least recently used first once the cache holds more than its
+ * capacity. Compiled expressions are immutable, so one entry can be shared by
+ * every caller; each caller evaluates it with its own Bindings.
+ */
+public class ExpressionCache {
+
+    /**
+     * Most entries kept
+     */
+    private final int capacity;
+
+    /**
+     * Backend used for newly compiled entries
+     */
+    private final CompiledExpression.Backend backend;
+
+    /**
+     * Entries in access order, least recently used first. Guarded by this.
+     */
+    private final LinkedHashMap<String,CompiledExpression> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Initializes an empty cache that compiles with the interpreter backend
+     *
+     * @param capacity Most entries kept
+     */
+    public ExpressionCache(int capacity) {
+        this(capacity, CompiledExpression.Backend.INTERPRETER);
+    }
+
+    /**
+     * Initializes an empty cache
+     *
+     * @param capacity Most entries kept
+     * @param backend Backend used for newly compiled entries
+     */
+    public ExpressionCache(int capacity, CompiledExpression.Backend backend) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.backend = backend;
+        entries = new LinkedHashMap<String,CompiledExpression>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,CompiledExpression> eldest) {
+                if (size() > ExpressionCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled form of an expression, compiling it on a miss.
+     * Compilation happens outside the lock, so two threads that miss on the same
+     * text at once may both compile it; the first to finish wins.
+     *
+     * @param expr Expression
+     * @return Compiled expression
+     * @throws IllegalArgumentException If the expression is malformed
+     */
+    public CompiledExpression get(String expr) {
+        synchronized (this) {
+            CompiledExpression ce = entries.get(expr);
+            if (ce != null) {
+                hits.incrementAndGet();
+                return ce;
+            }
+        }
+        misses.incrementAndGet();
+        Expression expression = new Expression(expr);
+        expression.setBackend(backend);
+        CompiledExpression compiled = expression.compile();
+        synchronized (this) {
+            CompiledExpression existing = entries.putIfAbsent(expr, compiled);
+            return existing != null ? existing : compiled;
+        }
+    }
+
+    /**
+     * @return Number of entries currently held
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all entries. The counters are not reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of lookups that found a compiled expression
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of lookups that had to compile
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of entries evicted to stay within capacity
+     */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return "ExpressionCache[size=" + size() + ", capacity=" + capacity + ", hits=" + hits()
+            + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+    }
+}
@@ -0,0 +1,346 @@
+package apps;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * Timings of the phases of expression processing, reported to an in-process
+ * listener and as JDK Flight Recorder events. When no listener is set and no
+ * recording is running, instrumented code pays one volatile read and a null
+ * check per phase; nothing is timed or allocated.
+ * <p>
+ * The events are apps.ExpressionPhase, with the phase, the expression and the
+ * duration; apps.ExpressionEvaluate, the same for each evaluation;
+ * apps.ExpressionCompiled, with the size, depth and symbol counts of each
+ * compiled expression; and apps.ExpressionPromoted, for each TieredExpression
+ * switched to its optimized form. apps.ExpressionEvaluate is off unless a
+ * recording enables it, since it would otherwise fire on every call. Events
+ * carry no stack trace, and only the first EXCERPT characters of the
+ * expression along with its length and hash code.
+ */
+public final class ExpressionMetrics {
+
+    /**
+     * Phases that are timed
+     */
+    public enum Phase {
+        /**
+         * Expression.isLegallyMatched
+         */
+        MATCH_BRACKETS,
+
+        /**
+         * Expression.buildSymbols
+         */
+        BUILD_SYMBOLS,
+
+        /**
+         * Expression.loadSymbolValues, either overload
+         */
+        LOAD_VALUES,
+
+        /**
+         * Parsing, optimizing and generating code for an expression
+         */
+        COMPILE,
+
+        /**
+         * One evaluation, or one batch of evaluations
+         */
+        EVALUATE,
+
+        /**
+         * Compiling the optimized form of a TieredExpression, on the background
+         * thread
+         */
+        PROMOTE
+    }
+
+    /**
+     * Receives metrics in process. Calls come from whichever thread ran the
+     * phase, possibly several at once, so implementations must be thread-safe
+     * and should return quickly.
+     */
+    public interface Listener {
+        /**
+         * Called when a phase ends
+         *
+         * @param phase Phase
+         * @param expr Expression the phase worked on
+         * @param nanos Elapsed time in nanoseconds
+         */
+        void phase(Phase phase, String expr, long nanos);
+
+        /**
+         * Called when an expression has been compiled
+         *
+         * @param expr Expression
+         * @param nodes Number of distinct nodes evaluated
+         * @param depth Depth of the evaluation tree
+         * @param scalars Number of scalar symbols
+         * @param arrays Number of array symbols
+         */
+        void compiled(String expr, int nodes, int depth, int scalars, int arrays);
+
+        /**
+         * Called when a TieredExpression has switched to its optimized form.
+         * Does nothing unless overridden.
+         *
+         * @param expr Expression
+         * @param invocations Evaluations run on the first tier
+         * @param backend Backend of the optimized form
+         */
+        default void promoted(String expr, long invocations, CompiledExpression.Backend backend) {
+        }
+    }
+
+    /**
+     * Number of characters of an expression recorded in events
+     */
+    public static final int EXCERPT = 80;
+
+    /**
+     * Current listener, or null
+     */
+    private static volatile Listener listener;
+
+    /**
+     * Whether a running recording has the phase events enabled
+     */
+    private static volatile boolean recording;
+
+    /**
+     * Whether a running recording has the evaluate event enabled
+     */
+    private static volatile boolean recordingEvaluate;
+
+    /**
+     * Whether anything consumes metrics; the fast-path check
+     */
+    static volatile boolean enabled;
+
+    static {
+        try {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                public void recordingStateChanged(Recording r) {
+                    updateRecording();
+                }
+            });
+            // The listener only hears of later changes, not of a recording
+            // already running, such as one started by -XX:StartFlightRecording
+            updateRecording();
+        } catch (LinkageError | SecurityException e) {
+            // no jdk.jfr module, or no permission: listener only
+        }
+    }
+
+    private ExpressionMetrics() {
+    }
+
+    private static void updateRecording() {
+        recording = EventType.getEventType(PhaseEvent.class).isEnabled();
+        recordingEvaluate = EventType.getEventType(EvaluateEvent.class).isEnabled();
+        update();
+    }
+
+    private static void update() {
+        enabled = listener != null || recording || recordingEvaluate;
+    }
+
+    /**
+     * Sets the in-process listener, replacing any previous one
+     *
+     * @param l Listener, or null to stop reporting in process
+     */
+    public static void setListener(Listener l) {
+        listener = l;
+        update();
+    }
+
+    /**
+     * @return Current listener, or null
+     */
+    public static Listener listener() {
+        return listener;
+    }
+
+    /**
+     * Starts timing a phase
+     *
+     * @param phase Phase
+     * @return Timer to end when the phase is done, or null if nothing consumes
+     *         metrics
+     */
+    static Span begin(Phase phase) {
+        if (!enabled || phase == Phase.EVALUATE && listener == null && !recordingEvaluate) {
+            return null;
+        }
+        return new Span(phase);
+    }
+
+    /**
+     * @return The first EXCERPT characters of an expression, for an event
+     */
+    static String excerpt(String expr) {
+        return expr.length() <= EXCERPT ? expr : expr.substring(0, EXCERPT);
+    }
+
+    /**
+     * Reports a compiled expression
+     */
+    static void compiled(CompiledExpression ce) {
+        int depth = Optimizer.depth(ce.root);
+        Listener l = listener;
+        if (l != null) {
+            l.compiled(ce.expr, ce.nodeCount, depth, ce.scalarNames.length, ce.arrayNames.length);
+        }
+        if (recording) {
+            CompiledEvent event = new CompiledEvent();
+            event.expression = excerpt(ce.expr);
+            event.length = ce.expr.length();
+            event.hash = ce.expr.hashCode();
+            event.nodes = ce.nodeCount;
+            event.depth = depth;
+            event.scalars = ce.scalarNames.length;
+            event.arrays = ce.arrayNames.length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reports a TieredExpression switched to its optimized form
+     */
+    static void promoted(String expr, long invocations, CompiledExpression.Backend backend) {
+        Listener l = listener;
+        if (l != null) {
+            l.promoted(expr, invocations, backend);
+        }
+        if (recording) {
+            PromotedEvent event = new PromotedEvent();
+            event.expression = excerpt(expr);
+            event.length = expr.length();
+            event.hash = expr.hashCode();
+            event.invocations = invocations;
+            event.backend = backend.name();
+            event.commit();
+        }
+    }
+
+    /**
+     * Timing of one phase in progress
+     */
+    static final class Span {
+        private final Phase phase;
+        private final long start;
+        private final ExpressionEvent event;
+
+        private Span(Phase phase) {
+            this.phase = phase;
+            if (phase == Phase.EVALUATE ? recordingEvaluate : recording) {
+                event = phase == Phase.EVALUATE ? new EvaluateEvent() : new PhaseEvent(phase.name());
+                event.begin();
+            } else {
+                event = null;
+            }
+            start = System.nanoTime();
+        }
+
+        /**
+         * Ends the phase and reports it
+         *
+         * @param expr Expression the phase worked on
+         */
+        void end(String expr) {
+            long nanos = System.nanoTime() - start;
+            Listener l = listener;
+            if (l != null) {
+                l.phase(phase, expr, nanos);
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.expression = excerpt(expr);
+                    event.length = expr.length();
+                    event.hash = expr.hashCode();
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fields shared by the events: the start of the expression, its length and
+     * its hash code, which tells apart expressions with the same start
+     */
+    @StackTrace(false)
+    abstract static class ExpressionEvent extends Event {
+        @Label("Expression")
+        String expression;
+
+        @Label("Length")
+        int length;
+
+        @Label("Hash")
+        int hash;
+    }
+
+    @Name("apps.ExpressionPhase")
+    @Label("Expression Phase")
+    @Category("Expressions")
+    @Description("One phase of processing an expression, other than evaluation")
+    static final class PhaseEvent extends ExpressionEvent {
+        @Label("Phase")
+        String phase;
+
+        PhaseEvent(String phase) {
+            this.phase = phase;
+        }
+    }
+
+    @Name("apps.ExpressionEvaluate")
+    @Label("Expression Evaluate")
+    @Category("Expressions")
+    @Description("One evaluation, or one batch of evaluations, of an expression")
+    @Enabled(false)
+    static final class EvaluateEvent extends ExpressionEvent {
+    }
+
+    @Name("apps.ExpressionCompiled")
+    @Label("Expression Compiled")
+    @Category("Expressions")
+    @Description("Size and shape of a compiled expression")
+    static final class CompiledEvent extends ExpressionEvent {
+        @Label("Nodes")
+        int nodes;
+
+        @Label("Depth")
+        int depth;
+
+        @Label("Scalars")
+        int scalars;
+
+        @Label("Arrays")
+        int arrays;
+    }
+
+    @Name("apps.ExpressionPromoted")
+    @Label("Expression Promoted")
+    @Category("Expressions")
+    @Description("Tiered expression switched to its optimized form")
+    static final class PromotedEvent extends ExpressionEvent {
+        @Label("Invocations")
+        long invocations;
+
+        @Label("Backend")
+        String backend;
+    }
+}
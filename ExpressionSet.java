@@ -0,0 +1,259 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Scanner;
+import java.util.Set;
+
+/**
+ * Several expressions compiled together against one symbol table. Each symbol
+ * gets one slot however many expressions use it, so values are loaded once for
+ * the whole set. The expressions are parsed into a single DAG in which any
+ * subexpression that occurs more than once, in one expression or across
+ * several, is one shared node. One pass over the DAG then computes every
+ * result, and each shared node is computed only once.
+ * <p>
+ * The DAG is always optimized as described in Optimizer, since merging common
+ * subexpressions is the point of a set. Like CompiledExpression, an
+ * ExpressionSet is immutable once built, apart from the values it loads; to
+ * evaluate from several threads, give each its own Bindings.
+ */
+public class ExpressionSet {
+
+    /**
+     * Source text of each expression
+     */
+    private final String[] exprs;
+
+    /**
+     * Slots of the symbols of every expression
+     */
+    private final SymbolTable symbols;
+
+    /**
+     * Arithmetic used for evaluation
+     */
+    private final CompiledExpression.Arithmetic arithmetic;
+
+    /**
+     * Root of each expression in the shared DAG
+     */
+    final Node[] roots;
+
+    /**
+     * Number of nodes in the parsed expressions, and distinct nodes in the DAG
+     */
+    private final int sourceNodeCount;
+    private final int nodeCount;
+
+    /**
+     * Program computing every root in one run
+     */
+    private final Program program;
+
+    /**
+     * Symbol values loaded by loadSymbolValues
+     */
+    private final Bindings values;
+
+    /**
+     * Compiles a set of expressions in typed arithmetic
+     *
+     * @param exprs Expressions
+     * @throws IllegalArgumentException If an expression is malformed
+     */
+    public ExpressionSet(List<String> exprs) {
+        this(exprs, CompiledExpression.Arithmetic.TYPED);
+    }
+
+    /**
+     * Compiles a set of expressions
+     *
+     * @param exprs Expressions
+     * @param arithmetic Arithmetic to evaluate in
+     * @throws IllegalArgumentException If an expression is malformed or
+     *         element-wise
+     */
+    public ExpressionSet(List<String> exprs, CompiledExpression.Arithmetic arithmetic) {
+        this.exprs = exprs.toArray(new String[0]);
+        this.arithmetic = arithmetic;
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.COMPILE);
+        symbols = new SymbolTable();
+        int[][] matchOf = new int[this.exprs.length][];
+        for (int i = 0; i < this.exprs.length; i++) {
+            matchOf[i] = Expression.matchBrackets(this.exprs[i]);
+            if (matchOf[i] == null) {
+                throw new IllegalArgumentException("brackets not matched in: " + this.exprs[i]);
+            }
+            symbols.addSymbols(this.exprs[i]);
+        }
+        Node[] parsed = new Node[this.exprs.length];
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = new Parser(this.exprs[i], symbols, matchOf[i]).parse();
+        }
+        boolean typed = arithmetic == CompiledExpression.Arithmetic.TYPED;
+        int count = 0;
+        for (Node root : parsed) {
+            count += Optimizer.countNodes(root);
+        }
+        sourceNodeCount = count;
+        roots = Optimizer.optimize(parsed, typed);
+        Set<Node> nodes = Optimizer.useCounts(roots).keySet();
+        for (Node node : nodes) {
+            if (node instanceof Node.Index) {
+                throw new IllegalArgumentException("element-wise expressions cannot be in a set");
+            }
+        }
+        nodeCount = nodes.size();
+        program = Program.compile(roots, typed);
+        values = symbols.newBindings();
+        if (span != null) {
+            span.end(toString());
+        }
+    }
+
+    /**
+     * @return Number of expressions
+     */
+    public int size() {
+        return exprs.length;
+    }
+
+    /**
+     * Returns one expression of the set
+     *
+     * @param i Position of the expression
+     * @return Source text
+     */
+    public String expression(int i) {
+        return exprs[i];
+    }
+
+    /**
+     * @return Copy of the symbols used by the expressions, each with its slot;
+     *         adding to it does not change the set
+     */
+    public SymbolTable symbols() {
+        return symbols.copy();
+    }
+
+    /**
+     * @return Arithmetic the expressions are evaluated in
+     */
+    public CompiledExpression.Arithmetic arithmetic() {
+        return arithmetic;
+    }
+
+    /**
+     * @return Total number of nodes in the parsed expressions
+     */
+    public int sourceNodeCount() {
+        return sourceNodeCount;
+    }
+
+    /**
+     * @return Number of distinct nodes evaluated, after folding and merging
+     */
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return Values loaded by loadSymbolValues, which evaluate() uses
+     */
+    public Bindings values() {
+        return values;
+    }
+
+    /**
+     * Creates empty bindings sized for this set
+     *
+     * @return New bindings, with all scalars zero and all arrays null
+     */
+    public Bindings newBindings() {
+        return symbols.newBindings();
+    }
+
+    /**
+     * Creates bindings sized for this set that fetch values from a provider as
+     * the expressions read them
+     *
+     * @param provider Source of values
+     * @return New bindings, with nothing fetched yet
+     */
+    public Bindings newBindings(SymbolProvider provider) {
+        return symbols.newBindings(provider, Bindings.DEFAULT_ELEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * Loads values for the symbols of every expression, in the format of
+     * Expression.loadSymbolValues(Scanner)
+     *
+     * @param sc Scanner for values input
+     * @throws IOException If there is a problem with the input
+     */
+    public void loadSymbolValues(Scanner sc)
+    throws IOException {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.LOAD_VALUES);
+        Expression.loadValues(sc, symbols, values);
+        if (span != null) {
+            span.end(toString());
+        }
+    }
+
+    /**
+     * Loads values for the symbols of every expression from a file, in the
+     * format of Expression.loadSymbolValues(Path)
+     *
+     * @param path File of values
+     * @throws IOException If there is a problem with the input
+     */
+    public void loadSymbolValues(Path path)
+    throws IOException {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.LOAD_VALUES);
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ValueLoader.load(in, symbols, values);
+        }
+        if (span != null) {
+            span.end(toString());
+        }
+    }
+
+    /**
+     * Evaluates every expression with the values loaded by loadSymbolValues
+     *
+     * @return Result of each expression, in order
+     */
+    public double[] evaluate() {
+        double[] out = new double[exprs.length];
+        evaluate(values, out);
+        return out;
+    }
+
+    /**
+     * Evaluates every expression in one pass. Apart from growing the stacks of
+     * a fresh Bindings object on its first use, this allocates nothing.
+     *
+     * @param b Symbol values
+     * @param out Receives the result of each expression, in order; in float
+     *        arithmetic these are float results, widened
+     * @throws IllegalArgumentException If out is shorter than size()
+     */
+    public void evaluate(Bindings b, double[] out) {
+        if (out.length < exprs.length) {
+            throw new IllegalArgumentException("expected room for " + exprs.length + " results");
+        }
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.EVALUATE);
+        program.evaluate(b, out);
+        if (span != null) {
+            span.end(toString());
+        }
+    }
+
+    public String toString() {
+        return "ExpressionSet[" + exprs.length + " expressions]";
+    }
+}
@@ -0,0 +1,406 @@
+package apps;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Re-evaluates a compiled expression after a few symbol values change, redoing
+ * only the work that depends on them. The value of every node is cached. Setting
+ * a symbol marks the nodes that read it, and all their ancestors, as dirty, and
+ * the next evaluation recomputes just the dirty nodes from the cached values of
+ * their children.
+ * <p>
+ * An array element read through a subscript depends both on the subscript and
+ * on the element it last selected. Changing the subscript's inputs dirties the
+ * read through the subscript subtree; changing an array element dirties only
+ * the reads that last selected that index.
+ * <p>
+ * Symbol values must be changed through this object, not directly in the
+ * bindings, or the cached values go stale.
+ * <p>
+ * If an evaluation throws, for example on a subscript out of bounds, the nodes
+ * not yet recomputed stay dirty and the next evaluation resumes with them.
+ * <p>
+ * Evaluation uses the arithmetic the expression was compiled for, so results
+ * match CompiledExpression.evaluate.
+ */
+public class IncrementalEvaluator {
+
+    private static final int CONSTANT = 0;
+    private static final int SCALAR = 1;
+    private static final int ELEMENT = 2;
+    private static final int NEGATE = 3;
+    private static final int BINARY = 4;
+
+    /**
+     * Symbol values being evaluated against
+     */
+    private final Bindings b;
+
+    /**
+     * Nodes in postorder, children before parents. The root is last.
+     */
+    private final int[] kind;
+    private final char[] op;
+    private final int[] slot;
+    private final int[] left;
+    private final int[] right;
+    private final int[][] parents;
+
+    /**
+     * Whether the expression uses typed arithmetic, and if so which nodes are
+     * integral
+     */
+    private final boolean typed;
+    private final boolean[] integral;
+
+    /**
+     * Cached value of every node: in float arithmetic in value, in typed
+     * arithmetic in exact for integral nodes and in real for the others
+     */
+    private final float[] value;
+    private final long[] exact;
+    private final double[] real;
+
+    /**
+     * Index each element read selected when last computed
+     */
+    private final int[] lastIndex;
+
+    /**
+     * Scalar nodes, by scalar slot
+     */
+    private final int[][] scalarReaders;
+
+    /**
+     * Element nodes, by array slot
+     */
+    private final int[][] arrayReaders;
+
+    /**
+     * Dirty nodes, in the order they were marked
+     */
+    private final boolean[] dirty;
+    private int[] dirtyList;
+    private int dirtyCount;
+
+    /**
+     * Number of nodes recomputed by the last evaluation
+     */
+    private int recomputed;
+
+    /**
+     * Initializes incremental evaluation of an expression. The first call to
+     * evaluate() computes every node.
+     *
+     * @param ce Compiled expression
+     * @param b Initial symbol values. Later changes must go through this object.
+     * @throws IllegalArgumentException If the expression is element-wise
+     */
+    public IncrementalEvaluator(CompiledExpression ce, Bindings b) {
+        if (ce.elementwise()) {
+            throw new IllegalArgumentException("element-wise expression: " + ce.expr);
+        }
+        this.b = b;
+        typed = ce.arithmetic == CompiledExpression.Arithmetic.TYPED;
+        Node[] order = Optimizer.postorder(ce.root).toArray(new Node[0]);
+        IdentityHashMap<Node,Integer> index = new IdentityHashMap<Node,Integer>(order.length);
+        for (int i = 0; i < order.length; i++) {
+            index.put(order[i], i);
+        }
+
+        int n = order.length;
+        kind = new int[n];
+        op = new char[n];
+        slot = new int[n];
+        left = new int[n];
+        right = new int[n];
+        value = new float[n];
+        exact = new long[n];
+        real = new double[n];
+        integral = new boolean[n];
+        lastIndex = new int[n];
+        int[] parentCount = new int[n];
+        int[] scalarCount = new int[ce.scalarNames.length];
+        int[] arrayCount = new int[ce.arrayNames.length];
+        Arrays.fill(left, -1);
+        Arrays.fill(right, -1);
+        for (int i = 0; i < n; i++) {
+            Node node = order[i];
+            integral[i] = node.integral();
+            if (node instanceof Node.Constant) {
+                kind[i] = CONSTANT;
+                value[i] = ((Node.Constant)node).value;
+                exact[i] = ((Node.Constant)node).exact;
+                real[i] = ((Node.Constant)node).real;
+            } else if (node instanceof Node.Scalar) {
+                kind[i] = SCALAR;
+                slot[i] = ((Node.Scalar)node).slot;
+                scalarCount[slot[i]]++;
+            } else if (node instanceof Node.Element) {
+                kind[i] = ELEMENT;
+                slot[i] = ((Node.Element)node).slot;
+                left[i] = index.get(((Node.Element)node).subscript);
+                arrayCount[slot[i]]++;
+            } else if (node instanceof Node.Negate) {
+                kind[i] = NEGATE;
+                left[i] = index.get(((Node.Negate)node).operand);
+            } else {
+                Node.Binary binary = (Node.Binary)node;
+                kind[i] = BINARY;
+                op[i] = binary.op;
+                left[i] = index.get(binary.left);
+                right[i] = index.get(binary.right);
+            }
+            if (left[i] >= 0) {
+                parentCount[left[i]]++;
+            }
+            if (right[i] >= 0 && right[i] != left[i]) {
+                parentCount[right[i]]++;
+            }
+        }
+
+        parents = new int[n][];
+        for (int i = 0; i < n; i++) {
+            parents[i] = new int[parentCount[i]];
+            parentCount[i] = 0;
+        }
+        scalarReaders = new int[scalarCount.length][];
+        for (int s = 0; s < scalarCount.length; s++) {
+            scalarReaders[s] = new int[scalarCount[s]];
+            scalarCount[s] = 0;
+        }
+        arrayReaders = new int[arrayCount.length][];
+        for (int a = 0; a < arrayCount.length; a++) {
+            arrayReaders[a] = new int[arrayCount[a]];
+            arrayCount[a] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            if (left[i] >= 0) {
+                parents[left[i]][parentCount[left[i]]++] = i;
+            }
+            if (right[i] >= 0 && right[i] != left[i]) {
+                parents[right[i]][parentCount[right[i]]++] = i;
+            }
+            if (kind[i] == SCALAR) {
+                scalarReaders[slot[i]][scalarCount[slot[i]]++] = i;
+            } else if (kind[i] == ELEMENT) {
+                arrayReaders[slot[i]][arrayCount[slot[i]]++] = i;
+            }
+        }
+
+        dirty = new boolean[n];
+        dirtyList = new int[n];
+        for (int i = 0; i < n; i++) {
+            dirty[i] = true;
+            dirtyList[i] = i;
+        }
+        dirtyCount = n;
+    }
+
+    /**
+     * Sets the value of a scalar symbol
+     *
+     * @param slot Slot of the scalar
+     * @param v New value
+     */
+    public void setScalar(int slot, int v) {
+        if (b.scalar(slot) == v) {
+            return;
+        }
+        b.setScalar(slot, v);
+        for (int node : scalarReaders[slot]) {
+            markDirty(node);
+        }
+    }
+
+    /**
+     * Sets one element of an array symbol. The element is written into the
+     * array storage itself, which Bindings.copy() shares between copies, so
+     * every copy of the bindings sees the change. Use setArray with a fresh
+     * array to change values for these bindings alone.
+     *
+     * @param slot Slot of the array
+     * @param index Index of the element
+     * @param v New value
+     */
+    public void setElement(int slot, int index, int v) {
+        if (b.element(slot, index) == v) {
+            return;
+        }
+        b.setElement(slot, index, v);
+        for (int node : arrayReaders[slot]) {
+            if (lastIndex[node] == index) {
+                markDirty(node);
+            }
+        }
+    }
+
+    /**
+     * Replaces all values of an array symbol
+     *
+     * @param slot Slot of the array
+     * @param values New values
+     */
+    public void setArray(int slot, int[] values) {
+        b.setArray(slot, values);
+        for (int node : arrayReaders[slot]) {
+            markDirty(node);
+        }
+    }
+
+    /**
+     * Marks a node and all its ancestors dirty. The nodes newly marked are
+     * appended to dirtyList, which doubles as the work list: the parents of
+     * each are marked in turn, so no recursion is needed however deep the
+     * expression.
+     */
+    private void markDirty(int node) {
+        if (dirty[node]) {
+            return;
+        }
+        int next = dirtyCount;
+        dirty[node] = true;
+        dirtyList[dirtyCount++] = node;
+        while (next < dirtyCount) {
+            for (int parent : parents[dirtyList[next++]]) {
+                if (!dirty[parent]) {
+                    dirty[parent] = true;
+                    dirtyList[dirtyCount++] = parent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates the expression, recomputing only the nodes affected by changes
+     * since the last evaluation
+     *
+     * @return Result of evaluation, rounded to float if it was computed in typed
+     *         arithmetic
+     */
+    public float evaluate() {
+        if (typed) {
+            return (float)evaluateDouble();
+        }
+        Arrays.sort(dirtyList, 0, dirtyCount);
+        int k = 0;
+        try {
+            for (; k < dirtyCount; k++) {
+                int i = dirtyList[k];
+                switch (kind[i]) {
+                    case CONSTANT:
+                        break;
+                    case SCALAR:
+                        value[i] = b.scalar(slot[i]);
+                        break;
+                    case ELEMENT:
+                        lastIndex[i] = (int)Math.floor(value[left[i]]);
+                        value[i] = b.element(slot[i], lastIndex[i]);
+                        break;
+                    case NEGATE:
+                        value[i] = -value[left[i]];
+                        break;
+                    default:
+                        float l = value[left[i]];
+                        float r = value[right[i]];
+                        switch (op[i]) {
+                            case '+': value[i] = l + r; break;
+                            case '-': value[i] = l - r; break;
+                            case '*': value[i] = l * r; break;
+                            default:  value[i] = l / r; break;
+                        }
+                        break;
+                }
+                dirty[i] = false;
+            }
+        } finally {
+            // Keep what is still dirty: after an exception, the node that threw
+            // and every node after it
+            System.arraycopy(dirtyList, k, dirtyList, 0, dirtyCount - k);
+            dirtyCount -= k;
+            recomputed = k;
+        }
+        return value[value.length - 1];
+    }
+
+    /**
+     * Evaluates the expression without rounding the result to float,
+     * recomputing only the nodes affected by changes since the last evaluation
+     *
+     * @return Result of evaluation
+     */
+    public double evaluateDouble() {
+        if (!typed) {
+            return evaluate();
+        }
+        Arrays.sort(dirtyList, 0, dirtyCount);
+        int k = 0;
+        try {
+            for (; k < dirtyCount; k++) {
+                int i = dirtyList[k];
+                switch (kind[i]) {
+                    case CONSTANT:
+                        break;
+                    case SCALAR:
+                        exact[i] = b.scalar(slot[i]);
+                        break;
+                    case ELEMENT:
+                        int s = left[i];
+                        lastIndex[i] = integral[s] ? Node.index(exact[s]) : (int)Math.floor(real[s]);
+                        exact[i] = b.element(slot[i], lastIndex[i]);
+                        break;
+                    case NEGATE:
+                        if (integral[i]) {
+                            exact[i] = -exact[left[i]];
+                        } else {
+                            real[i] = -real[left[i]];
+                        }
+                        break;
+                    default:
+                        if (integral[i]) {
+                            long l = exact[left[i]];
+                            long r = exact[right[i]];
+                            switch (op[i]) {
+                                case '+': exact[i] = l + r; break;
+                                case '-': exact[i] = l - r; break;
+                                default:  exact[i] = l * r; break;
+                            }
+                        } else {
+                            double l = realValue(left[i]);
+                            double r = realValue(right[i]);
+                            switch (op[i]) {
+                                case '+': real[i] = l + r; break;
+                                case '-': real[i] = l - r; break;
+                                case '*': real[i] = l * r; break;
+                                default:  real[i] = l / r; break;
+                            }
+                        }
+                        break;
+                }
+                dirty[i] = false;
+            }
+        } finally {
+            // Keep what is still dirty: after an exception, the node that threw
+            // and every node after it
+            System.arraycopy(dirtyList, k, dirtyList, 0, dirtyCount - k);
+            dirtyCount -= k;
+            recomputed = k;
+        }
+        return realValue(real.length - 1);
+    }
+
+    /**
+     * Cached value of a node in typed arithmetic, as a double
+     */
+    private double realValue(int node) {
+        return integral[node] ? exact[node] : real[node];
+    }
+
+    /**
+     * @return Number of nodes recomputed by the last call to evaluate()
+     */
+    public int recomputed() {
+        return recomputed;
+    }
+}
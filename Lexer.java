@@ -0,0 +1,166 @@
+package apps;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits expression text into tokens without copying it. Each token is a span
+ * of the text, recorded as its kind and its start and end positions in
+ * primitive arrays, so tokenizing allocates nothing once the arrays have grown
+ * to fit; names are only turned into Strings when they enter a SymbolTable.
+ * The same lexer is used to find the symbols of an expression and to parse it,
+ * so both agree on what a name is. A lexer can be reused for any number of
+ * texts, but not by two threads at once.
+ * <p>
+ * Spaces and tabs separate tokens and are skipped. A name is a letter followed
+ * by letters and digits, and a number is a run of digits and dots. Every other
+ * character is a token of its own.
+ */
+class Lexer {
+
+    /**
+     * Run of digits and dots
+     */
+    static final byte NUMBER = 0;
+
+    /**
+     * Letter followed by letters and digits
+     */
+    static final byte NAME = 1;
+
+    /**
+     * Any other single character, such as an operator or a bracket
+     */
+    static final byte SYMBOL = 2;
+
+    /**
+     * Text being tokenized
+     */
+    private CharSequence text;
+
+    /**
+     * Kind, start and end (exclusive) of each token
+     */
+    private byte[] kinds = new byte[0];
+    private int[] starts = new int[0];
+    private int[] ends = new int[0];
+    private int count = 0;
+
+    /**
+     * Tokenizes a text, replacing the tokens of any text tokenized before
+     *
+     * @param text Text
+     * @return Number of tokens
+     */
+    int tokenize(CharSequence text) {
+        this.text = text;
+        count = 0;
+        int length = text.length();
+        if (kinds.length < length / 2 + 16) {
+            kinds = new byte[length / 2 + 16];
+            starts = new int[kinds.length];
+            ends = new int[kinds.length];
+        }
+        int pos = 0;
+        while (pos < length) {
+            char ch = text.charAt(pos);
+            if (ch == ' ' || ch == '\t') {
+                pos++;
+                continue;
+            }
+            int start = pos++;
+            byte kind = SYMBOL;
+            if (Character.isLetter(ch)) {
+                kind = NAME;
+                while (pos < length && Character.isLetterOrDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            } else if (Character.isDigit(ch) || ch == '.') {
+                kind = NUMBER;
+                while (pos < length && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+            }
+            if (count == kinds.length) {
+                kinds = Arrays.copyOf(kinds, count * 2);
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            kinds[count] = kind;
+            starts[count] = start;
+            ends[count] = pos;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Tokenizes characters in place, without copying them into a String
+     *
+     * @param text Characters
+     * @return Number of tokens
+     */
+    int tokenize(char[] text) {
+        return tokenize(CharBuffer.wrap(text));
+    }
+
+    /**
+     * @return Text last tokenized
+     */
+    CharSequence text() {
+        return text;
+    }
+
+    /**
+     * @return Number of tokens in the text last tokenized
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * @param t Token number
+     * @return Kind of the token: NUMBER, NAME or SYMBOL
+     */
+    int kind(int t) {
+        return kinds[t];
+    }
+
+    /**
+     * @param t Token number
+     * @return Position of the first character of the token
+     */
+    int start(int t) {
+        return starts[t];
+    }
+
+    /**
+     * @param t Token number
+     * @return Position just after the last character of the token
+     */
+    int end(int t) {
+        return ends[t];
+    }
+
+    /**
+     * Returns the character of a SYMBOL token, or of the first character of any
+     * other token
+     *
+     * @param t Token number
+     * @return Character
+     */
+    char charAt(int t) {
+        return text.charAt(starts[t]);
+    }
+
+    /**
+     * Tells whether a token is a SYMBOL token of the given character
+     *
+     * @param t Token number, which may be count() or more
+     * @param ch Character
+     * @return True if there is such a token and it is ch
+     */
+    boolean is(int t, char ch) {
+        return t < count && kinds[t] == SYMBOL && text.charAt(starts[t]) == ch;
+    }
+}
@@ -0,0 +1,85 @@
+package apps;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Symbol provider holding its values in memory, for tests and for small
+ * symbol sets. It counts every fetch, so a test can check how often an
+ * evaluation, or a cache in front of this provider, went to the source.
+ * Thread-safe.
+ */
+public class MapSymbolProvider implements SymbolProvider {
+
+    private final ConcurrentHashMap<String,Integer> scalars = new ConcurrentHashMap<String,Integer>();
+    private final ConcurrentHashMap<String,int[]> arrays = new ConcurrentHashMap<String,int[]>();
+
+    private final AtomicLong scalarFetches = new AtomicLong();
+    private final AtomicLong elementFetches = new AtomicLong();
+
+    /**
+     * Sets the value of a scalar symbol
+     *
+     * @param name Name of the scalar
+     * @param value Value
+     * @return This provider
+     */
+    public MapSymbolProvider setScalar(String name, int value) {
+        scalars.put(name, value);
+        return this;
+    }
+
+    /**
+     * Sets the values of an array symbol. The array is used as is, not copied.
+     *
+     * @param name Name of the array
+     * @param values Values
+     * @return This provider
+     */
+    public MapSymbolProvider setArray(String name, int[] values) {
+        arrays.put(name, values);
+        return this;
+    }
+
+    public int scalar(String name) {
+        Integer value = scalars.get(name);
+        if (value == null) {
+            throw new NoSuchElementException("no scalar " + name);
+        }
+        scalarFetches.incrementAndGet();
+        return value;
+    }
+
+    public int arrayLength(String name) {
+        return array(name).length;
+    }
+
+    public int element(String name, int index) {
+        int[] values = array(name);
+        elementFetches.incrementAndGet();
+        return values[index];
+    }
+
+    private int[] array(String name) {
+        int[] values = arrays.get(name);
+        if (values == null) {
+            throw new NoSuchElementException("no array " + name);
+        }
+        return values;
+    }
+
+    /**
+     * @return Number of scalar values fetched
+     */
+    public long scalarFetches() {
+        return scalarFetches.get();
+    }
+
+    /**
+     * @return Number of array elements fetched
+     */
+    public long elementFetches() {
+        return elementFetches.get();
+    }
+}
@@ -0,0 +1,540 @@
+package apps;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of a compiled expression, so that evaluating it again
+ * with the same symbol values returns the earlier result instead of evaluating.
+ * Only the values the expression actually reads take part. The scalars it uses
+ * and the array elements at constant subscripts are known from the expression
+ * alone, and their values are hashed into the key. Which elements a computed
+ * subscript selects depends on the values, so the elements an evaluation reads
+ * at computed subscripts are recorded with its result, once each, and compared
+ * in the order they were first read on lookup: if each still holds the
+ * recorded value, evaluating again would read exactly the same elements and
+ * give the same result.
+ * <p>
+ * Results are evicted least recently used first once their estimated size
+ * exceeds a bound. Hits, misses, the time spent evaluating and the time the
+ * memo itself adds to each call are counted; timing every call would cost as
+ * much as a lookup, so one call in SAMPLE_INTERVAL, chosen at random, is
+ * timed, and the times of earlier windows count for less than recent ones.
+ * When most calls hit, misses alone would time too few evaluations, so one
+ * timed hit in SAMPLE_INTERVAL also evaluates, to time it.
+ * <p>
+ * An adaptive memo checks after every WINDOW calls whether the evaluation
+ * time saved by its hits exceeded its overhead, and turns itself off if not;
+ * it then evaluates directly, holding no results, until setEnabled(true) is
+ * called.
+ * <p>
+ * A MemoizedExpression is thread-safe; as with CompiledExpression, each thread
+ * needs its own Bindings. evaluateLong is not memoized.
+ */
+public class MemoizedExpression {
+
+    /**
+     * Bound on the estimated size of the results kept, unless another is given
+     */
+    public static final long DEFAULT_MAX_BYTES = 1 << 20;
+
+    /**
+     * One call in this many, on average, is timed
+     */
+    static final int SAMPLE_INTERVAL = 16;
+
+    /**
+     * Number of calls between checks of whether an adaptive memo pays
+     */
+    static final int WINDOW = 1 << 14;
+
+    /**
+     * Estimated size of an entry besides its values: the key, the entry and
+     * the map's node, with their headers
+     */
+    private static final int ENTRY_BYTES = 112;
+
+    /**
+     * Expression whose results are kept
+     */
+    private final CompiledExpression ce;
+
+    /**
+     * Bound on the estimated size of the entries
+     */
+    private final long maxBytes;
+
+    /**
+     * Whether the memo turns itself off when it does not pay
+     */
+    private final boolean adaptive;
+
+    /**
+     * Slots of the scalars read, and array slot and index of each element read
+     * at a constant subscript: the values that make up the key
+     */
+    private final int[] scalarSlots;
+    private final int[] elementSlots;
+    private final int[] elementIndexes;
+
+    /**
+     * Whether the expression reads elements at computed subscripts, whose
+     * reads are recorded
+     */
+    private final boolean computed;
+
+    /**
+     * Results in access order, least recently used first, and their estimated
+     * total size. Guarded by this.
+     */
+    private final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+    private long bytes = 0;
+
+    /**
+     * Whether results are looked up and kept
+     */
+    private volatile boolean enabled = true;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Hits counted at the last check of whether the memo pays. Guarded by
+     * this.
+     */
+    private long reviewedHits = 0;
+
+    /**
+     * Time added by the memo over the timed calls, and time spent evaluating
+     * over the timed misses, both halved at the end of each window
+     */
+    private final AtomicLong overheadNanos = new AtomicLong();
+    private final AtomicLong overheadSamples = new AtomicLong();
+    private final AtomicLong evaluationNanos = new AtomicLong();
+    private final AtomicLong evaluationSamples = new AtomicLong();
+
+    /**
+     * Values of the symbols an evaluation depends on, as hashed for lookup
+     */
+    private static final class Key {
+        final int[] values;
+        final int hash;
+
+        Key(int[] values) {
+            this.values = values;
+            hash = Arrays.hashCode(values);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(values, ((Key)o).values);
+        }
+    }
+
+    /**
+     * Result of one evaluation, with the slot, index and value of each element
+     * it read, or null if the expression has no computed subscripts
+     */
+    private static final class Entry {
+        final double result;
+        final int[] reads;
+        final int bytes;
+
+        Entry(double result, int[] reads, int keyLength) {
+            this.result = result;
+            this.reads = reads;
+            bytes = ENTRY_BYTES + 4 * keyLength + (reads == null ? 0 : 16 + 4 * reads.length);
+        }
+
+        /**
+         * Tells whether every element read still holds the value it had
+         */
+        boolean matches(Bindings b) {
+            for (int i = 0; reads != null && i < reads.length; i += 3) {
+                if (b.element(reads[i], reads[i + 1]) != reads[i + 2]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Bindings that pass every read on to other bindings and record the first
+     * read of each element not already in the key
+     */
+    private final class Recorder extends Bindings {
+        private final Bindings target;
+        private final HashSet<Long> seen = new HashSet<Long>();
+        private int[] reads = new int[24];
+        private int count = 0;
+
+        Recorder(Bindings target) {
+            super(0, 0);
+            this.target = target;
+            for (int i = 0; i < elementSlots.length; i++) {
+                seen.add((long)elementSlots[i] << 32 | elementIndexes[i] & 0xffffffffL);
+            }
+        }
+
+        public int scalar(int slot) {
+            return target.scalar(slot);
+        }
+
+        public int element(int slot, int index) {
+            int value = target.element(slot, index);
+            if (!seen.add((long)slot << 32 | index & 0xffffffffL)) {
+                return value;
+            }
+            if (count + 3 > reads.length) {
+                reads = Arrays.copyOf(reads, reads.length * 2);
+            }
+            reads[count++] = slot;
+            reads[count++] = index;
+            reads[count++] = value;
+            return value;
+        }
+
+        float[] stack(int size) {
+            return target.stack(size);
+        }
+
+        long[] longStack(int size) {
+            return target.longStack(size);
+        }
+
+        double[] doubleStack(int size) {
+            return target.doubleStack(size);
+        }
+
+        int[] reads() {
+            return Arrays.copyOf(reads, count);
+        }
+    }
+
+    /**
+     * Initializes an adaptive memo of DEFAULT_MAX_BYTES
+     *
+     * @param ce Expression
+     * @throws IllegalArgumentException If the expression is element-wise
+     */
+    public MemoizedExpression(CompiledExpression ce) {
+        this(ce, DEFAULT_MAX_BYTES, true);
+    }
+
+    /**
+     * Initializes a memo
+     *
+     * @param ce Expression
+     * @param maxBytes Bound on the estimated size of the results kept
+     * @param adaptive Whether to turn the memo off when it does not pay
+     * @throws IllegalArgumentException If the expression is element-wise or
+     *         maxBytes is not positive
+     */
+    public MemoizedExpression(CompiledExpression ce, long maxBytes, boolean adaptive) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("size bound must be positive: " + maxBytes);
+        }
+        if (ce.elementwise()) {
+            throw new IllegalArgumentException("element-wise expression: " + ce.expr);
+        }
+        this.ce = ce;
+        this.maxBytes = maxBytes;
+        this.adaptive = adaptive;
+        boolean[] scalar = new boolean[ce.scalarNames.length];
+        int scalarCount = 0;
+        int[] slots = new int[8];
+        int[] indexes = new int[8];
+        int elementCount = 0;
+        boolean computed = false;
+        for (Node node : Optimizer.postorder(ce.root)) {
+            if (node instanceof Node.Scalar) {
+                int slot = ((Node.Scalar)node).slot;
+                if (!scalar[slot]) {
+                    scalar[slot] = true;
+                    scalarCount++;
+                }
+            } else if (node instanceof Node.Element) {
+                Node.Element element = (Node.Element)node;
+                if (!(element.subscript instanceof Node.Constant)) {
+                    computed = true;
+                    continue;
+                }
+                int index = constantIndex((Node.Constant)element.subscript);
+                boolean seen = false;
+                for (int i = 0; i < elementCount && !seen; i++) {
+                    seen = slots[i] == element.slot && indexes[i] == index;
+                }
+                if (!seen) {
+                    if (elementCount == slots.length) {
+                        slots = Arrays.copyOf(slots, elementCount * 2);
+                        indexes = Arrays.copyOf(indexes, elementCount * 2);
+                    }
+                    slots[elementCount] = element.slot;
+                    indexes[elementCount] = index;
+                    elementCount++;
+                }
+            }
+        }
+        scalarSlots = new int[scalarCount];
+        for (int slot = 0, i = 0; slot < scalar.length; slot++) {
+            if (scalar[slot]) {
+                scalarSlots[i++] = slot;
+            }
+        }
+        elementSlots = Arrays.copyOf(slots, elementCount);
+        elementIndexes = Arrays.copyOf(indexes, elementCount);
+        this.computed = computed;
+    }
+
+    /**
+     * Index a constant subscript selects, as evaluation computes it in the
+     * expression's arithmetic
+     */
+    private int constantIndex(Node.Constant subscript) {
+        if (ce.arithmetic == CompiledExpression.Arithmetic.FLOAT) {
+            return (int)Math.floor(subscript.value);
+        }
+        return subscript.integral() ? Node.index(subscript.exact) : (int)Math.floor(subscript.real);
+    }
+
+    /**
+     * Evaluates the expression, or returns the result kept from an evaluation
+     * with the same values
+     *
+     * @param b Symbol values
+     * @return Result of evaluation, as CompiledExpression.evaluate returns it
+     */
+    public float evaluate(Bindings b) {
+        if (!enabled) {
+            return ce.evaluate(b);
+        }
+        return (float)lookup(b);
+    }
+
+    /**
+     * Evaluates the expression without rounding the result to float, or
+     * returns the result kept from an evaluation with the same values
+     *
+     * @param b Symbol values
+     * @return Result of evaluation, as CompiledExpression.evaluateDouble
+     *         returns it
+     */
+    public double evaluateDouble(Bindings b) {
+        if (!enabled) {
+            return ce.evaluateDouble(b);
+        }
+        return lookup(b);
+    }
+
+    private double lookup(Bindings b) {
+        long call = calls.incrementAndGet();
+        int draw = ThreadLocalRandom.current().nextInt(SAMPLE_INTERVAL * SAMPLE_INTERVAL);
+        boolean timed = draw < SAMPLE_INTERVAL;
+        long start = timed ? System.nanoTime() : 0;
+        Key key = key(b);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.matches(b)) {
+            hits.incrementAndGet();
+            if (timed) {
+                long found = System.nanoTime();
+                overheadNanos.addAndGet(found - start);
+                overheadSamples.incrementAndGet();
+                if (draw == 0) {
+                    ce.evaluateDouble(b);
+                    evaluationNanos.addAndGet(System.nanoTime() - found);
+                    evaluationSamples.incrementAndGet();
+                }
+            }
+            if (call % WINDOW == 0) {
+                review();
+            }
+            return entry.result;
+        }
+        misses.incrementAndGet();
+        long evaluated = timed ? System.nanoTime() : 0;
+        double result;
+        int[] reads = null;
+        if (computed) {
+            Recorder recorder = new Recorder(b);
+            result = ce.evaluateDouble(b, recorder);
+            reads = recorder.reads();
+        } else {
+            result = ce.evaluateDouble(b);
+        }
+        long stored = timed ? System.nanoTime() : 0;
+        store(key, new Entry(result, reads, key.values.length));
+        if (timed) {
+            overheadNanos.addAndGet(evaluated - start + System.nanoTime() - stored);
+            overheadSamples.incrementAndGet();
+            evaluationNanos.addAndGet(stored - evaluated);
+            evaluationSamples.incrementAndGet();
+        }
+        if (call % WINDOW == 0) {
+            review();
+        }
+        return result;
+    }
+
+    /**
+     * Reads the values that make up the key
+     */
+    private Key key(Bindings b) {
+        int[] values = new int[scalarSlots.length + elementSlots.length];
+        for (int i = 0; i < scalarSlots.length; i++) {
+            values[i] = b.scalar(scalarSlots[i]);
+        }
+        for (int i = 0; i < elementSlots.length; i++) {
+            values[scalarSlots.length + i] = b.element(elementSlots[i], elementIndexes[i]);
+        }
+        return new Key(values);
+    }
+
+    /**
+     * Keeps a result, evicting the least recently used ones until the entries
+     * fit the bound again. A result too large to fit on its own is not kept.
+     */
+    private synchronized void store(Key key, Entry entry) {
+        if (entry.bytes > maxBytes || !enabled) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        bytes += entry.bytes - (old == null ? 0 : old.bytes);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called at the end of each window: ages the times measured so far and, if the
+     * memo is adaptive, turns it off if the time its hits saved was less than
+     * the time it added
+     */
+    private synchronized void review() {
+        double ratio = (double)(hits.get() - reviewedHits) / WINDOW;
+        reviewedHits = hits.get();
+        if (adaptive && overheadSamples.get() > 0 && evaluationSamples.get() > 0
+                && overheadNanos() >= ratio * evaluationNanos()) {
+            setEnabled(false);
+        }
+        halve(overheadNanos, overheadSamples);
+        halve(evaluationNanos, evaluationSamples);
+    }
+
+    /**
+     * Halves a sum of times and its number of samples, keeping at least one
+     * sample so that the average stays defined
+     */
+    private static void halve(AtomicLong nanos, AtomicLong samples) {
+        long n = samples.get();
+        if (n > 1) {
+            nanos.addAndGet(-nanos.get() / 2);
+            samples.addAndGet(-n / 2);
+        }
+    }
+
+    /**
+     * Turns the memo on or off. Turning it off drops every result kept; turning
+     * it on starts a new window for the adaptive check.
+     *
+     * @param enabled Whether to look up and keep results
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        reviewedHits = hits.get();
+        if (!enabled) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return True if results are being looked up and kept
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * @return Number of calls answered from a kept result
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of calls that had to evaluate while the memo was on
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of results evicted to stay within the bound
+     */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Fraction of lookups that hit, or 0 before the first lookup
+     */
+    public double hitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double)hits.get() / lookups;
+    }
+
+    /**
+     * @return Average time in nanoseconds the memo adds to a call: the whole
+     *         call on a hit, and the lookup and storing of the result on a
+     *         miss. 0 until a call has been timed.
+     */
+    public double overheadNanos() {
+        long samples = overheadSamples.get();
+        return samples == 0 ? 0 : (double)overheadNanos.get() / samples;
+    }
+
+    /**
+     * @return Average time in nanoseconds of an evaluation on a miss, 0 until
+     *         one has been timed
+     */
+    public double evaluationNanos() {
+        long samples = evaluationSamples.get();
+        return samples == 0 ? 0 : (double)evaluationNanos.get() / samples;
+    }
+
+    /**
+     * @return Number of results kept
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Estimated size of the results kept
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public String toString() {
+        return String.format("MemoizedExpression[size=%d, bytes=%d, hits=%d, misses=%d, evictions=%d, "
+            + "hit ratio=%.3f, overhead=%.1f ns, evaluation=%.1f ns, enabled=%b]", size(), bytes(), hits(),
+            misses(), evictions(), hitRatio(), overheadNanos(), evaluationNanos(), enabled);
+    }
+}
@@ -0,0 +1,362 @@
+package apps;
+
+/**
+ * Node of a parsed expression tree. Nodes are immutable once built, so one tree
+ * can be shared by any number of evaluations.
+ * <p>
+ * Every node carries the result of a static type inference. Symbol values are
+ * ints, so a subtree without division whose values provably fit in a long is
+ * integral and can be computed exactly in long arithmetic; every other subtree
+ * is real and computed in double. The inference tracks a bound on the
+ * magnitude of every value of the subtree: 2^31 for a symbol, the sum of the
+ * operand bounds for + and -, and their product for *. A subtree whose bound
+ * exceeds Long.MAX_VALUE is treated as real, so long arithmetic never
+ * overflows.
+ * <p>
+ * A tree can be evaluated two ways: in float, exactly as the original
+ * evaluator did, or typed, with evaluateLong for integral nodes and
+ * evaluateDouble for real ones.
+ */
+abstract class Node {
+
+    /**
+     * Bound of a node that is not integral
+     */
+    static final long REAL = -1;
+
+    /**
+     * Bound of a scalar or array element, which can be any int
+     */
+    static final long INT_BOUND = 1L << 31;
+
+    /**
+     * Largest magnitude of any value of this subtree, or REAL
+     */
+    final long bound;
+
+    Node(long bound) {
+        this.bound = bound;
+    }
+
+    /**
+     * @return True if the subtree is computed exactly in long arithmetic
+     */
+    final boolean integral() {
+        return bound != REAL;
+    }
+
+    /**
+     * Evaluates the subtree rooted at this node in float arithmetic
+     *
+     * @param b Symbol values to evaluate against
+     * @return Value of the subtree
+     */
+    abstract float evaluate(Bindings b);
+
+    /**
+     * Evaluates an integral subtree in long arithmetic. The result is exact.
+     *
+     * @param b Symbol values to evaluate against
+     * @return Value of the subtree; meaningless if the node is not integral
+     */
+    abstract long evaluateLong(Bindings b);
+
+    /**
+     * Evaluates the subtree with typed arithmetic: integral subtrees in long,
+     * real ones in double
+     *
+     * @param b Symbol values to evaluate against
+     * @return Value of the subtree
+     */
+    abstract double evaluateDouble(Bindings b);
+
+    /**
+     * Converts an integral subscript to an array index
+     *
+     * @param subscript Subscript
+     * @return Index, or -1 if the subscript does not fit in an int, so that the
+     *         read fails as out of bounds rather than wrapping to a valid index
+     */
+    static int index(long subscript) {
+        return (int)subscript == subscript ? (int)subscript : -1;
+    }
+
+    /**
+     * Numeric literal
+     */
+    static final class Constant extends Node {
+        /**
+         * Value in float arithmetic
+         */
+        final float value;
+
+        /**
+         * Value in typed arithmetic
+         */
+        final double real;
+
+        /**
+         * Exact value in typed arithmetic, if integral
+         */
+        final long exact;
+
+        /**
+         * Literal as written in an expression. Digits alone make an integral
+         * constant if they fit in a long.
+         *
+         * @throws NumberFormatException If text is not a number
+         */
+        Constant(String text) {
+            this(text, parseExact(text));
+        }
+
+        private Constant(String text, Long exact) {
+            super(exact == null ? REAL : bound(exact));
+            this.value = Float.parseFloat(text);
+            this.real = exact == null ? Double.parseDouble(text) : exact;
+            this.exact = exact == null ? 0 : exact;
+        }
+
+        private static Long parseExact(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                if (!Character.isDigit(text.charAt(i))) {
+                    return null;
+                }
+            }
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Result of folding in float arithmetic
+         */
+        Constant(float value) {
+            super(REAL);
+            this.value = value;
+            this.real = value;
+            this.exact = 0;
+        }
+
+        /**
+         * Result of folding an integral subtree
+         */
+        Constant(long exact) {
+            super(bound(exact));
+            this.value = exact;
+            this.real = exact;
+            this.exact = exact;
+        }
+
+        /**
+         * Result of folding a real subtree
+         */
+        Constant(double real) {
+            super(REAL);
+            this.value = (float)real;
+            this.real = real;
+            this.exact = 0;
+        }
+
+        /**
+         * Constant with all its values given, as read back from a stored tree
+         */
+        Constant(float value, double real, long exact, boolean integral) {
+            super(integral ? bound(exact) : REAL);
+            this.value = value;
+            this.real = real;
+            this.exact = exact;
+        }
+
+        private static long bound(long v) {
+            return v == Long.MIN_VALUE ? REAL : Math.abs(v);
+        }
+
+        float evaluate(Bindings b) {
+            return value;
+        }
+
+        long evaluateLong(Bindings b) {
+            return exact;
+        }
+
+        double evaluateDouble(Bindings b) {
+            return real;
+        }
+    }
+
+    /**
+     * Reference to a scalar symbol, resolved to its slot
+     */
+    static final class Scalar extends Node {
+        final int slot;
+
+        Scalar(int slot) {
+            super(INT_BOUND);
+            this.slot = slot;
+        }
+
+        float evaluate(Bindings b) {
+            return b.scalar(slot);
+        }
+
+        long evaluateLong(Bindings b) {
+            return b.scalar(slot);
+        }
+
+        double evaluateDouble(Bindings b) {
+            return b.scalar(slot);
+        }
+    }
+
+    /**
+     * Index of the element being computed in element-wise evaluation, the
+     * implicit subscript of a whole-array reference A[]. It has no value in a
+     * single evaluation.
+     */
+    static final class Index extends Node {
+        Index() {
+            super(INT_BOUND);
+        }
+
+        float evaluate(Bindings b) {
+            throw unbound();
+        }
+
+        long evaluateLong(Bindings b) {
+            throw unbound();
+        }
+
+        double evaluateDouble(Bindings b) {
+            throw unbound();
+        }
+
+        private static IllegalStateException unbound() {
+            return new IllegalStateException("whole-array reference outside element-wise evaluation");
+        }
+    }
+
+    /**
+     * Subscripted reference to an array symbol. In float arithmetic the
+     * subscript is floored to an integer index before the element is read; in
+     * typed arithmetic an integral subscript is used exactly and a real one is
+     * floored.
+     */
+    static final class Element extends Node {
+        final int slot;
+        final Node subscript;
+
+        Element(int slot, Node subscript) {
+            super(INT_BOUND);
+            this.slot = slot;
+            this.subscript = subscript;
+        }
+
+        float evaluate(Bindings b) {
+            return b.element(slot, (int)Math.floor(subscript.evaluate(b)));
+        }
+
+        long evaluateLong(Bindings b) {
+            if (subscript.integral()) {
+                return b.element(slot, index(subscript.evaluateLong(b)));
+            }
+            return b.element(slot, (int)Math.floor(subscript.evaluateDouble(b)));
+        }
+
+        double evaluateDouble(Bindings b) {
+            return evaluateLong(b);
+        }
+    }
+
+    /**
+     * Unary minus
+     */
+    static final class Negate extends Node {
+        final Node operand;
+
+        Negate(Node operand) {
+            super(operand.bound);
+            this.operand = operand;
+        }
+
+        float evaluate(Bindings b) {
+            return -operand.evaluate(b);
+        }
+
+        long evaluateLong(Bindings b) {
+            return -operand.evaluateLong(b);
+        }
+
+        double evaluateDouble(Bindings b) {
+            if (integral()) {
+                return evaluateLong(b);
+            }
+            return -operand.evaluateDouble(b);
+        }
+    }
+
+    /**
+     * One of the binary operators + - * /
+     */
+    static final class Binary extends Node {
+        final char op;
+        final Node left;
+        final Node right;
+
+        Binary(char op, Node left, Node right) {
+            super(bound(op, left, right));
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        private static long bound(char op, Node left, Node right) {
+            long l = left.bound;
+            long r = right.bound;
+            if (op == '/' || l == REAL || r == REAL) {
+                return REAL;
+            }
+            if (op == '*') {
+                return l != 0 && r > Long.MAX_VALUE / l ? REAL : l * r;
+            }
+            return l > Long.MAX_VALUE - r ? REAL : l + r;
+        }
+
+        float evaluate(Bindings b) {
+            float l = left.evaluate(b);
+            float r = right.evaluate(b);
+            switch (op) {
+                case '+': return l + r;
+                case '-': return l - r;
+                case '*': return l * r;
+                default:  return l / r;
+            }
+        }
+
+        long evaluateLong(Bindings b) {
+            long l = left.evaluateLong(b);
+            long r = right.evaluateLong(b);
+            switch (op) {
+                case '+': return l + r;
+                case '-': return l - r;
+                default:  return l * r;
+            }
+        }
+
+        double evaluateDouble(Bindings b) {
+            if (integral()) {
+                return evaluateLong(b);
+            }
+            double l = left.evaluateDouble(b);
+            double r = right.evaluateDouble(b);
+            switch (op) {
+                case '+': return l + r;
+                case '-': return l - r;
+                case '*': return l * r;
+                default:  return l / r;
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Rewrites an expression tree before it is evaluated. Subtrees made only of
+ * constants are folded into a single constant, using the same arithmetic as
+ * evaluation: float, or long and double for typed evaluation. Operations with
+ * an identity operand (x*1, 1*x, x/1, x+0, 0+x, x-0) and double negations are
+ * dropped. Finally, identical subtrees are merged into one shared node, turning
+ * the tree into a DAG; the evaluators compute a shared node once and reuse its
+ * value.
+ * <p>
+ * The only observable difference from the unoptimized tree is that x+0 and 0+x
+ * return x even when x is negative zero. In typed arithmetic, x*1.0 and the
+ * like also become x, which keeps x exact where the product would have been
+ * rounded to a double.
+ * <p>
+ * The walks over a tree here keep their pending nodes on an explicit stack
+ * rather than the call stack, so a tree may be nested to any depth.
+ */
+class Optimizer {
+
+    /**
+     * Key identifying a node by its kind, its own data and the identities of its
+     * already-merged children
+     */
+    private static final class Key {
+        final int kind;
+        final long data;
+        final Node left;
+        final Node right;
+
+        Key(int kind, long data, Node left, Node right) {
+            this.kind = kind;
+            this.data = data;
+            this.left = left;
+            this.right = right;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return kind == k.kind && data == k.data && left == k.left && right == k.right;
+        }
+
+        public int hashCode() {
+            return ((kind * 31 + Long.hashCode(data)) * 31 + System.identityHashCode(left)) * 31
+                + System.identityHashCode(right);
+        }
+    }
+
+    /**
+     * Canonical node for each key seen so far
+     */
+    private final HashMap<Key,Node> nodes = new HashMap<Key,Node>();
+
+    /**
+     * Whether constants are folded in typed arithmetic rather than float
+     */
+    private final boolean typed;
+
+    private Optimizer(boolean typed) {
+        this.typed = typed;
+    }
+
+    /**
+     * Optimizes a tree
+     *
+     * @param root Root of the tree
+     * @param typed True to fold constants in typed arithmetic, false for float
+     * @return Root of the optimized DAG
+     */
+    static Node optimize(Node root, boolean typed) {
+        return new Optimizer(typed).rewrite(root);
+    }
+
+    /**
+     * Optimizes several trees together, so that a subtree appearing in more than
+     * one of them becomes a single node shared by all
+     *
+     * @param roots Roots of the trees
+     * @param typed True to fold constants in typed arithmetic, false for float
+     * @return Roots of the optimized DAG, in the same order
+     */
+    static Node[] optimize(Node[] roots, boolean typed) {
+        Optimizer optimizer = new Optimizer(typed);
+        Node[] optimized = new Node[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            optimized[i] = optimizer.rewrite(roots[i]);
+        }
+        return optimized;
+    }
+
+    /**
+     * Rewrites a tree bottom up, each node after its children
+     */
+    private Node rewrite(Node root) {
+        IdentityHashMap<Node,Node> done = new IdentityHashMap<Node,Node>();
+        for (Node node : postorder(root)) {
+            done.put(node, rewrite(node, done));
+        }
+        return done.get(root);
+    }
+
+    /**
+     * Rewrites one node whose children have already been rewritten
+     *
+     * @param node Node
+     * @param done Rewritten form of each node visited so far
+     */
+    private Node rewrite(Node node, IdentityHashMap<Node,Node> done) {
+        if (node instanceof Node.Constant) {
+            return intern(constantKey((Node.Constant)node), node);
+        }
+        if (node instanceof Node.Scalar) {
+            return intern(new Key(1, ((Node.Scalar)node).slot, null, null), node);
+        }
+        if (node instanceof Node.Index) {
+            return intern(new Key(7, 0, null, null), node);
+        }
+        if (node instanceof Node.Element) {
+            Node.Element element = (Node.Element)node;
+            Node subscript = done.get(element.subscript);
+            return intern(new Key(2, element.slot, subscript, null),
+                subscript == element.subscript ? node : new Node.Element(element.slot, subscript));
+        }
+        if (node instanceof Node.Negate) {
+            Node operand = done.get(((Node.Negate)node).operand);
+            if (operand instanceof Node.Constant) {
+                Node.Constant c = (Node.Constant)operand;
+                if (!typed) {
+                    return constant(new Node.Constant(-c.value));
+                }
+                return constant(c.integral() ? new Node.Constant(-c.exact) : new Node.Constant(-c.real));
+            }
+            if (operand instanceof Node.Negate) {
+                return ((Node.Negate)operand).operand;
+            }
+            return intern(new Key(3, 0, operand, null), new Node.Negate(operand));
+        }
+        Node.Binary binary = (Node.Binary)node;
+        Node left = done.get(binary.left);
+        Node right = done.get(binary.right);
+        if (left instanceof Node.Constant && right instanceof Node.Constant) {
+            Node.Binary folded = new Node.Binary(binary.op, left, right);
+            if (!typed) {
+                return constant(new Node.Constant(folded.evaluate(null)));
+            }
+            return constant(folded.integral()
+                ? new Node.Constant(folded.evaluateLong(null))
+                : new Node.Constant(folded.evaluateDouble(null)));
+        }
+        switch (binary.op) {
+            case '+':
+                if (isConstant(right, 0f)) {
+                    return left;
+                }
+                if (isConstant(left, 0f)) {
+                    return right;
+                }
+                break;
+            case '-':
+                if (isConstant(right, 0f)) {
+                    return left;
+                }
+                break;
+            case '*':
+                if (isConstant(right, 1f)) {
+                    return left;
+                }
+                if (isConstant(left, 1f)) {
+                    return right;
+                }
+                break;
+            default:
+                if (isConstant(right, 1f)) {
+                    return left;
+                }
+                break;
+        }
+        return intern(new Key(4, binary.op, left, right), new Node.Binary(binary.op, left, right));
+    }
+
+    private Node constant(Node.Constant c) {
+        return intern(constantKey(c), c);
+    }
+
+    /**
+     * Key of a constant. Constants are told apart by the value they have in the
+     * arithmetic being used, and in typed arithmetic also by their type.
+     */
+    private Key constantKey(Node.Constant c) {
+        if (!typed) {
+            return new Key(0, Float.floatToRawIntBits(c.value), null, null);
+        }
+        if (c.integral()) {
+            return new Key(5, c.exact, null, null);
+        }
+        return new Key(6, Double.doubleToRawLongBits(c.real), null, null);
+    }
+
+    private Node intern(Key key, Node node) {
+        Node existing = nodes.putIfAbsent(key, node);
+        return existing != null ? existing : node;
+    }
+
+    private boolean isConstant(Node node, float value) {
+        if (!(node instanceof Node.Constant)) {
+            return false;
+        }
+        Node.Constant c = (Node.Constant)node;
+        return typed ? c.real == value : c.value == value;
+    }
+
+    /**
+     * Counts the distinct nodes reachable from a root. For a tree this is its
+     * size; for a DAG each shared node is counted once.
+     *
+     * @param root Root
+     * @return Number of nodes
+     */
+    static int countNodes(Node root) {
+        return useCounts(root).size();
+    }
+
+    /**
+     * Counts how many parents refer to each node reachable from some roots. Each
+     * root counts as one use of itself.
+     *
+     * @param roots Roots
+     * @return Number of uses, by node
+     */
+    static IdentityHashMap<Node,Integer> useCounts(Node... roots) {
+        IdentityHashMap<Node,Integer> uses = new IdentityHashMap<Node,Integer>();
+        Node[] stack = new Node[16];
+        for (Node root : roots) {
+            if (use(root, uses)) {
+                continue;
+            }
+            stack[0] = root;
+            int top = 0;
+            while (top >= 0) {
+                Node node = stack[top--];
+                for (int i = 0; i < 2; i++) {
+                    Node child = child(node, i);
+                    if (child != null && !use(child, uses)) {
+                        if (++top == stack.length) {
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        }
+                        stack[top] = child;
+                    }
+                }
+            }
+        }
+        return uses;
+    }
+
+    /**
+     * Counts one more use of a node
+     *
+     * @return True if the node had been counted before
+     */
+    private static boolean use(Node node, IdentityHashMap<Node,Integer> uses) {
+        Integer count = uses.get(node);
+        uses.put(node, count == null ? 1 : count + 1);
+        return count != null;
+    }
+
+    /**
+     * Measures the depth of a tree or DAG: the number of nodes on the longest
+     * path from the root to a leaf
+     *
+     * @param root Root
+     * @return Depth, 1 for a single leaf
+     */
+    static int depth(Node root) {
+        IdentityHashMap<Node,Integer> depths = new IdentityHashMap<Node,Integer>();
+        for (Node node : postorder(root)) {
+            int d = 0;
+            for (int i = 0; i < 2 && child(node, i) != null; i++) {
+                d = Math.max(d, depths.get(child(node, i)));
+            }
+            depths.put(node, d + 1);
+        }
+        return depths.get(root);
+    }
+
+    /**
+     * Lists the distinct nodes reachable from some roots in postorder: every
+     * node after its children, the left child's subtree before the right's,
+     * and a shared node only where it is first reached
+     *
+     * @param roots Roots
+     * @return Nodes in postorder
+     */
+    static ArrayList<Node> postorder(Node... roots) {
+        ArrayList<Node> order = new ArrayList<Node>();
+        IdentityHashMap<Node,Boolean> seen = new IdentityHashMap<Node,Boolean>();
+        Node[] stack = new Node[16];
+        int[] next = new int[16];
+        for (Node root : roots) {
+            if (seen.containsKey(root)) {
+                continue;
+            }
+            stack[0] = root;
+            next[0] = 0;
+            int top = 0;
+            while (top >= 0) {
+                Node child = child(stack[top], next[top]++);
+                if (child == null) {
+                    seen.put(stack[top], Boolean.TRUE);
+                    order.add(stack[top--]);
+                } else if (!seen.containsKey(child)) {
+                    if (++top == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                        next = Arrays.copyOf(next, next.length * 2);
+                    }
+                    stack[top] = child;
+                    next[top] = 0;
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Returns a child of a node: the subscript of an element, the operand of a
+     * negation, or the left (0) or right (1) operand of a binary operator
+     *
+     * @param node Node
+     * @param i Position of the child
+     * @return Child, or null if the node has no child at that position
+     */
+    static Node child(Node node, int i) {
+        if (node instanceof Node.Binary) {
+            return i == 0 ? ((Node.Binary)node).left : i == 1 ? ((Node.Binary)node).right : null;
+        }
+        if (i != 0) {
+            return null;
+        }
+        if (node instanceof Node.Element) {
+            return ((Node.Element)node).subscript;
+        }
+        if (node instanceof Node.Negate) {
+            return ((Node.Negate)node).operand;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,376 @@
+package apps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates one large expression using several threads. The tree is split
+ * into parts, the largest subtrees of at most a given weight (number of
+ * nodes), and the top, the nodes above them. Consecutive parts are grouped
+ * into programs of about that weight, which are independent of each other and
+ * run in parallel on the common fork/join pool. The top is then evaluated on
+ * the calling thread, in postorder, from the values of the parts.
+ * <p>
+ * Every node goes through the same operation on the same operands as in a
+ * sequential evaluation, in the expression's arithmetic; only the order in
+ * which independent subtrees are computed changes. The result is therefore
+ * identical to CompiledExpression.evaluate, however the work is scheduled. In
+ * typed arithmetic the values of integral parts are handed over as longs, so
+ * they stay exact.
+ * <p>
+ * Element-wise expressions are not supported.
+ */
+class ParallelEvaluator {
+
+    /**
+     * Least weight of a group of parts, however many threads there are
+     */
+    static final int MIN_GRAIN = 1 << 10;
+
+    private static final int NEGATE = 0;
+    private static final int BINARY = 1;
+    private static final int ELEMENT = 2;
+
+    /**
+     * Whether the expression uses typed arithmetic
+     */
+    private final boolean typed;
+
+    /**
+     * Programs computing the parts, each writing its parts' values in order
+     * starting at offsets[g]
+     */
+    private final Program[] groups;
+    private final int[] offsets;
+
+    /**
+     * Number of parts, and whether each is integral
+     */
+    private final int partCount;
+    private final boolean[] partIntegral;
+
+    /**
+     * Nodes of the top in postorder, the root last. A child is referred to by
+     * its position in the top, or by -1 - its position among the parts.
+     */
+    private final int[] kind;
+    private final char[] op;
+    private final int[] slot;
+    private final int[] left;
+    private final int[] right;
+    private final boolean[] integral;
+
+    /**
+     * Splits a tree into parts and top
+     *
+     * @param root Root of the tree or DAG, which must not be element-wise
+     * @param typed True for typed arithmetic, false for float
+     * @param grain Largest weight of a part, and least weight of a group of
+     *        parts unless the parts run out
+     */
+    ParallelEvaluator(Node root, boolean typed, int grain) {
+        this.typed = typed;
+        ArrayList<Node> order = Optimizer.postorder(root);
+        IdentityHashMap<Node,Integer> position = new IdentityHashMap<Node,Integer>(order.size());
+        long[] weight = new long[order.size()];
+        for (int i = 0; i < order.size(); i++) {
+            Node node = order.get(i);
+            position.put(node, i);
+            weight[i] = 1;
+            for (int c = 0; Optimizer.child(node, c) != null; c++) {
+                weight[i] = Math.min(weight[i] + weight[position.get(Optimizer.child(node, c))], Integer.MAX_VALUE);
+            }
+        }
+
+        // Classify from the root down: a node is a part if it is light enough,
+        // else it is in the top.
+        byte[] mark = new byte[order.size()];
+        int[] stack = new int[16];
+        int top = 0;
+        stack[0] = order.size() - 1;
+        while (top >= 0) {
+            int i = stack[top--];
+            if (mark[i] != 0) {
+                continue;
+            }
+            Node node = order.get(i);
+            if (weight[i] <= grain) {
+                mark[i] = 2;
+                continue;
+            }
+            mark[i] = 1;
+            for (int c = 0; Optimizer.child(node, c) != null; c++) {
+                if (top + 1 == stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[++top] = position.get(Optimizer.child(node, c));
+            }
+        }
+
+        int[] ref = new int[order.size()];
+        ArrayList<Program> programs = new ArrayList<Program>();
+        ArrayList<Node> roots = new ArrayList<Node>();
+        int[] starts = new int[16];
+        boolean[] partIntegral = new boolean[16];
+        int parts = 0;
+        int tops = 0;
+        long groupWeight = 0;
+        for (int i = 0; i < order.size(); i++) {
+            if (mark[i] == 1) {
+                ref[i] = tops++;
+            } else if (mark[i] == 2) {
+                if (parts == partIntegral.length) {
+                    partIntegral = Arrays.copyOf(partIntegral, parts * 2);
+                }
+                partIntegral[parts] = order.get(i).integral();
+                ref[i] = -1 - parts++;
+                roots.add(order.get(i));
+                groupWeight += weight[i];
+                if (groupWeight >= grain) {
+                    starts = addGroup(programs, roots, starts, parts - roots.size());
+                    groupWeight = 0;
+                }
+            }
+        }
+        if (!roots.isEmpty()) {
+            starts = addGroup(programs, roots, starts, parts - roots.size());
+        }
+        groups = programs.toArray(new Program[programs.size()]);
+        offsets = Arrays.copyOf(starts, groups.length);
+        partCount = parts;
+        this.partIntegral = Arrays.copyOf(partIntegral, parts);
+
+        kind = new int[tops];
+        op = new char[tops];
+        slot = new int[tops];
+        left = new int[tops];
+        right = new int[tops];
+        integral = new boolean[tops];
+        for (int i = 0; i < order.size(); i++) {
+            if (mark[i] != 1) {
+                continue;
+            }
+            Node node = order.get(i);
+            int t = ref[i];
+            integral[t] = node.integral();
+            if (node instanceof Node.Binary) {
+                Node.Binary binary = (Node.Binary)node;
+                kind[t] = BINARY;
+                op[t] = binary.op;
+                left[t] = ref[position.get(binary.left)];
+                right[t] = ref[position.get(binary.right)];
+            } else if (node instanceof Node.Negate) {
+                kind[t] = NEGATE;
+                left[t] = ref[position.get(((Node.Negate)node).operand)];
+            } else {
+                Node.Element element = (Node.Element)node;
+                kind[t] = ELEMENT;
+                slot[t] = element.slot;
+                left[t] = ref[position.get(element.subscript)];
+            }
+        }
+    }
+
+    /**
+     * Compiles the pending roots into one program, records where its values
+     * go and clears the roots
+     */
+    private int[] addGroup(ArrayList<Program> programs, ArrayList<Node> roots, int[] starts, int first) {
+        if (programs.size() == starts.length) {
+            starts = Arrays.copyOf(starts, starts.length * 2);
+        }
+        starts[programs.size()] = first;
+        programs.add(Program.compile(roots.toArray(new Node[roots.size()]), typed));
+        roots.clear();
+        return starts;
+    }
+
+    /**
+     * Chooses the grain for an expression so that each thread of the common
+     * pool gets several groups to balance the load
+     *
+     * @param nodeCount Number of nodes in the expression
+     * @return Grain
+     */
+    static int grain(int nodeCount) {
+        return Math.max(MIN_GRAIN, nodeCount / (4 * ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    /**
+     * @return Number of programs the parts are computed by, which is the most
+     *         threads an evaluation can use
+     */
+    int groupCount() {
+        return groups.length;
+    }
+
+    /**
+     * @return Number of nodes evaluated on the calling thread after the parts
+     */
+    int topCount() {
+        return kind.length;
+    }
+
+    /**
+     * Evaluates the expression
+     *
+     * @param b Symbol values. Bindings with a provider cache what they fetch,
+     *        so their parts are computed on the calling thread alone.
+     * @param parallel Whether to compute the parts in parallel
+     * @return Result of evaluation, as CompiledExpression.evaluateDouble
+     *         returns it
+     */
+    double evaluateDouble(Bindings b, boolean parallel) {
+        double[] values = new double[partCount];
+        long[] exacts = typed ? new long[partCount] : null;
+        if (parallel && groups.length > 1 && ForkJoinPool.getCommonPoolParallelism() > 1 && !b.provided()) {
+            ForkJoinPool.commonPool().invoke(new Groups(b, values, exacts, 0, groups.length));
+        } else {
+            for (int g = 0; g < groups.length; g++) {
+                run(g, b, values, exacts);
+            }
+        }
+        if (kind.length == 0) {
+            return typed && partIntegral[0] ? exacts[0] : values[0];
+        }
+        return typed ? combine(b, values, exacts) : combineFloat(b, values);
+    }
+
+    /**
+     * Runs the program of one group, copying its values into place
+     */
+    private void run(int g, Bindings b, double[] values, long[] exacts) {
+        int length = (g + 1 < groups.length ? offsets[g + 1] : partCount) - offsets[g];
+        double[] out = new double[length];
+        long[] exact = exacts != null ? new long[length] : null;
+        groups[g].evaluate(b, out, exact);
+        System.arraycopy(out, 0, values, offsets[g], length);
+        if (exact != null) {
+            System.arraycopy(exact, 0, exacts, offsets[g], length);
+        }
+    }
+
+    /**
+     * Computes a range of groups, split in halves until each task has one
+     * group. Each task works on its own copy of the bindings, since they hold
+     * the evaluation stacks.
+     */
+    private final class Groups extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Bindings b;
+        private final double[] values;
+        private final long[] exacts;
+        private final int from;
+        private final int to;
+
+        Groups(Bindings b, double[] values, long[] exacts, int from, int to) {
+            this.b = b;
+            this.values = values;
+            this.exacts = exacts;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from == 1) {
+                run(from, b.copy(), values, exacts);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Groups(b, values, exacts, from, middle), new Groups(b, values, exacts, middle, to));
+        }
+    }
+
+    /**
+     * Evaluates the top in float arithmetic from the values of the parts
+     */
+    private float combineFloat(Bindings b, double[] values) {
+        float[] value = new float[kind.length];
+        for (int t = 0; t < kind.length; t++) {
+            float l = left[t] >= 0 ? value[left[t]] : (float)values[-1 - left[t]];
+            if (kind[t] == NEGATE) {
+                value[t] = -l;
+            } else if (kind[t] == ELEMENT) {
+                value[t] = b.element(slot[t], (int)Math.floor(l));
+            } else {
+                float r = right[t] >= 0 ? value[right[t]] : (float)values[-1 - right[t]];
+                switch (op[t]) {
+                    case '+': value[t] = l + r; break;
+                    case '-': value[t] = l - r; break;
+                    case '*': value[t] = l * r; break;
+                    default:  value[t] = l / r; break;
+                }
+            }
+        }
+        return value[kind.length - 1];
+    }
+
+    /**
+     * Evaluates the top in typed arithmetic from the values of the parts:
+     * integral nodes in long, real ones in double
+     */
+    private double combine(Bindings b, double[] values, long[] exacts) {
+        long[] exact = new long[kind.length];
+        double[] real = new double[kind.length];
+        for (int t = 0; t < kind.length; t++) {
+            int l = left[t];
+            if (kind[t] == ELEMENT) {
+                int index = integral(l)
+                    ? Node.index(exact(l, exact, exacts))
+                    : (int)Math.floor(real(l, exact, real, values, exacts));
+                exact[t] = b.element(slot[t], index);
+            } else if (integral[t] && kind[t] == NEGATE) {
+                exact[t] = -exact(l, exact, exacts);
+            } else if (integral[t]) {
+                long x = exact(l, exact, exacts);
+                long y = exact(right[t], exact, exacts);
+                switch (op[t]) {
+                    case '+': exact[t] = x + y; break;
+                    case '-': exact[t] = x - y; break;
+                    default:  exact[t] = x * y; break;
+                }
+            } else if (kind[t] == NEGATE) {
+                real[t] = -real(l, exact, real, values, exacts);
+            } else {
+                double x = real(l, exact, real, values, exacts);
+                double y = real(right[t], exact, real, values, exacts);
+                switch (op[t]) {
+                    case '+': real[t] = x + y; break;
+                    case '-': real[t] = x - y; break;
+                    case '*': real[t] = x * y; break;
+                    default:  real[t] = x / y; break;
+                }
+            }
+        }
+        int root = kind.length - 1;
+        return integral[root] ? exact[root] : real[root];
+    }
+
+    /**
+     * Tells whether a top node or part is integral
+     */
+    private boolean integral(int ref) {
+        return ref >= 0 ? integral[ref] : partIntegral[-1 - ref];
+    }
+
+    /**
+     * Value of an integral top node or part
+     */
+    private long exact(int ref, long[] exact, long[] exacts) {
+        return ref >= 0 ? exact[ref] : exacts[-1 - ref];
+    }
+
+    /**
+     * Value of a top node or part as a double, converted if it is integral
+     */
+    private double real(int ref, long[] exact, double[] real, double[] values, long[] exacts) {
+        if (integral(ref)) {
+            return exact(ref, exact, exacts);
+        }
+        return ref >= 0 ? real[ref] : values[-1 - ref];
+    }
+}
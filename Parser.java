@@ -0,0 +1,272 @@
+package apps;
+
+import java.util.Arrays;
+
+/**
+ * Parses expression text into a tree of nodes. Symbol names are resolved to slots
+ * while parsing, so the resulting tree does no string work when evaluated.
+ * Operators + and - share the lowest precedence, * and / the highest, and both
+ * groups associate to the left. An array name followed by empty brackets, as
+ * in A[], refers to the whole array and is read element-wise, see
+ * CompiledExpression.evaluateArray.
+ * <p>
+ * The parser reads the tokens of the text (see Lexer) once, left to right,
+ * keeping the operands and the operators not yet applied on explicit stacks
+ * (operator precedence parsing) rather than recursing. Names are looked up as
+ * spans of the text, so no String is made for them. It takes time linear in
+ * the length of the text, and however deeply the expression is nested, it
+ * uses no more call stack than a flat one.
+ */
+class Parser {
+
+    /**
+     * Operator stack entry for a unary minus
+     */
+    private static final char NEGATE = '~';
+
+    /**
+     * Operator stack entry for an open parenthesis
+     */
+    private static final char GROUP = '(';
+
+    /**
+     * Operator stack entry for the open bracket of a subscript
+     */
+    private static final char SUBSCRIPT = '[';
+
+    /**
+     * Expression text
+     */
+    private final String expr;
+
+    /**
+     * Slots of the symbols, by name
+     */
+    private final SymbolTable symbols;
+
+    /**
+     * Partner position of each bracket
+     */
+    private final int[] matchOf;
+
+    /**
+     * Tokens of expr
+     */
+    private final Lexer lexer = new Lexer();
+
+    /**
+     * Current token
+     */
+    private int t;
+
+    /**
+     * Operands parsed but not yet consumed by an operator
+     */
+    private Node[] operands = new Node[16];
+    private int operandCount = 0;
+
+    /**
+     * Operators not yet applied, with the position of the opening bracket of a
+     * GROUP or SUBSCRIPT entry and the array slot of a SUBSCRIPT entry
+     */
+    private char[] operators = new char[16];
+    private int[] opens = new int[16];
+    private int[] slots = new int[16];
+    private int operatorCount = 0;
+
+    Parser(String expr, SymbolTable symbols, int[] matchOf) {
+        this.expr = expr;
+        this.symbols = symbols;
+        this.matchOf = matchOf;
+        lexer.tokenize(expr);
+        t = 0;
+    }
+
+    /**
+     * Parses the whole expression
+     *
+     * @return Root of the expression tree
+     * @throws IllegalArgumentException If the expression is malformed or uses an
+     *         unknown symbol
+     */
+    Node parse() {
+        int count = lexer.count();
+        boolean expectOperand = true;
+        while (true) {
+            if (expectOperand) {
+                if (t == count) {
+                    throw error("operand expected", expr.length());
+                }
+                if (lexer.is(t, '-')) {
+                    pushOperator(NEGATE, lexer.start(t++), -1);
+                } else if (lexer.is(t, '(')) {
+                    pushOperator(GROUP, lexer.start(t++), -1);
+                } else {
+                    expectOperand = parseOperand();
+                }
+                continue;
+            }
+            if (t == count) {
+                break;
+            }
+            char ch = lexer.charAt(t);
+            if (lexer.kind(t) != Lexer.SYMBOL) {
+                throw error("unexpected '" + ch + "'", lexer.start(t));
+            }
+            if (ch == '+' || ch == '-' || ch == '*' || ch == '/') {
+                reduce(precedence(ch));
+                pushOperator(ch, lexer.start(t++), -1);
+                expectOperand = true;
+            } else if (ch == ')' || ch == ']') {
+                close();
+            } else {
+                throw error("unexpected '" + ch + "'", lexer.start(t));
+            }
+        }
+        reduce(1);
+        if (operatorCount > 0) {
+            throw error("operand expected", expr.length());
+        }
+        return operands[0];
+    }
+
+    /**
+     * Parses a number, a scalar, a whole-array reference, or the start of a
+     * subscripted element, whose subscript is parsed as the operands that
+     * follow
+     *
+     * @return True if an operand is still expected, after the opening bracket
+     *         of a subscript
+     */
+    private boolean parseOperand() {
+        int start = lexer.start(t);
+        int end = lexer.end(t);
+        if (lexer.kind(t) == Lexer.NUMBER) {
+            t++;
+            pushOperand(constant(start, end));
+            return false;
+        }
+        if (lexer.kind(t) != Lexer.NAME) {
+            throw error("unexpected '" + lexer.charAt(t) + "'", start);
+        }
+        t++;
+        if (lexer.is(t, '[') && lexer.start(t) == end) {
+            int slot = symbols.arraySlot(expr, start, end);
+            if (slot < 0) {
+                throw error("unknown array '" + expr.substring(start, end) + "'", end);
+            }
+            int open = lexer.start(t++);
+            if (t < lexer.count() && lexer.start(t) == matchOf[open]) {
+                t++;
+                pushOperand(new Node.Element(slot, new Node.Index()));
+                return false;
+            }
+            pushOperator(SUBSCRIPT, open, slot);
+            return true;
+        }
+        int slot = symbols.scalarSlot(expr, start, end);
+        if (slot < 0) {
+            throw error("unknown scalar '" + expr.substring(start, end) + "'", end);
+        }
+        pushOperand(new Node.Scalar(slot));
+        return false;
+    }
+
+    /**
+     * Builds the constant written in expr[start, end). Digits alone that
+     * surely fit in a long are converted in place, which gives the same
+     * constant as parsing the text.
+     */
+    private Node.Constant constant(int start, int end) {
+        if (end - start <= 18) {
+            long exact = 0;
+            int i = start;
+            while (i < end && expr.charAt(i) != '.') {
+                exact = exact * 10 + (expr.charAt(i++) - '0');
+            }
+            if (i == end) {
+                return new Node.Constant(exact);
+            }
+        }
+        try {
+            return new Node.Constant(expr.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw error("bad number '" + expr.substring(start, end) + "'", end);
+        }
+    }
+
+    /**
+     * Consumes the bracket token at the current position, which must close the
+     * innermost one still open. The enclosed expression must end exactly there.
+     */
+    private void close() {
+        reduce(1);
+        int at = lexer.start(t);
+        if (operatorCount == 0 || matchOf[opens[operatorCount - 1]] != at) {
+            throw error("unexpected '" + expr.charAt(at) + "'", at);
+        }
+        operatorCount--;
+        if (operators[operatorCount] == SUBSCRIPT) {
+            operands[operandCount - 1] = new Node.Element(slots[operatorCount], operands[operandCount - 1]);
+        }
+        t++;
+    }
+
+    /**
+     * Applies the operators on top of the stack, down to the innermost open
+     * bracket, while their precedence is at least the given one
+     */
+    private void reduce(int precedence) {
+        while (operatorCount > 0 && precedence(operators[operatorCount - 1]) >= precedence) {
+            char op = operators[--operatorCount];
+            if (op == NEGATE) {
+                operands[operandCount - 1] = new Node.Negate(operands[operandCount - 1]);
+            } else {
+                Node right = operands[--operandCount];
+                operands[operandCount - 1] = new Node.Binary(op, operands[operandCount - 1], right);
+            }
+        }
+    }
+
+    /**
+     * Precedence of an operator stack entry. Brackets have none, so reduce
+     * never goes past them.
+     */
+    private static int precedence(char op) {
+        switch (op) {
+            case NEGATE:
+                return 3;
+            case '*':
+            case '/':
+                return 2;
+            case '+':
+            case '-':
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    private void pushOperand(Node node) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+        }
+        operands[operandCount++] = node;
+    }
+
+    private void pushOperator(char op, int open, int slot) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+            opens = Arrays.copyOf(opens, operatorCount * 2);
+            slots = Arrays.copyOf(slots, operatorCount * 2);
+        }
+        operators[operatorCount] = op;
+        opens[operatorCount] = open;
+        slots[operatorCount] = slot;
+        operatorCount++;
+    }
+
+    private IllegalArgumentException error(String message, int position) {
+        return new IllegalArgumentException(message + " at position " + position + " in: " + expr);
+    }
+}
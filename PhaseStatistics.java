@@ -0,0 +1,129 @@
+package apps;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics listener that keeps running totals: for each phase the number of
+ * times it ran, its total time and its longest time, and for compiled
+ * expressions the largest size, depth and symbol counts seen. Safe to share
+ * between threads.
+ */
+public class PhaseStatistics implements ExpressionMetrics.Listener {
+
+    private static final int PHASES = ExpressionMetrics.Phase.values().length;
+
+    private final LongAdder[] counts = new LongAdder[PHASES];
+    private final LongAdder[] totals = new LongAdder[PHASES];
+    private final AtomicLong[] maxima = new AtomicLong[PHASES];
+
+    private final AtomicLong maxNodes = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+    private final AtomicLong maxScalars = new AtomicLong();
+    private final AtomicLong maxArrays = new AtomicLong();
+
+    /**
+     * Initializes empty statistics
+     */
+    public PhaseStatistics() {
+        for (int i = 0; i < PHASES; i++) {
+            counts[i] = new LongAdder();
+            totals[i] = new LongAdder();
+            maxima[i] = new AtomicLong();
+        }
+    }
+
+    public void phase(ExpressionMetrics.Phase phase, String expr, long nanos) {
+        int i = phase.ordinal();
+        counts[i].increment();
+        totals[i].add(nanos);
+        maxima[i].accumulateAndGet(nanos, Math::max);
+    }
+
+    public void compiled(String expr, int nodes, int depth, int scalars, int arrays) {
+        maxNodes.accumulateAndGet(nodes, Math::max);
+        maxDepth.accumulateAndGet(depth, Math::max);
+        maxScalars.accumulateAndGet(scalars, Math::max);
+        maxArrays.accumulateAndGet(arrays, Math::max);
+    }
+
+    /**
+     * @param phase Phase
+     * @return Number of times the phase ran
+     */
+    public long count(ExpressionMetrics.Phase phase) {
+        return counts[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase Phase
+     * @return Total time spent in the phase, in nanoseconds
+     */
+    public long totalNanos(ExpressionMetrics.Phase phase) {
+        return totals[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase Phase
+     * @return Longest single run of the phase, in nanoseconds
+     */
+    public long maxNanos(ExpressionMetrics.Phase phase) {
+        return maxima[phase.ordinal()].get();
+    }
+
+    /**
+     * @return Most nodes in any compiled expression
+     */
+    public long maxNodes() {
+        return maxNodes.get();
+    }
+
+    /**
+     * @return Greatest depth of any compiled expression
+     */
+    public long maxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * @return Most scalar symbols in any compiled expression
+     */
+    public long maxScalars() {
+        return maxScalars.get();
+    }
+
+    /**
+     * @return Most array symbols in any compiled expression
+     */
+    public long maxArrays() {
+        return maxArrays.get();
+    }
+
+    /**
+     * Clears all totals
+     */
+    public void reset() {
+        for (int i = 0; i < PHASES; i++) {
+            counts[i].reset();
+            totals[i].reset();
+            maxima[i].set(0);
+        }
+        maxNodes.set(0);
+        maxDepth.set(0);
+        maxScalars.set(0);
+        maxArrays.set(0);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (ExpressionMetrics.Phase phase : ExpressionMetrics.Phase.values()) {
+            long count = count(phase);
+            sb.append(phase).append(": count=").append(count)
+                .append(" mean=").append(count == 0 ? 0 : totalNanos(phase) / count).append("ns")
+                .append(" max=").append(maxNanos(phase)).append("ns\n");
+        }
+        sb.append("max nodes=").append(maxNodes()).append(" depth=").append(maxDepth())
+            .append(" scalars=").append(maxScalars()).append(" arrays=").append(maxArrays());
+        return sb.toString();
+    }
+}
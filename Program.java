@@ -0,0 +1,701 @@
+package apps;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Postfix form of an expression tree, as a flat array of opcodes and operands
+ * plus a table of constants. Evaluation runs on primitive stacks borrowed from
+ * the bindings, so in steady state it allocates nothing. If the tree is a DAG
+ * with shared nodes, each shared node is computed once and kept in a
+ * temporary, stored in the same array just above the stack.
+ * <p>
+ * A program is compiled for one kind of arithmetic. In float arithmetic every
+ * value lives on one float stack. In typed arithmetic integral values live on a
+ * long stack and real values on a double stack, each opcode knows which stacks
+ * it works on, and an integral value is converted only where a real operation
+ * uses it.
+ * <p>
+ * A program can also compute several expressions at once. Each result is moved
+ * to an output array as soon as it is computed, and temporaries stay valid for
+ * the whole run, so a node shared by several expressions is computed once.
+ */
+class Program {
+
+    /**
+     * Push constants[operand]
+     */
+    static final int CONST = 0;
+
+    /**
+     * Push the scalar in slot operand
+     */
+    static final int LOAD = 1;
+
+    /**
+     * Replace the top of the stack, a subscript, with an element of the array in
+     * slot operand
+     */
+    static final int ELEM = 2;
+
+    static final int NEG = 3;
+    static final int ADD = 4;
+    static final int SUB = 5;
+    static final int MUL = 6;
+    static final int DIV = 7;
+
+    /**
+     * Copy the top of the stack into temporary operand, leaving it in place
+     */
+    static final int STORE = 8;
+
+    /**
+     * Push temporary operand
+     */
+    static final int TEMP = 9;
+
+    /**
+     * Typed opcodes. L opcodes work on the long stack and D opcodes on the
+     * double stack, with the same meaning as the float opcodes above.
+     */
+    static final int LCONST = 10;
+    static final int LLOAD = 11;
+    static final int LNEG = 12;
+    static final int LADD = 13;
+    static final int LSUB = 14;
+    static final int LMUL = 15;
+    static final int LSTORE = 16;
+    static final int LTEMP = 17;
+    static final int DCONST = 18;
+    static final int DNEG = 19;
+    static final int DADD = 20;
+    static final int DSUB = 21;
+    static final int DMUL = 22;
+    static final int DDIV = 23;
+    static final int DSTORE = 24;
+    static final int DTEMP = 25;
+
+    /**
+     * Replace the long on top of the long stack, a subscript, with an element of
+     * the array in slot operand
+     */
+    static final int LELEM = 26;
+
+    /**
+     * Pop a double subscript, floor it, and push an element of the array in slot
+     * operand onto the long stack
+     */
+    static final int DELEM = 27;
+
+    /**
+     * Pop a long and push it onto the double stack
+     */
+    static final int L2D = 28;
+
+    /**
+     * Pop the top of the float, long or double stack into output operand
+     */
+    static final int OUT = 29;
+    static final int LOUT = 30;
+    static final int DOUT = 31;
+
+    /**
+     * Opcodes, each followed by its operand if it has one
+     */
+    final int[] code;
+
+    /**
+     * Constant table for float arithmetic
+     */
+    final float[] constants;
+
+    /**
+     * Constant tables for typed arithmetic
+     */
+    final long[] longs;
+    final double[] doubles;
+
+    /**
+     * Deepest the float stack, or in typed arithmetic the long stack, gets
+     */
+    final int maxStack;
+
+    /**
+     * Number of temporaries on the float stack, or in typed arithmetic the long
+     * stack
+     */
+    final int temps;
+
+    /**
+     * Deepest the double stack gets, and its number of temporaries
+     */
+    final int maxDoubles;
+    final int doubleTemps;
+
+    /**
+     * Whether the program uses typed arithmetic, and if so whether its result is
+     * on the long stack
+     */
+    final boolean typed;
+    final boolean integral;
+
+    private Program(Builder builder) {
+        code = Arrays.copyOf(builder.code, builder.codeLength);
+        constants = Arrays.copyOf(builder.constants, builder.constantCount);
+        longs = Arrays.copyOf(builder.longs, builder.longCount);
+        doubles = Arrays.copyOf(builder.doubles, builder.doubleCount);
+        maxStack = builder.maxDepth;
+        temps = builder.temps;
+        maxDoubles = builder.maxDoubleDepth;
+        doubleTemps = builder.doubleTemps;
+        typed = builder.typed;
+        integral = builder.integral;
+    }
+
+    /**
+     * Translates an expression tree or DAG into postfix form
+     *
+     * @param root Root of the tree
+     * @param typed True for typed arithmetic, false for float
+     * @return Program
+     */
+    static Program compile(Node root, boolean typed) {
+        return compile(root, typed, Optimizer.useCounts(root));
+    }
+
+    /**
+     * Translates an expression tree or DAG into postfix form, given the number
+     * of uses of each node when the caller has already counted them
+     *
+     * @param root Root of the tree
+     * @param typed True for typed arithmetic, false for float
+     * @param uses Number of uses of every node, see Optimizer.useCounts
+     * @return Program
+     */
+    static Program compile(Node root, boolean typed, IdentityHashMap<Node,Integer> uses) {
+        Builder builder = new Builder(uses, typed);
+        if (typed) {
+            builder.integral = root.integral();
+            builder.emitTyped(root);
+        } else {
+            builder.emit(root);
+        }
+        return new Program(builder);
+    }
+
+    /**
+     * Translates several trees, or one DAG with several roots, into a single
+     * program that writes the value of roots[i] to output i
+     *
+     * @param roots Roots
+     * @param typed True for typed arithmetic, false for float
+     * @return Program, to be run with evaluate(Bindings, double[])
+     */
+    static Program compile(Node[] roots, boolean typed) {
+        Builder builder = new Builder(Optimizer.useCounts(roots), typed);
+        for (int i = 0; i < roots.length; i++) {
+            if (typed && roots[i].integral()) {
+                builder.emitTyped(roots[i]);
+                builder.op(LOUT, i, -1);
+            } else if (typed) {
+                builder.emitTyped(roots[i]);
+                builder.doubleOp(DOUT, i, -1);
+            } else {
+                builder.emit(roots[i]);
+                builder.op(OUT, i, -1);
+            }
+        }
+        return new Program(builder);
+    }
+
+    /**
+     * Runs a program compiled for float arithmetic
+     *
+     * @param b Symbol values
+     * @return Result of evaluation
+     */
+    float evaluate(Bindings b) {
+        return runFloat(b, null);
+    }
+
+    /**
+     * Runs a program compiled from several roots
+     *
+     * @param b Symbol values
+     * @param out Receives the value of each root, in order
+     */
+    void evaluate(Bindings b, double[] out) {
+        evaluate(b, out, null);
+    }
+
+    /**
+     * Runs a program compiled from several roots, keeping the values of
+     * integral roots exact
+     *
+     * @param b Symbol values
+     * @param out Receives the value of each real root, in order
+     * @param exact Receives the value of each integral root, in order, or null
+     *        to have them converted into out
+     */
+    void evaluate(Bindings b, double[] out, long[] exact) {
+        if (typed) {
+            run(b, out, exact);
+        } else {
+            runFloat(b, out);
+        }
+    }
+
+    private float runFloat(Bindings b, double[] out) {
+        float[] stack = b.stack(maxStack + temps);
+        int[] code = this.code;
+        int base = maxStack;
+        int sp = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[++sp] = constants[code[pc++]];
+                    break;
+                case LOAD:
+                    stack[++sp] = b.scalar(code[pc++]);
+                    break;
+                case ELEM:
+                    stack[sp] = b.element(code[pc++], (int)Math.floor(stack[sp]));
+                    break;
+                case NEG:
+                    stack[sp] = -stack[sp];
+                    break;
+                case STORE:
+                    stack[base + code[pc++]] = stack[sp];
+                    break;
+                case TEMP:
+                    stack[++sp] = stack[base + code[pc++]];
+                    break;
+                case OUT:
+                    out[code[pc++]] = stack[sp--];
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp] = stack[sp] + stack[sp + 1];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp] = stack[sp] - stack[sp + 1];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp] = stack[sp] * stack[sp + 1];
+                    break;
+                default:
+                    sp--;
+                    stack[sp] = stack[sp] / stack[sp + 1];
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Runs a program compiled for typed arithmetic
+     *
+     * @param b Symbol values
+     * @return Result of evaluation
+     */
+    double evaluateDouble(Bindings b) {
+        long result = run(b, null, null);
+        return integral ? result : Double.longBitsToDouble(result);
+    }
+
+    /**
+     * Runs a program compiled for typed arithmetic whose result is integral
+     *
+     * @param b Symbol values
+     * @return Exact result of evaluation
+     */
+    long evaluateLong(Bindings b) {
+        return run(b, null, null);
+    }
+
+    /**
+     * Runs a program compiled for typed arithmetic
+     *
+     * @return The result if it is integral, else the bits of the double result;
+     *         zero for a program with several roots
+     */
+    private long run(Bindings b, double[] out, long[] exact) {
+        long[] ls = b.longStack(maxStack + temps);
+        double[] ds = b.doubleStack(maxDoubles + doubleTemps);
+        int[] code = this.code;
+        int lbase = maxStack;
+        int dbase = maxDoubles;
+        int lp = -1;
+        int dp = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case LCONST:
+                    ls[++lp] = longs[code[pc++]];
+                    break;
+                case LLOAD:
+                    ls[++lp] = b.scalar(code[pc++]);
+                    break;
+                case LELEM:
+                    ls[lp] = b.element(code[pc++], Node.index(ls[lp]));
+                    break;
+                case DELEM:
+                    ls[++lp] = b.element(code[pc++], (int)Math.floor(ds[dp--]));
+                    break;
+                case LNEG:
+                    ls[lp] = -ls[lp];
+                    break;
+                case LADD:
+                    lp--;
+                    ls[lp] = ls[lp] + ls[lp + 1];
+                    break;
+                case LSUB:
+                    lp--;
+                    ls[lp] = ls[lp] - ls[lp + 1];
+                    break;
+                case LMUL:
+                    lp--;
+                    ls[lp] = ls[lp] * ls[lp + 1];
+                    break;
+                case LSTORE:
+                    ls[lbase + code[pc++]] = ls[lp];
+                    break;
+                case LTEMP:
+                    ls[++lp] = ls[lbase + code[pc++]];
+                    break;
+                case L2D:
+                    ds[++dp] = ls[lp--];
+                    break;
+                case LOUT:
+                    if (exact != null) {
+                        exact[code[pc++]] = ls[lp--];
+                    } else {
+                        out[code[pc++]] = ls[lp--];
+                    }
+                    break;
+                case DOUT:
+                    out[code[pc++]] = ds[dp--];
+                    break;
+                case DCONST:
+                    ds[++dp] = doubles[code[pc++]];
+                    break;
+                case DNEG:
+                    ds[dp] = -ds[dp];
+                    break;
+                case DADD:
+                    dp--;
+                    ds[dp] = ds[dp] + ds[dp + 1];
+                    break;
+                case DSUB:
+                    dp--;
+                    ds[dp] = ds[dp] - ds[dp + 1];
+                    break;
+                case DMUL:
+                    dp--;
+                    ds[dp] = ds[dp] * ds[dp + 1];
+                    break;
+                case DDIV:
+                    dp--;
+                    ds[dp] = ds[dp] / ds[dp + 1];
+                    break;
+                case DSTORE:
+                    ds[dbase + code[pc++]] = ds[dp];
+                    break;
+                default:
+                    ds[++dp] = ds[dbase + code[pc++]];
+                    break;
+            }
+        }
+        if (out != null) {
+            return 0;
+        }
+        return integral ? ls[0] : Double.doubleToRawLongBits(ds[0]);
+    }
+
+    /**
+     * Accumulates code and constants while walking a tree
+     */
+    private static class Builder {
+        static final int VISIT = 0;
+        static final int APPLY = 1;
+        static final int REAL = 2;
+
+        int[] code = new int[16];
+        int codeLength = 0;
+        float[] constants = new float[4];
+        int constantCount = 0;
+        long[] longs = new long[4];
+        int longCount = 0;
+        double[] doubles = new double[4];
+        int doubleCount = 0;
+        HashMap<Long,Integer> constantIndex = new HashMap<Long,Integer>();
+        HashMap<Long,Integer> doubleIndex = new HashMap<Long,Integer>();
+        int depth = 0;
+        int maxDepth = 0;
+        int doubleDepth = 0;
+        int maxDoubleDepth = 0;
+        int temps = 0;
+        int doubleTemps = 0;
+        final boolean typed;
+        boolean integral;
+
+        /**
+         * Number of parents of each node
+         */
+        final IdentityHashMap<Node,Integer> uses;
+
+        /**
+         * Temporary holding each shared node that has been emitted
+         */
+        final IdentityHashMap<Node,Integer> stored = new IdentityHashMap<Node,Integer>();
+
+        /**
+         * Nodes waiting to be emitted, most recent last, each with what is
+         * still to be done for it: VISIT or APPLY, plus REAL if its value is
+         * wanted on the double stack
+         */
+        Node[] work = new Node[16];
+        int[] workState = new int[16];
+        int pending = 0;
+
+        Builder(IdentityHashMap<Node,Integer> uses, boolean typed) {
+            this.uses = uses;
+            this.typed = typed;
+        }
+
+        /**
+         * True if a node is worth keeping in a temporary. Leaves are cheap
+         * enough to emit again and never get one.
+         */
+        private boolean shared(Node node) {
+            return uses.get(node) > 1 && !(node instanceof Node.Constant) && !(node instanceof Node.Scalar);
+        }
+
+        /**
+         * Emits a tree in float arithmetic. Each node with several parents is
+         * computed once, kept in a temporary, and reloaded wherever it is used
+         * again. Nodes still to be emitted wait on an explicit stack, so the
+         * tree may be nested to any depth.
+         */
+        void emit(Node root) {
+            push(root, VISIT);
+            while (pending > 0) {
+                Node node = work[--pending];
+                if (workState[pending] == APPLY) {
+                    apply(node);
+                    if (shared(node)) {
+                        stored.put(node, temps);
+                        op(STORE, temps++, 0);
+                    }
+                    continue;
+                }
+                Integer temp = stored.get(node);
+                if (temp != null) {
+                    op(TEMP, temp, 1);
+                } else if (node instanceof Node.Constant) {
+                    float value = ((Node.Constant)node).value;
+                    Integer k = constantIndex.get((long)Float.floatToRawIntBits(value));
+                    if (k == null) {
+                        if (constantCount == constants.length) {
+                            constants = Arrays.copyOf(constants, constantCount * 2);
+                        }
+                        k = constantCount;
+                        constants[constantCount++] = value;
+                        constantIndex.put((long)Float.floatToRawIntBits(value), k);
+                    }
+                    op(CONST, k, 1);
+                } else if (node instanceof Node.Scalar) {
+                    op(LOAD, ((Node.Scalar)node).slot, 1);
+                } else {
+                    pushChildren(node, APPLY, VISIT);
+                }
+            }
+        }
+
+        /**
+         * Emits the operation of an element, negation or binary node whose
+         * operands are already on the stack
+         */
+        private void apply(Node node) {
+            if (node instanceof Node.Element) {
+                op(ELEM, ((Node.Element)node).slot, 0);
+            } else if (node instanceof Node.Negate) {
+                op(NEG);
+            } else {
+                switch (((Node.Binary)node).op) {
+                    case '+': op(ADD); break;
+                    case '-': op(SUB); break;
+                    case '*': op(MUL); break;
+                    default:  op(DIV); break;
+                }
+                depth--;
+            }
+        }
+
+        /**
+         * Emits a tree in typed arithmetic, leaving its value on the long stack
+         * if it is integral and on the double stack if not. Nodes are walked as
+         * by emit. An integral operand of a real operation is converted to
+         * double right after it is computed.
+         */
+        void emitTyped(Node root) {
+            push(root, VISIT);
+            while (pending > 0) {
+                Node node = work[--pending];
+                int state = workState[pending];
+                boolean integral = node.integral();
+                if ((state & APPLY) != 0) {
+                    if (integral) {
+                        applyLong(node);
+                    } else {
+                        applyDouble(node);
+                    }
+                    if (shared(node) && integral) {
+                        stored.put(node, temps);
+                        op(LSTORE, temps++, 0);
+                    } else if (shared(node)) {
+                        stored.put(node, doubleTemps);
+                        doubleOp(DSTORE, doubleTemps++, 0);
+                    }
+                } else {
+                    Integer temp = stored.get(node);
+                    if (temp != null && integral) {
+                        op(LTEMP, temp, 1);
+                    } else if (temp != null) {
+                        doubleOp(DTEMP, temp, 1);
+                    } else if (node instanceof Node.Constant && integral) {
+                        long value = ((Node.Constant)node).exact;
+                        Integer k = constantIndex.get(value);
+                        if (k == null) {
+                            if (longCount == longs.length) {
+                                longs = Arrays.copyOf(longs, longCount * 2);
+                            }
+                            k = longCount;
+                            longs[longCount++] = value;
+                            constantIndex.put(value, k);
+                        }
+                        op(LCONST, k, 1);
+                    } else if (node instanceof Node.Constant) {
+                        double value = ((Node.Constant)node).real;
+                        Integer k = doubleIndex.get(Double.doubleToRawLongBits(value));
+                        if (k == null) {
+                            if (doubleCount == doubles.length) {
+                                doubles = Arrays.copyOf(doubles, doubleCount * 2);
+                            }
+                            k = doubleCount;
+                            doubles[doubleCount++] = value;
+                            doubleIndex.put(Double.doubleToRawLongBits(value), k);
+                        }
+                        doubleOp(DCONST, k, 1);
+                    } else if (node instanceof Node.Scalar) {
+                        op(LLOAD, ((Node.Scalar)node).slot, 1);
+                    } else {
+                        pushChildren(node, state | APPLY, integral ? VISIT : VISIT | REAL);
+                        continue;
+                    }
+                }
+                if ((state & REAL) != 0 && integral) {
+                    op(L2D);
+                    depth--;
+                    doubleDepth++;
+                    maxDoubleDepth = Math.max(maxDoubleDepth, doubleDepth);
+                }
+            }
+        }
+
+        /**
+         * Emits the operation of an integral node whose operands are already on
+         * their stacks
+         */
+        private void applyLong(Node node) {
+            if (node instanceof Node.Element) {
+                Node.Element element = (Node.Element)node;
+                if (element.subscript.integral()) {
+                    op(LELEM, element.slot, 0);
+                } else {
+                    op(DELEM, element.slot, 1);
+                    doubleDepth--;
+                }
+            } else if (node instanceof Node.Negate) {
+                op(LNEG);
+            } else {
+                switch (((Node.Binary)node).op) {
+                    case '+': op(LADD); break;
+                    case '-': op(LSUB); break;
+                    default:  op(LMUL); break;
+                }
+                depth--;
+            }
+        }
+
+        /**
+         * Emits the operation of a real negation or binary node whose operands
+         * are already on the double stack
+         */
+        private void applyDouble(Node node) {
+            if (node instanceof Node.Negate) {
+                op(DNEG);
+            } else {
+                switch (((Node.Binary)node).op) {
+                    case '+': op(DADD); break;
+                    case '-': op(DSUB); break;
+                    case '*': op(DMUL); break;
+                    default:  op(DDIV); break;
+                }
+                doubleDepth--;
+            }
+        }
+
+        /**
+         * Schedules a node's operation, then its children before it, left
+         * first
+         */
+        private void pushChildren(Node node, int state, int childState) {
+            push(node, state);
+            for (int i = 1; i >= 0; i--) {
+                Node child = Optimizer.child(node, i);
+                if (child != null) {
+                    push(child, childState);
+                }
+            }
+        }
+
+        private void push(Node node, int state) {
+            if (pending == work.length) {
+                work = Arrays.copyOf(work, pending * 2);
+                workState = Arrays.copyOf(workState, pending * 2);
+            }
+            work[pending] = node;
+            workState[pending++] = state;
+        }
+
+        private void op(int opcode) {
+            add(opcode);
+        }
+
+        private void op(int opcode, int operand, int stackChange) {
+            add(opcode);
+            add(operand);
+            depth += stackChange;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void doubleOp(int opcode, int operand, int stackChange) {
+            add(opcode);
+            add(operand);
+            doubleDepth += stackChange;
+            maxDoubleDepth = Math.max(maxDoubleDepth, doubleDepth);
+        }
+
+        private void add(int word) {
+            if (codeLength == code.length) {
+                code = Arrays.copyOf(code, codeLength * 2);
+            }
+            code[codeLength++] = word;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package apps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates one compiled expression over a stream of rows of scalar values,
+ * writing one result per row. Each input line is a row: whitespace-separated
+ * integers, one per column, in the column order given at construction. Blank
+ * lines are skipped. The arrays are the same for every row.
+ * <p>
+ * Processing is split into overlapping stages. A reader thread cuts the input
+ * into chunks of whole lines; worker threads parse each chunk into columns and
+ * evaluate it with CompiledExpression.evaluateBatch; and the calling thread
+ * writes the results of each chunk in input order, one per line as by
+ * Float.toString. At most twice as many chunks as there are workers are in
+ * flight at once, so memory stays bounded however long the input is: when the
+ * writer falls behind, the reader waits.
+ */
+public class RowPipeline {
+
+    /**
+     * Default size of the chunks of input handed to the workers
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 1 << 18;
+
+    /**
+     * Expression evaluated for every row
+     */
+    private final CompiledExpression ce;
+
+    /**
+     * Array values shared by all rows
+     */
+    private final Bindings arrays;
+
+    /**
+     * Scalar slot of each input column, or -1 for a column the expression does
+     * not use
+     */
+    private final int[] slotOfColumn;
+
+    /**
+     * Number of worker threads
+     */
+    private final int threads;
+
+    /**
+     * Size the reader aims for when cutting the input into chunks
+     */
+    private final int chunkBytes;
+
+    /**
+     * Result of one chunk, with the number of lines and rows it covered
+     */
+    private static final class Chunk {
+        final byte[] output;
+        final int outputLength;
+        final int lines;
+        final long rows;
+
+        Chunk(byte[] output, int outputLength, int lines, long rows) {
+            this.output = output;
+            this.outputLength = outputLength;
+            this.lines = lines;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Marks the end of the input in the queue of chunks
+     */
+    private static final Chunk END = new Chunk(null, 0, 0, 0);
+
+    /**
+     * Malformed row, at a line counted from the start of its chunk
+     */
+    private static final class RowException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int line;
+
+        RowException(int line, String message) {
+            super(message);
+            this.line = line;
+        }
+    }
+
+    /**
+     * Initializes a pipeline with one worker per processor
+     *
+     * @param ce Expression to evaluate
+     * @param arrays Bindings holding the array values, which must not change
+     *        while the pipeline runs
+     * @param columns Names of the input columns, in order. Every scalar of the
+     *        expression must be one of them; other columns are ignored.
+     * @throws IllegalArgumentException If a scalar has no column, a column is
+     *         named twice, or the expression is element-wise
+     */
+    public RowPipeline(CompiledExpression ce, Bindings arrays, List<String> columns) {
+        this(ce, arrays, columns, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * Initializes a pipeline
+     *
+     * @param ce Expression to evaluate
+     * @param arrays Bindings holding the array values, which must not change
+     *        while the pipeline runs. If they fetch values from a provider,
+     *        each chunk fetches through a fresh copy.
+     * @param columns Names of the input columns, in order. Every scalar of the
+     *        expression must be one of them; other columns are ignored.
+     * @param threads Number of worker threads
+     * @param chunkBytes Approximate size of the chunks of input handed to the
+     *        workers. A chunk always ends at the end of a line.
+     * @throws IllegalArgumentException If a scalar has no column, a column is
+     *         named twice, the expression is element-wise, or threads or
+     *         chunkBytes is not positive
+     */
+    public RowPipeline(CompiledExpression ce, Bindings arrays, List<String> columns, int threads,
+            int chunkBytes) {
+        if (threads < 1 || chunkBytes < 1) {
+            throw new IllegalArgumentException("threads and chunk size must be positive");
+        }
+        if (ce.elementwise()) {
+            throw new IllegalArgumentException("element-wise expression: " + ce.expr);
+        }
+        this.ce = ce;
+        this.arrays = arrays;
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+        slotOfColumn = new int[columns.size()];
+        boolean[] covered = new boolean[ce.scalarNames.length];
+        for (int c = 0; c < slotOfColumn.length; c++) {
+            if (columns.indexOf(columns.get(c)) != c) {
+                throw new IllegalArgumentException("column " + columns.get(c) + " named twice");
+            }
+            slotOfColumn[c] = ce.scalarSlot(columns.get(c));
+            if (slotOfColumn[c] >= 0) {
+                covered[slotOfColumn[c]] = true;
+            }
+        }
+        for (int slot = 0; slot < covered.length; slot++) {
+            if (!covered[slot]) {
+                throw new IllegalArgumentException("no column for scalar " + ce.scalarNames[slot]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates every row of a file, writing the results to another
+     *
+     * @param in File of rows
+     * @param out File of results, replaced if it exists
+     * @return Number of rows evaluated
+     * @throws IOException If a file cannot be read or written, or a row is
+     *         malformed
+     */
+    public long run(Path in, Path out)
+    throws IOException {
+        try (InputStream input = Files.newInputStream(in);
+                OutputStream output = Files.newOutputStream(out)) {
+            return run(input, output);
+        }
+    }
+
+    /**
+     * Evaluates every row of a stream, writing the results to another. Neither
+     * stream is closed. If an error stops the pipeline while the reader is
+     * blocked reading, the reader thread finishes when the input is closed.
+     *
+     * @param in Rows
+     * @param out Receives the results, one per line, in input order
+     * @return Number of rows evaluated
+     * @throws IOException If the input cannot be read, the output cannot be
+     *         written, or a row is malformed
+     */
+    public long run(InputStream in, OutputStream out)
+    throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "RowPipeline worker");
+            t.setDaemon(true);
+            return t;
+        });
+        BlockingQueue<Future<Chunk>> pending = new ArrayBlockingQueue<Future<Chunk>>(2 * threads);
+        Thread reader = new Thread(() -> read(in, workers, pending), "RowPipeline reader");
+        reader.setDaemon(true);
+        reader.start();
+        long rows = 0;
+        long lines = 0;
+        try {
+            while (true) {
+                Chunk chunk;
+                try {
+                    chunk = pending.take().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted");
+                } catch (ExecutionException e) {
+                    throw failure(e.getCause(), lines);
+                }
+                if (chunk == END) {
+                    break;
+                }
+                out.write(chunk.output, 0, chunk.outputLength);
+                rows += chunk.rows;
+                lines += chunk.lines;
+            }
+            out.flush();
+            return rows;
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Converts the failure of a stage into the exception run() throws
+     *
+     * @param cause What the stage threw
+     * @param lines Lines written before the failed chunk
+     */
+    private static IOException failure(Throwable cause, long lines) {
+        if (cause instanceof RowException) {
+            RowException row = (RowException)cause;
+            return new IOException(row.getMessage() + " at line " + (lines + row.line));
+        }
+        if (cause instanceof IOException) {
+            return (IOException)cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error)cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Reader stage: cuts the input into chunks of whole lines and hands each to
+     * a worker, waiting while the queue of chunks in flight is full
+     */
+    private void read(InputStream in, ExecutorService workers, BlockingQueue<Future<Chunk>> pending) {
+        try {
+            byte[] carry = new byte[0];
+            while (true) {
+                byte[] buffer = Arrays.copyOf(carry, Math.max(chunkBytes, carry.length * 2));
+                int length = carry.length;
+                int n = 0;
+                while (length < buffer.length && (n = in.read(buffer, length, buffer.length - length)) >= 0) {
+                    length += n;
+                }
+                if (n < 0) {
+                    if (length > 0) {
+                        submit(buffer, length, workers, pending);
+                    }
+                    pending.put(CompletableFuture.completedFuture(END));
+                    return;
+                }
+                int end = length;
+                while (end > 0 && buffer[end - 1] != '\n') {
+                    end--;
+                }
+                if (end == 0) {
+                    carry = buffer;
+                    continue;
+                }
+                carry = Arrays.copyOfRange(buffer, end, length);
+                submit(buffer, end, workers, pending);
+            }
+        } catch (InterruptedException e) {
+            // the writer has stopped
+        } catch (Throwable e) {
+            // Errors too, such as running out of memory on a huge line, or the
+            // writer would wait for the next chunk forever
+            CompletableFuture<Chunk> failed = new CompletableFuture<Chunk>();
+            failed.completeExceptionally(e);
+            try {
+                pending.put(failed);
+            } catch (InterruptedException stopped) {
+                // the writer has stopped
+            }
+        }
+    }
+
+    private void submit(byte[] input, int length, ExecutorService workers,
+            BlockingQueue<Future<Chunk>> pending)
+    throws InterruptedException {
+        pending.put(workers.submit(() -> evaluate(input, length)));
+    }
+
+    /**
+     * Worker stage: parses the rows of a chunk into columns, evaluates them all
+     * at once and formats the results
+     */
+    private Chunk evaluate(byte[] input, int length)
+    throws RowException {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (input[i] == '\n') {
+                lines++;
+            }
+        }
+        int maxRows = input[length - 1] == '\n' ? lines : lines + 1;
+        int[][] columns = new int[ce.scalarNames.length][maxRows];
+        int rows = 0;
+        int line = 1;
+        int pos = 0;
+        while (pos < length) {
+            pos = skipBlank(input, pos, length);
+            if (pos == length || input[pos] == '\n') {
+                pos++;
+                line++;
+                continue;
+            }
+            for (int c = 0; c < slotOfColumn.length; c++) {
+                pos = skipBlank(input, pos, length);
+                if (pos == length || input[pos] == '\n') {
+                    throw new RowException(line, "expected " + slotOfColumn.length + " values");
+                }
+                boolean negative = input[pos] == '-';
+                if (negative) {
+                    pos++;
+                }
+                if (pos == length || input[pos] < '0' || input[pos] > '9') {
+                    throw new RowException(line, "number expected");
+                }
+                long value = 0;
+                while (pos < length && input[pos] >= '0' && input[pos] <= '9') {
+                    value = value * 10 + (input[pos++] - '0');
+                    if (value > (long)Integer.MAX_VALUE + 1) {
+                        throw new RowException(line, "number too large");
+                    }
+                }
+                if (negative) {
+                    value = -value;
+                }
+                if (value > Integer.MAX_VALUE) {
+                    throw new RowException(line, "number too large");
+                }
+                if (slotOfColumn[c] >= 0) {
+                    columns[slotOfColumn[c]][rows] = (int)value;
+                }
+            }
+            pos = skipBlank(input, pos, length);
+            if (pos < length && input[pos] != '\n') {
+                throw new RowException(line, "expected " + slotOfColumn.length + " values");
+            }
+            rows++;
+            pos++;
+            line++;
+        }
+
+        float[] results = new float[rows];
+        ce.evaluateBatch(columns, arrays.provided() ? arrays.copy() : arrays, results);
+        StringBuilder sb = new StringBuilder(rows * 8);
+        for (float result : results) {
+            sb.append(result).append('\n');
+        }
+        byte[] output = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        return new Chunk(output, output.length, lines, rows);
+    }
+
+    private static int skipBlank(byte[] input, int pos, int length) {
+        while (pos < length && (input[pos] == ' ' || input[pos] == '\t' || input[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+}
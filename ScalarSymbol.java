@@ -0,0 +1,47 @@
+package apps;
+
+/**
+ * A (name, integer value) pair for a simple (non-array) variable. The name is
+ * a sequence of one or more letters.
+ */
+public class ScalarSymbol {
+
+    /**
+     * Name, sequence of letters
+     */
+    public String name;
+
+    /**
+     * Integer value
+     */
+    public int value;
+
+    /**
+     * Initializes this symbol with the given name and a zero value
+     *
+     * @param name Variable name
+     */
+    public ScalarSymbol(String name) {
+        this.name = name;
+        value = 0;
+    }
+
+    public String toString() {
+        return name + "=" + value;
+    }
+
+    /**
+     * Symbols are equal if they have the same name
+     */
+    public boolean equals(Object o) {
+        if (o == null || !(o instanceof ScalarSymbol)) {
+            return false;
+        }
+        ScalarSymbol ss = (ScalarSymbol)o;
+        return name.equals(ss.name);
+    }
+
+    public int hashCode() {
+        return name.hashCode();
+    }
+}
@@ -0,0 +1,47 @@
+package apps;
+
+/**
+ * Source of symbol values fetched on demand, for symbols that are expensive to
+ * produce or arrays too large to load whole. Bindings created with a provider
+ * ask it for a scalar the first time an evaluation reads the scalar, and for an
+ * array element the first time that element is read; see
+ * CompiledExpression.newBindings(SymbolProvider).
+ * <p>
+ * Bindings backed by a provider change as they fetch, even while an
+ * evaluation only reads them, so each must stay on one thread; give other
+ * threads their own with Bindings.copy(). A provider shared by several Bindings
+ * that are used from different threads must be thread-safe. Wrap a slow
+ * provider in a CachingSymbolProvider to keep its values from one evaluation
+ * to the next.
+ */
+public interface SymbolProvider {
+
+    /**
+     * Returns the value of a scalar symbol
+     *
+     * @param name Name of the scalar
+     * @return Value
+     * @throws java.util.NoSuchElementException If there is no such scalar
+     */
+    int scalar(String name);
+
+    /**
+     * Returns the declared size of an array symbol
+     *
+     * @param name Name of the array
+     * @return Number of elements
+     * @throws java.util.NoSuchElementException If there is no such array
+     */
+    int arrayLength(String name);
+
+    /**
+     * Returns one element of an array symbol. Only called with an index within
+     * the declared size.
+     *
+     * @param name Name of the array
+     * @param index Index of the element
+     * @return Value
+     * @throws java.util.NoSuchElementException If there is no such array
+     */
+    int element(String name, int index);
+}
@@ -0,0 +1,255 @@
+package apps;
+
+import java.util.ArrayList;
+
+/**
+ * Maps symbol names to dense integer slots. Scalars and arrays are numbered
+ * separately, each from zero in the order they are added, and a name is only
+ * ever given one slot of each kind. Lookups are constant time, and a name can
+ * be looked up as a span of a longer text, such as a token of an expression,
+ * without creating a String; a String is only made when a new name is added.
+ */
+public class SymbolTable {
+
+    /**
+     * Names of one kind of symbol, by slot, in an open-addressing hash table
+     * keyed on their characters
+     */
+    private static final class Names {
+        final ArrayList<String> names = new ArrayList<String>();
+
+        /**
+         * Slot plus one of the name in each entry, or 0 for an empty entry
+         */
+        int[] table = new int[16];
+
+        /**
+         * Finds the slot of the name in text[start, end)
+         *
+         * @return Slot, or -1 if the name is not present
+         */
+        int find(CharSequence text, int start, int end) {
+            int mask = table.length - 1;
+            for (int i = hash(text, start, end) & mask; table[i] != 0; i = (i + 1) & mask) {
+                if (equal(names.get(table[i] - 1), text, start, end)) {
+                    return table[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds the name in text[start, end) if it is not already present
+         *
+         * @return True if the name was added
+         */
+        boolean add(CharSequence text, int start, int end) {
+            if (find(text, start, end) >= 0) {
+                return false;
+            }
+            if ((names.size() + 1) * 2 > table.length) {
+                int[] old = table;
+                table = new int[old.length * 2];
+                for (int entry : old) {
+                    if (entry != 0) {
+                        String name = names.get(entry - 1);
+                        insert(hash(name, 0, name.length()), entry);
+                    }
+                }
+            }
+            names.add(text.subSequence(start, end).toString());
+            insert(hash(text, start, end), names.size());
+            return true;
+        }
+
+        private void insert(int hash, int entry) {
+            int mask = table.length - 1;
+            int i = hash & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+
+        private static int hash(CharSequence text, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean equal(String name, CharSequence text, int start, int end) {
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != text.charAt(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Names scalars = new Names();
+    private final Names arrays = new Names();
+
+    /**
+     * Adds a scalar symbol if it is not already present
+     *
+     * @param name Name of the scalar
+     * @return True if the name was added, false if it already had a slot
+     */
+    public boolean addScalar(String name) {
+        return scalars.add(name, 0, name.length());
+    }
+
+    /**
+     * Adds an array symbol if it is not already present
+     *
+     * @param name Name of the array
+     * @return True if the name was added, false if it already had a slot
+     */
+    public boolean addArray(String name) {
+        return arrays.add(name, 0, name.length());
+    }
+
+    /**
+     * Adds every symbol used in an expression that is not already present. A
+     * name followed directly by '[' is an array, any other name a scalar.
+     *
+     * @param expr Expression
+     */
+    public void addSymbols(CharSequence expr) {
+        Lexer lexer = new Lexer();
+        int count = lexer.tokenize(expr);
+        for (int t = 0; t < count; t++) {
+            if (lexer.kind(t) != Lexer.NAME) {
+                continue;
+            }
+            if (lexer.is(t + 1, '[') && lexer.start(t + 1) == lexer.end(t)) {
+                arrays.add(expr, lexer.start(t), lexer.end(t));
+            } else {
+                scalars.add(expr, lexer.start(t), lexer.end(t));
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of a scalar symbol
+     *
+     * @param name Name of the scalar
+     * @return Slot, or -1 if there is no such scalar
+     */
+    public int scalarSlot(String name) {
+        return scalars.find(name, 0, name.length());
+    }
+
+    /**
+     * Returns the slot of an array symbol
+     *
+     * @param name Name of the array
+     * @return Slot, or -1 if there is no such array
+     */
+    public int arraySlot(String name) {
+        return arrays.find(name, 0, name.length());
+    }
+
+    /**
+     * Returns the slot of a scalar symbol whose name is part of a text
+     *
+     * @param text Text
+     * @param start Position of the first character of the name
+     * @param end Position just after the name
+     * @return Slot, or -1 if there is no such scalar
+     */
+    public int scalarSlot(CharSequence text, int start, int end) {
+        return scalars.find(text, start, end);
+    }
+
+    /**
+     * Returns the slot of an array symbol whose name is part of a text
+     *
+     * @param text Text
+     * @param start Position of the first character of the name
+     * @param end Position just after the name
+     * @return Slot, or -1 if there is no such array
+     */
+    public int arraySlot(CharSequence text, int start, int end) {
+        return arrays.find(text, start, end);
+    }
+
+    /**
+     * Returns the name of the scalar in a slot
+     *
+     * @param slot Slot
+     * @return Name
+     */
+    public String scalarName(int slot) {
+        return scalars.names.get(slot);
+    }
+
+    /**
+     * Returns the name of the array in a slot
+     *
+     * @param slot Slot
+     * @return Name
+     */
+    public String arrayName(int slot) {
+        return arrays.names.get(slot);
+    }
+
+    /**
+     * @return Number of scalar slots
+     */
+    public int scalarCount() {
+        return scalars.names.size();
+    }
+
+    /**
+     * @return Number of array slots
+     */
+    public int arrayCount() {
+        return arrays.names.size();
+    }
+
+    /**
+     * Creates a copy that gives every symbol the same slot. Adding to the copy
+     * does not change this table.
+     *
+     * @return New table with the same symbols
+     */
+    public SymbolTable copy() {
+        SymbolTable copy = new SymbolTable();
+        for (String name : scalars.names) {
+            copy.addScalar(name);
+        }
+        for (String name : arrays.names) {
+            copy.addArray(name);
+        }
+        return copy;
+    }
+
+    /**
+     * Creates bindings with one value slot per symbol in this table
+     *
+     * @return New bindings, with all scalars zero and all arrays null
+     */
+    public Bindings newBindings() {
+        return new Bindings(scalars.names.size(), arrays.names.size());
+    }
+
+    /**
+     * Creates bindings sized for this table that fetch values from a provider
+     * as they are read
+     *
+     * @param provider Source of values
+     * @param elementCacheSize Most elements of each array kept at once
+     * @return New bindings, with nothing fetched yet
+     */
+    public Bindings newBindings(SymbolProvider provider, int elementCacheSize) {
+        return new Bindings(scalars.names.toArray(new String[0]), arrays.names.toArray(new String[0]),
+            provider, elementCacheSize);
+    }
+}
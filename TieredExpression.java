@@ -0,0 +1,193 @@
+package apps;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An expression that starts out on the cheapest form to compile and switches
+ * to the fastest form to run once it has been evaluated often enough. The
+ * first tier is the postfix interpreter over the tree as parsed, which costs
+ * little more than parsing. Evaluations are counted, and when the count
+ * reaches the threshold the expression is recompiled on a background thread
+ * with the optimizer on and the bytecode backend, or the optimized interpreter
+ * if bytecode cannot be generated. The new form replaces the old one in a
+ * single volatile write; evaluations under way finish on the form they
+ * started on, and later ones use the new form. After promotion evaluations
+ * are no longer counted.
+ * <p>
+ * Promotion turns the optimizer on, so results may differ from the first tier
+ * in the ways the optimizer documents, see Optimizer. Both tiers use the same
+ * slots, so one Bindings object works with either. A TieredExpression is
+ * thread-safe; as with CompiledExpression, each thread needs its own Bindings.
+ * Promotions are reported to ExpressionMetrics.
+ */
+public class TieredExpression {
+
+    /**
+     * Number of evaluations that triggers promotion, unless another is given
+     */
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    /**
+     * Daemon thread that compiles promoted expressions, one at a time
+     */
+    private static final ExecutorService PROMOTER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TieredExpression promoter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Source of both tiers
+     */
+    private final String expr;
+    private final SymbolTable symbols;
+    private final int[] matchOf;
+    private final CompiledExpression.Arithmetic arithmetic;
+
+    /**
+     * Number of evaluations that triggers promotion
+     */
+    private final long threshold;
+
+    /**
+     * First tier
+     */
+    private final CompiledExpression baseline;
+
+    /**
+     * Form evaluations use: the first tier until promotion, then the promoted
+     * form
+     */
+    private volatile CompiledExpression current;
+
+    /**
+     * Evaluations counted on the first tier
+     */
+    private final AtomicLong invocations = new AtomicLong();
+
+    /**
+     * Compiles the first tier of an expression
+     *
+     * @param expr Expression
+     * @param symbols Symbols in the expression, with their slots; must not
+     *        change afterwards
+     * @param matchOf Partner position of each bracket, see Expression.matchBrackets
+     * @param arithmetic Arithmetic of both tiers
+     * @param threshold Number of evaluations that triggers promotion
+     * @throws IllegalArgumentException If the expression is malformed, or the
+     *         threshold is not positive
+     */
+    TieredExpression(String expr, SymbolTable symbols, int[] matchOf,
+            CompiledExpression.Arithmetic arithmetic, long threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        }
+        this.expr = expr;
+        this.symbols = symbols;
+        this.matchOf = matchOf;
+        this.arithmetic = arithmetic;
+        this.threshold = threshold;
+        baseline = new CompiledExpression(expr, symbols, matchOf, CompiledExpression.Backend.INTERPRETER,
+            false, arithmetic);
+        current = baseline;
+    }
+
+    /**
+     * Evaluates the expression on the current tier
+     *
+     * @param b Symbol values
+     * @return Result of evaluation, rounded to float if it was computed in typed
+     *         arithmetic
+     */
+    public float evaluate(Bindings b) {
+        CompiledExpression ce = current;
+        float result = ce.evaluate(b);
+        if (ce == baseline) {
+            count();
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the expression on the current tier without rounding the result
+     * to float
+     *
+     * @param b Symbol values
+     * @return Result of evaluation
+     */
+    public double evaluateDouble(Bindings b) {
+        CompiledExpression ce = current;
+        double result = ce.evaluateDouble(b);
+        if (ce == baseline) {
+            count();
+        }
+        return result;
+    }
+
+    /**
+     * Counts an evaluation on the first tier, and starts promotion on the one
+     * that reaches the threshold
+     */
+    private void count() {
+        if (invocations.incrementAndGet() == threshold) {
+            PROMOTER.execute(this::promote);
+        }
+    }
+
+    /**
+     * Compiles the optimized form and switches to it
+     */
+    private void promote() {
+        ExpressionMetrics.Span span = ExpressionMetrics.begin(ExpressionMetrics.Phase.PROMOTE);
+        CompiledExpression promoted = new CompiledExpression(expr, symbols, matchOf,
+            CompiledExpression.Backend.BYTECODE, true, arithmetic);
+        current = promoted;
+        if (span != null) {
+            span.end(expr);
+        }
+        ExpressionMetrics.promoted(expr, invocations.get(), promoted.backend());
+    }
+
+    /**
+     * Creates empty bindings that work with every tier
+     *
+     * @return New bindings, with all scalars zero and all arrays null
+     */
+    public Bindings newBindings() {
+        return baseline.newBindings();
+    }
+
+    /**
+     * @return Form evaluations currently use
+     */
+    public CompiledExpression current() {
+        return current;
+    }
+
+    /**
+     * @return True once the promoted form is in use
+     */
+    public boolean promoted() {
+        return current != baseline;
+    }
+
+    /**
+     * @return Number of evaluations counted on the first tier
+     */
+    public long invocations() {
+        return invocations.get();
+    }
+
+    /**
+     * @return Number of evaluations that triggers promotion
+     */
+    public long threshold() {
+        return threshold;
+    }
+
+    public String toString() {
+        return expr;
+    }
+}
@@ -0,0 +1,321 @@
+package apps;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads symbol values straight from bytes. The input has the same format as for
+ * Expression.loadSymbolValues: one symbol per line, either
+ * <pre>
+ *    name value
+ * </pre>
+ * for a scalar, or
+ * <pre>
+ *    name size (index,value) (index,value) ...
+ * </pre>
+ * for an array. Input is read through a large reusable buffer, names are matched
+ * against the symbol table without creating Strings, and lines for symbols that
+ * are not in the table are skipped without being tokenized.
+ */
+class ValueLoader {
+
+    /**
+     * Size of the read buffer
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    private final ReadableByteChannel in;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] bytes = buffer.array();
+    private int pos = 0;
+    private int limit = 0;
+    private int line = 1;
+
+    /**
+     * Symbol names as bytes, in an open-addressing table of size mask+1. Entry
+     * i holds a name in names[i], and its scalar and array slots (or -1).
+     */
+    private final byte[][] names;
+    private final int[] scalarSlots;
+    private final int[] arraySlots;
+    private final int mask;
+
+    /**
+     * Name being read, reused for every line
+     */
+    private byte[] name = new byte[64];
+
+    /**
+     * (index,value) pairs of the array being read, reused for every line
+     */
+    private int[] indices = new int[64];
+    private int[] vals = new int[64];
+
+    private ValueLoader(ReadableByteChannel in, SymbolTable symbols) {
+        this.in = in;
+        int size = Integer.highestOneBit(Math.max(4, (symbols.scalarCount() + symbols.arrayCount()) * 2)) * 2;
+        names = new byte[size][];
+        scalarSlots = new int[size];
+        arraySlots = new int[size];
+        mask = size - 1;
+        for (int i = 0; i < symbols.scalarCount(); i++) {
+            scalarSlots[entry(symbols.scalarName(i))] = i;
+        }
+        for (int i = 0; i < symbols.arrayCount(); i++) {
+            arraySlots[entry(symbols.arrayName(i))] = i;
+        }
+    }
+
+    /**
+     * Loads values for the symbols in a table
+     *
+     * @param in Input
+     * @param symbols Symbols whose values are wanted
+     * @param values Receives the values, by slot
+     * @throws IOException If the input cannot be read or is malformed
+     */
+    static void load(ReadableByteChannel in, SymbolTable symbols, Bindings values)
+    throws IOException {
+        new ValueLoader(in, symbols).load(values);
+    }
+
+    /**
+     * Finds or creates the table entry for a name
+     */
+    private int entry(String s) {
+        byte[] key = s.getBytes(StandardCharsets.UTF_8);
+        int i = hash(key, key.length) & mask;
+        while (names[i] != null && !equal(names[i], key, key.length)) {
+            i = (i + 1) & mask;
+        }
+        if (names[i] == null) {
+            names[i] = key;
+            scalarSlots[i] = -1;
+            arraySlots[i] = -1;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the table entry for the first length bytes of key
+     *
+     * @return Entry, or -1 if the name is not in the table
+     */
+    private int find(byte[] key, int length) {
+        int i = hash(key, length) & mask;
+        while (names[i] != null) {
+            if (equal(names[i], key, length)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(byte[] key, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + key[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equal(byte[] name, byte[] key, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void load(Bindings values)
+    throws IOException {
+        while (true) {
+            int ch = skipBlank();
+            if (ch == -1) {
+                return;
+            }
+            if (ch == '\n') {
+                pos++;
+                line++;
+                continue;
+            }
+            int length = readName();
+            int e = find(name, length);
+            if (e == -1) {
+                skipLine();
+                continue;
+            }
+            int num = readInt();
+            ch = skipBlank();
+            if (ch == -1 || ch == '\n') { // scalar symbol
+                if (scalarSlots[e] != -1) {
+                    values.setScalar(scalarSlots[e], num);
+                } else if (arraySlots[e] != -1) {
+                    throw new IOException("no (index,value) pairs for array "
+                        + new String(name, 0, length, StandardCharsets.UTF_8) + " at line " + line);
+                }
+                continue;
+            }
+            if (arraySlots[e] == -1) {
+                skipLine();
+                continue;
+            }
+            // array symbol, followed by (index,val) pairs
+            int count = 0;
+            while (true) {
+                ch = skipSeparators();
+                if (ch == -1 || ch == '\n') {
+                    break;
+                }
+                int index = readInt();
+                ch = skipSeparators();
+                if (ch == -1 || ch == '\n') {
+                    throw new IOException("index " + index + " has no value at line " + line);
+                }
+                int val = readInt();
+                if (index < 0 || index >= num) {
+                    throw new IOException("index " + index + " out of bounds for size " + num
+                        + " at line " + line);
+                }
+                if (count == indices.length) {
+                    indices = Arrays.copyOf(indices, count * 2);
+                    vals = Arrays.copyOf(vals, count * 2);
+                }
+                indices[count] = index;
+                vals[count++] = val;
+            }
+            values.setArray(arraySlots[e], ArrayStorage.create(num, indices, vals, count));
+        }
+    }
+
+    /**
+     * Returns the next byte without consuming it, or -1 at end of input
+     */
+    private int peek()
+    throws IOException {
+        if (pos == limit) {
+            buffer.clear();
+            int n;
+            do {
+                n = in.read(buffer);
+            } while (n == 0);
+            if (n < 0) {
+                return -1;
+            }
+            pos = 0;
+            limit = n;
+        }
+        return bytes[pos] & 0xff;
+    }
+
+    /**
+     * Skips spaces, tabs and carriage returns
+     *
+     * @return Next byte, or -1 at end of input
+     */
+    private int skipBlank()
+    throws IOException {
+        int ch;
+        while ((ch = peek()) == ' ' || ch == '\t' || ch == '\r') {
+            pos++;
+        }
+        return ch;
+    }
+
+    /**
+     * Skips blanks and the punctuation around (index,value) pairs
+     *
+     * @return Next byte, or -1 at end of input
+     */
+    private int skipSeparators()
+    throws IOException {
+        int ch;
+        while ((ch = peek()) == ' ' || ch == '\t' || ch == '\r' || ch == '(' || ch == ',' || ch == ')') {
+            pos++;
+        }
+        return ch;
+    }
+
+    /**
+     * Skips to the start of the next line
+     */
+    private void skipLine()
+    throws IOException {
+        while (true) {
+            if (pos == limit && peek() == -1) {
+                return;
+            }
+            for (int i = pos; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    pos = i + 1;
+                    line++;
+                    return;
+                }
+            }
+            pos = limit;
+        }
+    }
+
+    /**
+     * Reads a name into the name buffer
+     *
+     * @return Length of the name
+     */
+    private int readName()
+    throws IOException {
+        int length = 0;
+        int ch;
+        while ((ch = peek()) != -1 && ch != ' ' && ch != '\t' && ch != '\r' && ch != '\n') {
+            if (length == name.length) {
+                name = Arrays.copyOf(name, length * 2);
+            }
+            name[length++] = (byte)ch;
+            pos++;
+        }
+        return length;
+    }
+
+    /**
+     * Reads a decimal integer, after skipping blanks
+     */
+    private int readInt()
+    throws IOException {
+        int ch = skipBlank();
+        if (ch == -1) {
+            throw new EOFException("number expected at line " + line);
+        }
+        boolean negative = ch == '-';
+        if (negative) {
+            pos++;
+            ch = peek();
+        }
+        if (ch < '0' || ch > '9') {
+            throw new IOException("number expected at line " + line);
+        }
+        long value = 0;
+        while (ch >= '0' && ch <= '9') {
+            value = value * 10 + (ch - '0');
+            if (value > (long)Integer.MAX_VALUE + 1) {
+                throw new IOException("number too large at line " + line);
+            }
+            pos++;
+            ch = peek();
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("number too large at line " + line);
+        }
+        return (int)value;
+    }
+}
@@ -0,0 +1,61 @@
+package apps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation in float arithmetic and exactly in long, on each backend
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArithmeticBenchmark {
+
+    @Param({"INTERPRETER", "BYTECODE"})
+    public CompiledExpression.Backend backend;
+
+    CompiledExpression floats;
+    Bindings floatBindings;
+    CompiledExpression exact;
+    Bindings exactBindings;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        Expression single = BenchmarkData.load(BenchmarkData.EXPR);
+        single.setBackend(backend);
+        single.setArithmetic(CompiledExpression.Arithmetic.FLOAT);
+        floats = single.compile();
+        floatBindings = single.values;
+
+        Expression integer = BenchmarkData.load(BenchmarkData.INTEGER_EXPR);
+        integer.setBackend(backend);
+        exact = integer.compile();
+        exactBindings = integer.values;
+    }
+
+    @Benchmark
+    public float floatArithmetic() {
+        return floats.evaluate(floatBindings);
+    }
+
+    @Benchmark
+    public long longArithmetic() {
+        return exact.evaluateLong(exactBindings);
+    }
+}
@@ -0,0 +1,147 @@
+package apps;
+
+import java.io.IOException;
+import java.util.Scanner;
+
+/**
+ * Expressions and symbol values shared by the benchmarks
+ */
+final class BenchmarkData {
+
+    static final String EXPR = "a - (b+A[B[2]])*d + A[3] * (c/d + e*(a-b)) - B[a-b] / (e+1)";
+    static final String INTEGER_EXPR = "a*b + (c - A[B[2]])*7 - A[3]*11 + B[a-b] - d + e";
+    static final String VALUES =
+        "a 3\nb 2\nc 5\nd 7\ne 11\nA 5 (0,3) (1,2) (2,4) (3,1) (4,9)\nB 4 (0,1) (1,3) (2,0) (3,2)\n";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Builds the symbols of a formula and loads them from VALUES
+     */
+    static Expression load(String text)
+    throws IOException {
+        return load(text, VALUES);
+    }
+
+    /**
+     * Builds the symbols of a formula and loads them from the given values
+     */
+    static Expression load(String text, String values)
+    throws IOException {
+        Expression expr = new Expression(text);
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner(values));
+        return expr;
+    }
+
+    static CompiledExpression compile(String text) {
+        Expression expr = new Expression(text);
+        expr.setOptimize(true);
+        return expr.compile();
+    }
+
+    static Bindings arrayBindings(CompiledExpression ce, int[] a, int[] b) {
+        Bindings bindings = ce.newBindings();
+        bindings.setScalar(ce.scalarSlot("c"), 3);
+        bindings.setScalar(ce.scalarSlot("d"), 7);
+        bindings.setArray(ce.arraySlot("A"), a);
+        bindings.setArray(ce.arraySlot("B"), b);
+        return bindings;
+    }
+
+    /**
+     * Builds a sum of terms x_from*2 + ... + x_(to-1)*2 nested as a balanced
+     * tree, so that each term is a logarithmic number of levels from the root
+     */
+    static String balancedSum(int from, int to) {
+        if (to - from == 1) {
+            return "x" + from + "*2";
+        }
+        int mid = (from + to) / 2;
+        return "(" + balancedSum(from, mid) + ")+(" + balancedSum(mid, to) + ")";
+    }
+
+    /**
+     * Generates a sum of terms x_k*A[k] + B[x_k], each wrapped in depth levels
+     * of parentheses, over the given number of distinct scalars
+     */
+    static String generate(int terms, int depth, int symbols, int arraySize) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) {
+                sb.append(i % 2 == 0 ? " + " : " - ");
+            }
+            for (int d = 0; d < depth; d++) {
+                sb.append('(');
+            }
+            int k = i % symbols;
+            sb.append('x').append(k).append("*A[").append(i % arraySize).append("] + B[x").append(k).append(']');
+            for (int d = 0; d < depth; d++) {
+                sb.append(')');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generates values for the symbols used by generate(). Every element of A is
+     * set; B has one element per scalar value.
+     */
+    static String values(int symbols, int arraySize) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < symbols; k++) {
+            sb.append('x').append(k).append(' ').append(k % 7).append('\n');
+        }
+        sb.append("A ").append(arraySize);
+        for (int i = 0; i < arraySize; i++) {
+            sb.append(" (").append(i).append(',').append(i % 13).append(')');
+        }
+        sb.append("\nB 7");
+        for (int i = 0; i < 7; i++) {
+            sb.append(" (").append(i).append(',').append(i * i).append(')');
+        }
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * Builds a flat sum of about the given number of characters
+     */
+    static String flat(int chars) {
+        StringBuilder sb = new StringBuilder("a");
+        for (int i = 0; sb.length() < chars; i++) {
+            sb.append(" + b*(c-").append(i % 97).append(")/(A[").append(i % 5).append("]+1)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds a-(a-(...a-(b)...)) nested depth levels deep in parentheses
+     */
+    static String nested(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("a-(");
+        }
+        sb.append('b');
+        for (int i = 0; i < depth; i++) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds B[B[...B[0]...]] nested depth levels deep in subscripts
+     */
+    static String subscripts(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("B[");
+        }
+        sb.append('0');
+        for (int i = 0; i < depth; i++) {
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,70 @@
+package apps;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Computing A[i] + B[i]*c - A[i]/d for every index i, by evaluating a
+ * subscripted expression once per index and by evaluating the element-wise
+ * form in one call, for arrays of growing size. Times are per call, over all
+ * n elements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ElementwiseBenchmark {
+
+    @Param({"4096", "131072", "4194304"})
+    public int n;
+
+    int[] a;
+    CompiledExpression each;
+    Bindings eachBindings;
+    int index;
+    CompiledExpression whole;
+    Bindings wholeBindings;
+
+    @Setup
+    public void setUp() {
+        a = new int[n];
+        int[] b = new int[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i % 1000;
+            b[i] = i % 7 + 1;
+        }
+        each = BenchmarkData.compile("A[i] + B[i]*c - A[i]/d");
+        eachBindings = BenchmarkData.arrayBindings(each, a, b);
+        index = each.scalarSlot("i");
+        whole = BenchmarkData.compile("A[] + B[]*c - A[]/d");
+        wholeBindings = BenchmarkData.arrayBindings(whole, a, b);
+    }
+
+    @Benchmark
+    public float byIndex() {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            eachBindings.setScalar(index, i);
+            sum += each.evaluate(eachBindings);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float[] wholeArray() {
+        return whole.evaluateArray(wholeBindings);
+    }
+}
@@ -0,0 +1,57 @@
+package apps;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Changing one scalar of a balanced sum and evaluating it again, in full and
+ * with an IncrementalEvaluator
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IncrementalBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int terms;
+
+    CompiledExpression whole;
+    Bindings full;
+    IncrementalEvaluator incremental;
+    int counter;
+
+    @Setup
+    public void setUp() {
+        Expression big = new Expression(BenchmarkData.balancedSum(0, terms));
+        big.buildSymbols();
+        whole = big.compile();
+        full = whole.newBindings();
+        incremental = new IncrementalEvaluator(whole, whole.newBindings());
+    }
+
+    @Benchmark
+    public float full() {
+        full.setScalar(7, counter++);
+        return whole.evaluate(full);
+    }
+
+    @Benchmark
+    public float incremental() {
+        incremental.setScalar(7, counter++);
+        return incremental.evaluate();
+    }
+}
@@ -0,0 +1,55 @@
+package apps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading, compiling and evaluating flat sums of 256 KB and more of text, and
+ * expressions nested 25000 and more deep in parentheses and subscripts. Each
+ * scale doubles the size, so linear cost shows as time doubling with it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LargeBenchmark {
+
+    @Param({"flat", "nested", "subscripts"})
+    public String shape;
+
+    @Param({"1", "2", "4"})
+    public int scale;
+
+    String text;
+
+    @Setup
+    public void setUp() {
+        if (shape.equals("flat")) {
+            text = BenchmarkData.flat(scale * (256 << 10));
+        } else if (shape.equals("nested")) {
+            text = BenchmarkData.nested(scale * 25000);
+        } else {
+            text = BenchmarkData.subscripts(scale * 25000);
+        }
+    }
+
+    @Benchmark
+    public float loadAndEvaluate()
+    throws IOException {
+        return BenchmarkData.load(text).evaluate();
+    }
+}
@@ -0,0 +1,94 @@
+package apps;
+
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluating a small and a large formula directly and through a
+ * MemoizedExpression, fixed or adaptive, while one value, a scalar of the
+ * small formula and an element of the large one, cycles through a set of
+ * distinct values; 0 stands for values that never repeat. The memo's own
+ * statistics are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemoBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    @Param({"16", "65536", "0"})
+    public int distinct;
+
+    @Param({"direct", "memo", "adaptive"})
+    public String mode;
+
+    CompiledExpression ce;
+    Bindings b;
+    MemoizedExpression memo;
+    int slot;
+    int counter;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        Expression expr;
+        if (size.equals("small")) {
+            expr = BenchmarkData.load(BenchmarkData.EXPR);
+        } else {
+            expr = new Expression(BenchmarkData.generate(300, 2, 10, 100));
+            expr.buildSymbols();
+            expr.loadSymbolValues(new Scanner(BenchmarkData.values(10, 100)));
+        }
+        expr.setBackend(CompiledExpression.Backend.BYTECODE);
+        ce = expr.compile();
+        b = expr.values;
+        slot = size.equals("small") ? ce.scalarSlot("c") : ce.arraySlot("A");
+        if (!mode.equals("direct")) {
+            memo = new MemoizedExpression(ce, 16 << 20, mode.equals("adaptive"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (memo != null) {
+            System.out.println(memo);
+        }
+    }
+
+    /**
+     * Sets the varying value to the next in its cycle
+     */
+    private void change() {
+        int v = distinct == 0 ? counter++ : counter++ % distinct;
+        if (size.equals("small")) {
+            b.setScalar(slot, v);
+        } else {
+            b.setElement(slot, 0, v);
+        }
+    }
+
+    @Benchmark
+    public float evaluate() {
+        change();
+        return memo == null ? ce.evaluate(b) : memo.evaluate(b);
+    }
+}
@@ -0,0 +1,62 @@
+package apps;
+
+import java.io.IOException;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One evaluation of a flat sum of growing length, sequentially and with a
+ * ParallelEvaluator split for the common pool whatever its size, to find the
+ * size from which splitting pays
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelBenchmark {
+
+    @Param({"64", "256", "1024", "4096", "16384", "65536"})
+    public int terms;
+
+    CompiledExpression ce;
+    Bindings b;
+    ParallelEvaluator split;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        Expression expr = new Expression(BenchmarkData.generate(terms, 1, 10, 100));
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner(BenchmarkData.values(10, 100)));
+        ce = expr.compile();
+        b = expr.values;
+        split = new ParallelEvaluator(ce.root, true, ParallelEvaluator.grain(ce.nodeCount));
+        if (split.evaluateDouble(b, true) != ce.evaluateDouble(b)) {
+            throw new IllegalStateException("parallel result differs for " + terms + " terms");
+        }
+    }
+
+    @Benchmark
+    public double sequential() {
+        return ce.evaluateDouble(b);
+    }
+
+    @Benchmark
+    public double parallel() {
+        return split.evaluateDouble(b, true);
+    }
+}
@@ -0,0 +1,118 @@
+package apps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluation of one small formula through each path: Expression.evaluate(),
+ * the interpreter, generated bytecode, bytecode with a metrics listener
+ * installed, the optimized tree and batch evaluation of a column of rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PathsBenchmark {
+
+    static final int ROWS = 1000;
+
+    Expression plain;
+    CompiledExpression tree;
+    Bindings treeBindings;
+    CompiledExpression code;
+    Bindings codeBindings;
+    CompiledExpression folded;
+    Bindings foldedBindings;
+    int[][] columns;
+    float[] out;
+
+    /**
+     * Installs a listener for the phase metrics for as long as a benchmark
+     * runs
+     */
+    @State(Scope.Benchmark)
+    public static class Metrics {
+
+        @Setup
+        public void setUp() {
+            ExpressionMetrics.setListener(new PhaseStatistics());
+        }
+
+        @TearDown
+        public void tearDown() {
+            ExpressionMetrics.setListener(null);
+        }
+    }
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        plain = BenchmarkData.load(BenchmarkData.EXPR);
+        Expression interpreted = BenchmarkData.load(BenchmarkData.EXPR);
+        tree = interpreted.compile();
+        treeBindings = interpreted.values;
+        Expression generated = BenchmarkData.load(BenchmarkData.EXPR);
+        generated.setBackend(CompiledExpression.Backend.BYTECODE);
+        code = generated.compile();
+        codeBindings = generated.values;
+        Expression optimized = BenchmarkData.load(BenchmarkData.EXPR);
+        optimized.setOptimize(true);
+        folded = optimized.compile();
+        foldedBindings = optimized.values;
+
+        columns = new int[treeBindings.scalars.length][ROWS];
+        for (int slot = 0; slot < columns.length; slot++) {
+            for (int r = 0; r < ROWS; r++) {
+                columns[slot][r] = treeBindings.scalars[slot] + r % 2;
+            }
+        }
+        out = new float[ROWS];
+    }
+
+    @Benchmark
+    public float evaluate() {
+        return plain.evaluate();
+    }
+
+    @Benchmark
+    public float interpreter() {
+        return tree.evaluate(treeBindings);
+    }
+
+    @Benchmark
+    public float bytecode() {
+        return code.evaluate(codeBindings);
+    }
+
+    @Benchmark
+    public float bytecodeWithMetrics(Metrics metrics) {
+        return code.evaluate(codeBindings);
+    }
+
+    @Benchmark
+    public float optimized() {
+        return folded.evaluate(foldedBindings);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public float[] batch() {
+        tree.evaluateBatch(columns, treeBindings, out);
+        return out;
+    }
+}
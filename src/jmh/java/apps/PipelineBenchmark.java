@@ -0,0 +1,116 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each phase of processing separately and end to end. The shape varies one
+ * property of the expression at a time away from a base of 100 terms, nesting
+ * depth 2, 10 scalars and arrays of 100 elements; it is given as terms, depth,
+ * symbols and array size separated by commas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    @Param({"10,2,10,100", "100,2,10,100", "1000,2,10,100", "100,10,10,100", "100,100,10,100",
+        "100,2,100,100", "100,2,1000,100", "100,2,10,10000", "100,2,10,1000000"})
+    public String shape;
+
+    String text;
+    String values;
+    Path file;
+    Expression built;
+    Expression loaded;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        String[] p = shape.split(",");
+        int symbols = Integer.parseInt(p[2]);
+        int arraySize = Integer.parseInt(p[3]);
+        text = BenchmarkData.generate(Integer.parseInt(p[0]), Integer.parseInt(p[1]), symbols, arraySize);
+        values = BenchmarkData.values(symbols, arraySize);
+        file = Files.createTempFile("values", ".txt");
+        Files.writeString(file, values);
+        built = new Expression(text);
+        built.buildSymbols();
+        loaded = new Expression(text);
+        loaded.buildSymbols();
+        loaded.loadSymbolValues(file);
+    }
+
+    @TearDown
+    public void tearDown()
+    throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public boolean isLegallyMatched() {
+        return new Expression(text).isLegallyMatched();
+    }
+
+    @Benchmark
+    public Expression buildSymbols() {
+        Expression expr = new Expression(text);
+        expr.buildSymbols();
+        return expr;
+    }
+
+    @Benchmark
+    public int loadFromScanner()
+    throws IOException {
+        built.loadSymbolValues(new Scanner(values));
+        return built.values.scalar(0);
+    }
+
+    @Benchmark
+    public int loadFromPath()
+    throws IOException {
+        built.loadSymbolValues(file);
+        return built.values.scalar(0);
+    }
+
+    @Benchmark
+    public CompiledExpression compile() {
+        Expression expr = new Expression(text);
+        expr.buildSymbols();
+        return expr.compile();
+    }
+
+    @Benchmark
+    public float evaluate() {
+        return loaded.evaluate();
+    }
+
+    @Benchmark
+    public float endToEnd()
+    throws IOException {
+        Expression expr = new Expression(text);
+        expr.isLegallyMatched();
+        expr.buildSymbols();
+        expr.loadSymbolValues(file);
+        return expr.evaluate();
+    }
+}
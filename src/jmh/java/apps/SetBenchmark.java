@@ -0,0 +1,104 @@
+package apps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Related formulas evaluated one by one and as one ExpressionSet, both for a
+ * single evaluation of all formulas and for setting everything up from text.
+ * Times are per formula.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetBenchmark {
+
+    static final int FORMULAS = 200;
+
+    List<String> formulas;
+    String values;
+    Expression[] separate;
+    ExpressionSet set;
+    double[] out;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        values = BenchmarkData.values(10, 100);
+        formulas = new ArrayList<String>();
+        for (int i = 0; i < FORMULAS; i++) {
+            formulas.add("(x" + (i % 10) + "*A[" + (i % 20) + "] + B[x" + (i % 7) + "]) * (x0 + x1)"
+                + " - (x2 - x3) / (x4 + 1) + x" + (i % 10) + "*" + (i % 5));
+        }
+        separate = new Expression[FORMULAS];
+        for (int i = 0; i < FORMULAS; i++) {
+            separate[i] = new Expression(formulas.get(i));
+            separate[i].setOptimize(true);
+            separate[i].buildSymbols();
+            separate[i].loadSymbolValues(new Scanner(values));
+            separate[i].compile();
+        }
+        set = new ExpressionSet(formulas);
+        set.loadSymbolValues(new Scanner(values));
+        out = new double[FORMULAS];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FORMULAS)
+    public double separate() {
+        double sum = 0;
+        for (Expression e : separate) {
+            sum += e.evaluateDouble();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FORMULAS)
+    public double[] together() {
+        set.evaluate(set.values(), out);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FORMULAS)
+    public double setUpSeparate()
+    throws IOException {
+        double sum = 0;
+        for (String f : formulas) {
+            Expression e = new Expression(f);
+            e.setOptimize(true);
+            e.buildSymbols();
+            e.loadSymbolValues(new Scanner(values));
+            sum += e.evaluateDouble();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FORMULAS)
+    public double setUpTogether()
+    throws IOException {
+        ExpressionSet s = new ExpressionSet(formulas);
+        s.loadSymbolValues(new Scanner(values));
+        return s.evaluate()[0];
+    }
+}
@@ -0,0 +1,101 @@
+package apps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The two ways of getting many compiled formulas at startup: matching
+ * brackets, building symbols and compiling each text, against reading them
+ * all back from an archive written earlier. The first call of each is also
+ * timed on its own, in a fresh JVM, as a process start would see it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    static final int COUNT = 20000;
+
+    List<String> formulas;
+    Path file;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        formulas = new ArrayList<String>();
+        for (int i = 0; i < COUNT; i++) {
+            formulas.add(BenchmarkData.generate(5 + i % 30, 1 + i % 3, 10, 100) + " + " + i);
+        }
+        file = Files.createTempFile("formulas", ".bin");
+        ExpressionArchive.write(file, compile(formulas));
+    }
+
+    @TearDown
+    public void tearDown()
+    throws IOException {
+        Files.delete(file);
+    }
+
+    static List<CompiledExpression> compile(List<String> formulas) {
+        List<CompiledExpression> compiled = new ArrayList<CompiledExpression>();
+        for (String f : formulas) {
+            Expression expr = new Expression(f);
+            expr.setOptimize(true);
+            if (!expr.isLegallyMatched()) {
+                throw new IllegalStateException(f);
+            }
+            expr.buildSymbols();
+            compiled.add(expr.compile());
+        }
+        return compiled;
+    }
+
+    @Benchmark
+    public List<CompiledExpression> text() {
+        return compile(formulas);
+    }
+
+    @Benchmark
+    public List<CompiledExpression> archive()
+    throws IOException {
+        return ExpressionArchive.read(file);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(5)
+    public List<CompiledExpression> textFirstCall() {
+        return compile(formulas);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(5)
+    public List<CompiledExpression> archiveFirstCall()
+    throws IOException {
+        return ExpressionArchive.read(file);
+    }
+}
@@ -0,0 +1,104 @@
+package apps;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluating EXPR over a file of rows of scalar values: reading, evaluating
+ * and writing one line at a time, and with a RowPipeline of one worker and of
+ * one worker per processor. Times are for the whole file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamBenchmark {
+
+    static final int ROWS = 1000000;
+
+    static final List<String> COLUMNS = Arrays.asList("a", "b", "c", "d", "e");
+
+    Expression expr;
+    CompiledExpression ce;
+    Path in;
+    Path out;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        expr = BenchmarkData.load(BenchmarkData.EXPR);
+        ce = expr.compile();
+        in = Files.createTempFile("rows", ".txt");
+        out = Files.createTempFile("results", ".txt");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            sb.append(3 + i % 2).append(' ').append(1 + i % 3).append(' ').append(i % 1000)
+                .append(' ').append(1 + i % 7).append(' ').append(i % 11).append('\n');
+        }
+        Files.writeString(in, sb);
+    }
+
+    @TearDown
+    public void tearDown()
+    throws IOException {
+        Files.delete(in);
+        Files.delete(out);
+    }
+
+    @Benchmark
+    public long lines()
+    throws IOException {
+        Bindings b = expr.values.copy();
+        int[] slots = new int[COLUMNS.size()];
+        for (int c = 0; c < slots.length; c++) {
+            slots[c] = ce.scalarSlot(COLUMNS.get(c));
+        }
+        long rows = 0;
+        try (BufferedReader reader = Files.newBufferedReader(in);
+                BufferedWriter writer = Files.newBufferedWriter(out)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.trim().split("\\s+");
+                for (int c = 0; c < slots.length; c++) {
+                    b.setScalar(slots[c], Integer.parseInt(values[c]));
+                }
+                writer.write(Float.toString(ce.evaluate(b)));
+                writer.newLine();
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    @Benchmark
+    public long pipelineOneWorker()
+    throws IOException {
+        return new RowPipeline(ce, expr.values, COLUMNS, 1, RowPipeline.DEFAULT_CHUNK_BYTES).run(in, out);
+    }
+
+    @Benchmark
+    public long pipeline()
+    throws IOException {
+        return new RowPipeline(ce, expr.values, COLUMNS).run(in, out);
+    }
+}
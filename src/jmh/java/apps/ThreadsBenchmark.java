@@ -0,0 +1,69 @@
+package apps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of one compiled expression shared by every benchmark thread, each
+ * with its own copy of the bindings. Run with -t 1, -t 2, -t 4, ... to see
+ * how it scales.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadsBenchmark {
+
+    /**
+     * Expression shared by all threads
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+
+        @Param({"INTERPRETER", "BYTECODE"})
+        public CompiledExpression.Backend backend;
+
+        CompiledExpression ce;
+        Bindings values;
+
+        @Setup
+        public void setUp()
+        throws IOException {
+            Expression expr = BenchmarkData.load(BenchmarkData.EXPR);
+            expr.setBackend(backend);
+            ce = expr.compile();
+            values = expr.values;
+        }
+    }
+
+    /**
+     * Bindings of one thread
+     */
+    @State(Scope.Thread)
+    public static class Own {
+        Bindings b;
+
+        @Setup
+        public void setUp(Shared shared) {
+            b = shared.values.copy();
+        }
+    }
+
+    @Benchmark
+    public float evaluate(Shared shared, Own own) {
+        return shared.ce.evaluate(own.b);
+    }
+}
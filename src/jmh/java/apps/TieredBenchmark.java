@@ -0,0 +1,95 @@
+package apps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The three ways evaluate() can run a formula: always on the unoptimized
+ * interpreter, always on optimized bytecode, and tiered. In the cold case many
+ * distinct formulas are each built and evaluated a few times, so compile time
+ * dominates; in the hot case one formula is evaluated many times, so
+ * evaluation time dominates. Times are per evaluation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TieredBenchmark {
+
+    static final int FORMULAS = 2000;
+
+    static final int EVALUATIONS = 5;
+
+    @Param({"interpreter", "bytecode", "tiered"})
+    public String mode;
+
+    List<String> formulas;
+    String values;
+    Expression hot;
+
+    @Setup
+    public void setUp()
+    throws IOException {
+        formulas = new ArrayList<String>();
+        for (int i = 0; i < FORMULAS; i++) {
+            formulas.add(BenchmarkData.generate(5 + i % 30, 1 + i % 3, 10, 100) + " + " + i);
+        }
+        values = BenchmarkData.values(10, 100);
+        hot = load(BenchmarkData.EXPR, BenchmarkData.VALUES);
+    }
+
+    /**
+     * Loads a formula and its values, set up so that evaluate() runs in the
+     * benchmark's mode
+     */
+    private Expression load(String text, String values)
+    throws IOException {
+        Expression expr = new Expression(text);
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner(values));
+        if (mode.equals("bytecode")) {
+            expr.setBackend(CompiledExpression.Backend.BYTECODE);
+            expr.setOptimize(true);
+        } else if (mode.equals("tiered")) {
+            expr.setTiering(TieredExpression.DEFAULT_THRESHOLD);
+        }
+        return expr;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FORMULAS * EVALUATIONS)
+    public float cold()
+    throws IOException {
+        float result = 0;
+        for (String f : formulas) {
+            Expression expr = load(f, values);
+            for (int i = 0; i < EVALUATIONS; i++) {
+                result += expr.evaluate();
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public float hot() {
+        return hot.evaluate();
+    }
+}
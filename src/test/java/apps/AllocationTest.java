@@ -0,0 +1,107 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that evaluating a compiled expression allocates nothing once warmed
+ * up, on every backend and in every arithmetic
+ */
+class AllocationTest {
+
+    static final String EXPR = "a - (b+A[B[2]])*d + A[3] * (c/d + e*(a-b)) - B[a-b] / (e+1)";
+    static final String INTEGER_EXPR = "a*b + (c - A[B[2]])*7 - A[3]*11 + B[a-b] - d + e";
+    static final String VALUES =
+        "a 3\nb 2\nc 5\nd 7\ne 11\nA 5 (0,3) (1,2) (2,4) (3,1) (4,9)\nB 4 (0,1) (1,3) (2,0) (3,2)\n";
+
+    static final int CALLS = 200000;
+
+    /**
+     * Sink for results, so the JIT cannot discard the evaluations
+     */
+    static volatile double sink;
+
+    interface Evaluation {
+        double run();
+    }
+
+    static Expression load(String text, CompiledExpression.Backend backend,
+            CompiledExpression.Arithmetic arithmetic)
+    throws IOException {
+        Expression expr = new Expression(text);
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner(VALUES));
+        expr.setBackend(backend);
+        expr.setArithmetic(arithmetic);
+        return expr;
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread
+     */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs an evaluation CALLS times to warm up, then CALLS times more, and
+     * fails if the second round allocated as much as a byte per call
+     */
+    static void assertNoAllocation(String name, Evaluation evaluation) {
+        double result = 0;
+        for (int i = 0; i < CALLS; i++) {
+            result += evaluation.run();
+        }
+        long allocated = allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            result += evaluation.run();
+        }
+        allocated = allocatedBytes() - allocated;
+        sink = result;
+        assertTrue(allocated < CALLS, name + " allocated " + allocated + " bytes in " + CALLS + " calls");
+    }
+
+    @Test
+    void evaluateAllocatesNothing()
+    throws IOException {
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+                Expression expr = load(EXPR, backend, arithmetic);
+                CompiledExpression ce = expr.compile();
+                Bindings b = expr.values;
+                String name = backend + "/" + arithmetic;
+                assertNoAllocation(name + " evaluate", () -> ce.evaluate(b));
+                assertNoAllocation(name + " evaluateDouble", () -> ce.evaluateDouble(b));
+            }
+        }
+    }
+
+    @Test
+    void evaluateLongAllocatesNothing()
+    throws IOException {
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            Expression expr = load(INTEGER_EXPR, backend, CompiledExpression.Arithmetic.TYPED);
+            CompiledExpression ce = expr.compile();
+            Bindings b = expr.values;
+            assertNoAllocation(backend + " evaluateLong", () -> ce.evaluateLong(b));
+        }
+    }
+
+    @Test
+    void optimizedEvaluateAllocatesNothing()
+    throws IOException {
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            Expression expr = load(EXPR, backend, CompiledExpression.Arithmetic.TYPED);
+            expr.setOptimize(true);
+            CompiledExpression ce = expr.compile();
+            Bindings b = expr.values;
+            assertNoAllocation(backend + " optimized evaluate", () -> ce.evaluate(b));
+        }
+    }
+}
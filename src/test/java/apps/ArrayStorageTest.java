@@ -0,0 +1,116 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks which representation ArrayStorage picks for an array, and that every
+ * representation reads back what was set, reads zero elsewhere and rejects
+ * indices outside the declared size
+ */
+class ArrayStorageTest {
+
+    static ArrayStorage create(int length, int count) {
+        int[] indices = new int[count];
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = (int)((long)i * length / count);
+            values[i] = i * 7 - 3;
+        }
+        return ArrayStorage.create(length, indices, values, count);
+    }
+
+    @Test
+    void picksRepresentationFromHowManyAreSet() {
+        // Fewer than one in SPARSE_RATIO set is sparse, that many or more is dense
+        assertInstanceOf(ArrayStorage.Sparse.class, create(1000, 1000 / ArrayStorage.SPARSE_RATIO - 1));
+        assertInstanceOf(ArrayStorage.Dense.class, create(1000, 1000 / ArrayStorage.SPARSE_RATIO));
+        assertInstanceOf(ArrayStorage.Sparse.class, create(1000, 0));
+        assertInstanceOf(ArrayStorage.Dense.class, create(0, 0));
+
+        // Dense and large is off the heap
+        int large = ArrayStorage.OFF_HEAP_LENGTH;
+        assertInstanceOf(ArrayStorage.OffHeap.class, create(large, large / ArrayStorage.SPARSE_RATIO));
+        assertInstanceOf(ArrayStorage.Dense.class, create(large - 1, large / ArrayStorage.SPARSE_RATIO));
+        assertInstanceOf(ArrayStorage.Sparse.class, create(large, 10));
+    }
+
+    void assertRoundTrips(ArrayStorage storage, long seed) {
+        Random random = new Random(seed);
+        int length = storage.length();
+        int[] indices = new int[200];
+        int[] values = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = random.nextInt(length);
+            values[i] = random.nextInt();
+            storage.set(indices[i], values[i]);
+        }
+        // Later sets of the same index win
+        for (int i = 0; i < indices.length; i++) {
+            int expected = values[i];
+            for (int j = i + 1; j < indices.length; j++) {
+                if (indices[j] == indices[i]) {
+                    expected = values[j];
+                }
+            }
+            assertEquals(expected, storage.get(indices[i]), storage.getClass().getSimpleName());
+        }
+        ArrayStorage array = storage;
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.get(-1));
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.get(length));
+        assertThrows(ArrayIndexOutOfBoundsException.class, () -> array.set(length, 1));
+    }
+
+    @Test
+    void elementsRoundTrip() {
+        ArrayStorage sparse = create(100000, 3);
+        assertEquals(0, sparse.get(1));
+        assertEquals(4, sparse.get(33333));
+        assertEquals(100000, sparse.length());
+        assertNull(sparse.dense());
+        // Setting far more than expected makes the map grow
+        assertRoundTrips(sparse, 1);
+        assertRoundTrips(create(1000, 500), 2);
+
+        ArrayStorage offHeap = create(ArrayStorage.OFF_HEAP_LENGTH, ArrayStorage.OFF_HEAP_LENGTH / 2);
+        assertEquals(0, offHeap.get(1));
+        assertEquals(11, offHeap.get(4));
+        assertEquals((ArrayStorage.OFF_HEAP_LENGTH / 2 - 1) * 7 - 3, offHeap.get(ArrayStorage.OFF_HEAP_LENGTH - 2));
+        assertNull(offHeap.dense());
+        assertRoundTrips(offHeap, 3);
+
+        int[] values = {1, 2, 3};
+        ArrayStorage dense = ArrayStorage.of(values);
+        assertSame(values, dense.dense());
+        dense.set(1, 5);
+        assertEquals(5, values[1]);
+    }
+
+    @Test
+    void expressionsReadEveryRepresentation()
+    throws IOException {
+        Expression expr = new Expression("A[2] + B[99999] - B[5] + C[16777215]*2");
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner("A 3 (0,1) (1,2) (2,3)\nB 100000 (99999,10)\n"));
+        // Too large to load from text here
+        ArrayStorage c = create(ArrayStorage.OFF_HEAP_LENGTH, ArrayStorage.OFF_HEAP_LENGTH / 2);
+        c.set(ArrayStorage.OFF_HEAP_LENGTH - 1, 4);
+        expr.values.setArray(expr.symbols.arraySlot("C"), c);
+        assertInstanceOf(ArrayStorage.Dense.class, expr.values.array(expr.symbols.arraySlot("A")));
+        assertInstanceOf(ArrayStorage.Sparse.class, expr.values.array(expr.symbols.arraySlot("B")));
+        assertInstanceOf(ArrayStorage.OffHeap.class, expr.values.array(expr.symbols.arraySlot("C")));
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            expr.setBackend(backend);
+            assertEquals(3 + 10 - 0 + 4 * 2, expr.evaluate(), backend.toString());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Evaluates shared compiled expressions from many threads at once, each with
+ * its own Bindings, and compares every result with a single-threaded
+ * evaluation of the same formula on the same values
+ */
+class ConcurrencyTest {
+
+    static final int THREADS = 16;
+    static final int ITERATIONS = 2000;
+
+    /**
+     * Number of distinct values each thread gives scalar a
+     */
+    static final int VALUES = 8;
+
+    static final String[] SCALARS = {"a", "b", "c", "d", "e"};
+    static final int[] A = {3, 2, 4, 1, 9, 5, 7, 6};
+    static final int[] B = {1, 3, 0, 2, 5, 4, 7, 6};
+
+    /**
+     * Formulas over a, b, c, d, e, A and B whose subscripts stay in bounds for
+     * every value a takes
+     */
+    static List<String> formulas() {
+        List<String> formulas = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            formulas.add("a*" + i + " - (b+A[B[" + (i % 8) + "]])*d + A[" + (i % 5) + "] * (c/d + e*(a-b))"
+                + " - B[a] / (e+" + (i + 1) + ")");
+        }
+        return formulas;
+    }
+
+    /**
+     * Sets every symbol a formula uses, with a = value
+     */
+    static Bindings bind(CompiledExpression ce, Bindings b, int value) {
+        for (int i = 0; i < SCALARS.length; i++) {
+            int slot = ce.scalarSlot(SCALARS[i]);
+            if (slot >= 0) {
+                b.setScalar(slot, i == 0 ? value : 2 * i + 1);
+            }
+        }
+        if (ce.arraySlot("A") >= 0) {
+            b.setArray(ce.arraySlot("A"), A);
+        }
+        if (ce.arraySlot("B") >= 0) {
+            b.setArray(ce.arraySlot("B"), B);
+        }
+        return b;
+    }
+
+    /**
+     * Runs a task on THREADS threads started together, and fails with the
+     * first thing any of them threw
+     */
+    static void runAll(Worker worker)
+    throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    worker.run(id);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+    }
+
+    interface Worker {
+        void run(int thread);
+    }
+
+    @Test
+    void sharedExpressionMatchesSingleThreaded()
+    throws InterruptedException {
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+                Expression expr = new Expression(formulas().get(7));
+                expr.setBackend(backend);
+                expr.setArithmetic(arithmetic);
+                CompiledExpression ce = expr.compile();
+                float[] expected = new float[VALUES];
+                for (int v = 0; v < VALUES; v++) {
+                    expected[v] = ce.evaluate(bind(ce, ce.newBindings(), v));
+                }
+                Bindings prototype = bind(ce, ce.newBindings(), 0);
+                runAll(thread -> {
+                    Bindings own = prototype.copy();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        int v = (thread + i) % VALUES;
+                        own.setScalar(ce.scalarSlot("a"), v);
+                        assertEquals(expected[v], ce.evaluate(own), backend + "/" + arithmetic + " a=" + v);
+                    }
+                });
+            }
+        }
+    }
+
+    @Test
+    void sharedCacheMatchesSingleThreaded()
+    throws InterruptedException {
+        List<String> formulas = formulas();
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            float[][] expected = new float[formulas.size()][VALUES];
+            for (int f = 0; f < formulas.size(); f++) {
+                Expression expr = new Expression(formulas.get(f));
+                expr.setBackend(backend);
+                CompiledExpression ce = expr.compile();
+                for (int v = 0; v < VALUES; v++) {
+                    expected[f][v] = ce.evaluate(bind(ce, ce.newBindings(), v));
+                }
+            }
+            // Fewer entries than formulas, so threads also race on evictions
+            // and recompilation
+            ExpressionCache cache = new ExpressionCache(formulas.size() / 4, backend);
+            runAll(thread -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    int f = (thread * 7 + i) % formulas.size();
+                    int v = (thread + i) % VALUES;
+                    CompiledExpression ce = cache.get(formulas.get(f));
+                    assertEquals(expected[f][v], ce.evaluate(bind(ce, ce.newBindings(), v)),
+                        backend + " " + formulas.get(f) + " a=" + v);
+                }
+            });
+            assertEquals((long)THREADS * ITERATIONS, cache.hits() + cache.misses());
+            assertTrue(cache.size() <= formulas.size() / 4, cache.toString());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Reads back archives written by ExpressionArchive, and checks that every kind
+ * of damage to one is rejected with an IOException
+ */
+class ExpressionArchiveTest {
+
+    /**
+     * The archive of "-a" ends with this record: text, arithmetic, one scalar
+     * and its name, no arrays, source node count, node count, then the nodes
+     * SCALAR slot 0 and NEGATE back 1.
+     */
+    static final int RECORD = 11;
+    static final int ARITHMETIC = RECORD - 1;
+    static final int SLOT = 3;
+    static final int KIND = 2;
+    static final int DISTANCE = 1;
+
+    @TempDir
+    Path dir;
+
+    byte[] archive(String text)
+    throws IOException {
+        Path file = dir.resolve("archive.bin");
+        ExpressionArchive.write(file, Collections.singletonList(new Expression(text).compile()));
+        return Files.readAllBytes(file);
+    }
+
+    /**
+     * Stores a correct checksum for the body, so that reading gets past it
+     */
+    static byte[] withChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, ExpressionArchive.HEADER_SIZE, bytes.length - ExpressionArchive.HEADER_SIZE);
+        ByteBuffer.wrap(bytes).putInt(12, (int)crc.getValue());
+        return bytes;
+    }
+
+    List<CompiledExpression> read(byte[] bytes)
+    throws IOException {
+        Path file = dir.resolve("damaged.bin");
+        Files.write(file, bytes);
+        return ExpressionArchive.read(file);
+    }
+
+    void assertRejected(byte[] bytes, String message) {
+        assertThrows(IOException.class, () -> read(bytes), message);
+    }
+
+    @Test
+    void readsBackWhatWasWritten()
+    throws IOException {
+        List<CompiledExpression> compiled = ExpressionArchive.read(writeAll());
+        assertEquals(3, compiled.size());
+        assertEquals("-a", compiled.get(0).expr);
+        Bindings b = compiled.get(1).newBindings();
+        b.setScalar(compiled.get(1).scalarSlot("a"), 6);
+        b.setArray(compiled.get(1).arraySlot("A"), new int[] {1, 2, 3});
+        assertEquals(6 * 3 - 1.5f, compiled.get(1).evaluate(b));
+        assertEquals(CompiledExpression.Arithmetic.FLOAT, compiled.get(2).arithmetic());
+    }
+
+    Path writeAll()
+    throws IOException {
+        Expression floats = new Expression("a/3 + 1");
+        floats.setArithmetic(CompiledExpression.Arithmetic.FLOAT);
+        Path file = dir.resolve("all.bin");
+        ExpressionArchive.write(file, Arrays.asList(new Expression("-a").compile(),
+            new Expression("a*A[2] - 3/2").compile(), floats.compile()));
+        return file;
+    }
+
+    @Test
+    void recordLayout()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        assertEquals(0, bytes[bytes.length - SLOT]);
+        assertEquals(1, bytes[bytes.length - DISTANCE]);
+        assertEquals(1, read(withChecksum(bytes)).size());
+    }
+
+    @Test
+    void rejectsBadMagic()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        bytes[0] ^= 1;
+        assertRejected(bytes, "magic");
+    }
+
+    @Test
+    void rejectsUnknownVersion()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        ByteBuffer.wrap(bytes).putShort(4, (short)(ExpressionArchive.VERSION + 1));
+        assertRejected(bytes, "version");
+    }
+
+    @Test
+    void rejectsChecksumMismatch()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        bytes[bytes.length - 1] ^= 1;
+        assertRejected(bytes, "checksum");
+    }
+
+    @Test
+    void rejectsShortFiles()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        assertRejected(Arrays.copyOf(bytes, ExpressionArchive.HEADER_SIZE - 1), "header");
+        for (int length = ExpressionArchive.HEADER_SIZE; length < bytes.length; length++) {
+            assertRejected(withChecksum(Arrays.copyOf(bytes, length)), "truncated to " + length);
+        }
+    }
+
+    @Test
+    void rejectsTrailingBytes()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        assertRejected(withChecksum(Arrays.copyOf(bytes, bytes.length + 1)), "trailing");
+    }
+
+    @Test
+    void rejectsSlotOutOfRange()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        bytes[bytes.length - SLOT] = 1;
+        assertRejected(withChecksum(bytes), "slot");
+    }
+
+    @Test
+    void rejectsBadBackReference()
+    throws IOException {
+        for (byte distance : new byte[] {0, 2, 100}) {
+            byte[] bytes = archive("-a");
+            bytes[bytes.length - DISTANCE] = distance;
+            assertRejected(withChecksum(bytes), "distance " + distance);
+        }
+    }
+
+    @Test
+    void rejectsUnknownArithmetic()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        assertEquals(CompiledExpression.Arithmetic.TYPED.ordinal(), bytes[bytes.length - ARITHMETIC]);
+        for (byte ordinal : new byte[] {(byte)CompiledExpression.Arithmetic.values().length, 100, -1}) {
+            bytes[bytes.length - ARITHMETIC] = ordinal;
+            assertRejected(withChecksum(bytes), "arithmetic " + ordinal);
+        }
+    }
+
+    @Test
+    void rejectsUnknownNodeKind()
+    throws IOException {
+        byte[] bytes = archive("-a");
+        bytes[bytes.length - KIND] = 42;
+        assertRejected(withChecksum(bytes), "kind");
+    }
+}
@@ -0,0 +1,109 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a set gives each expression the result it has when compiled and
+ * evaluated on its own, and that subterms shared across expressions are
+ * evaluated once
+ */
+class ExpressionSetTest {
+
+    static final List<String> EXPRS = Arrays.asList(
+        "a*b + A[c] - (d - e)/3",
+        "(d - e)/3 * a*b",
+        "A[B[a]] - -c + 16777217*e",
+        "a*b + A[c] - (d - e)/3",
+        "A[B[a]]*A[B[a]] / (e + 0.5) - B[3]",
+        "-(a*b) + 7/2 - 0*d",
+        "e");
+
+    static final String VALUES = "a 2\nb -5\nc 3\nd 100\ne 16777219\n"
+        + "A 6 (0,4) (1,-9) (2,16) (3,25) (4,36) (5,49)\n"
+        + "B 4 (0,5) (1,1) (2,4) (3,-2)\n";
+
+    static double separately(String text, CompiledExpression.Arithmetic arithmetic, boolean optimize)
+    throws IOException {
+        Expression expr = new Expression(text);
+        expr.setArithmetic(arithmetic);
+        expr.setOptimize(optimize);
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner(VALUES));
+        return expr.evaluateDouble();
+    }
+
+    @Test
+    void resultsMatchSeparateEvaluation()
+    throws IOException {
+        for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+            ExpressionSet set = new ExpressionSet(EXPRS, arithmetic);
+            assertEquals(arithmetic, set.arithmetic());
+            assertEquals(EXPRS.size(), set.size());
+            set.loadSymbolValues(new Scanner(VALUES));
+            double[] results = set.evaluate();
+            assertEquals(EXPRS.size(), results.length);
+            for (int i = 0; i < EXPRS.size(); i++) {
+                String message = arithmetic + " " + EXPRS.get(i);
+                for (boolean optimize : new boolean[] {false, true}) {
+                    assertEquals(Double.doubleToRawLongBits(separately(EXPRS.get(i), arithmetic, optimize)),
+                        Double.doubleToRawLongBits(results[i]), message);
+                }
+            }
+
+            // Provided bindings give the same results
+            MapSymbolProvider provider = new MapSymbolProvider().setScalar("a", 2).setScalar("b", -5)
+                .setScalar("c", 3).setScalar("d", 100).setScalar("e", 16777219)
+                .setArray("A", new int[] {4, -9, 16, 25, 36, 49}).setArray("B", new int[] {5, 1, 4, -2});
+            double[] provided = new double[EXPRS.size() + 1];
+            set.evaluate(set.newBindings(provider), provided);
+            for (int i = 0; i < EXPRS.size(); i++) {
+                assertEquals(Double.doubleToRawLongBits(results[i]), Double.doubleToRawLongBits(provided[i]),
+                    arithmetic + " provided " + EXPRS.get(i));
+            }
+        }
+    }
+
+    @Test
+    void sharedSubtermsAreCountedOnce() {
+        ExpressionSet set = new ExpressionSet(EXPRS);
+        int sourceNodes = 0;
+        int separateNodes = 0;
+        for (String text : EXPRS) {
+            Expression expr = new Expression(text);
+            expr.setOptimize(true);
+            CompiledExpression ce = expr.compile();
+            sourceNodes += ce.sourceNodeCount();
+            separateNodes += ce.nodeCount();
+        }
+        assertEquals(sourceNodes, set.sourceNodeCount());
+        assertTrue(set.nodeCount() < separateNodes, set.nodeCount() + " >= " + separateNodes);
+
+        // The same expression twice adds nothing
+        ExpressionSet once = new ExpressionSet(Arrays.asList("a*b + A[c]"));
+        ExpressionSet twice = new ExpressionSet(Arrays.asList("a*b + A[c]", "a*b + A[c]"));
+        assertEquals(once.nodeCount(), twice.nodeCount());
+        assertEquals(2 * once.sourceNodeCount(), twice.sourceNodeCount());
+
+        // a, b and a*b are shared, so seven nodes instead of ten
+        ExpressionSet shared = new ExpressionSet(Arrays.asList("a*b + c", "a*b - d"));
+        assertEquals(7, shared.nodeCount());
+    }
+
+    @Test
+    void rejectsWhatItCannotEvaluate() {
+        assertThrows(IllegalArgumentException.class, () -> new ExpressionSet(Arrays.asList("a + b", "(a")));
+        assertThrows(IllegalArgumentException.class, () -> new ExpressionSet(Arrays.asList("a", "A[] + 1")));
+        ExpressionSet set = new ExpressionSet(EXPRS);
+        assertThrows(IllegalArgumentException.class,
+            () -> set.evaluate(set.newBindings(), new double[EXPRS.size() - 1]));
+    }
+}
@@ -0,0 +1,119 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks which nodes an incremental evaluation recomputes after each kind of
+ * change, and that its results match a full evaluation of the same values
+ */
+class IncrementalEvaluatorTest {
+
+    /**
+     * Postorder: x, A[x], 2, A[2], A[x] + A[2], y, the root. Seven nodes.
+     */
+    static final String EXPR = "A[x] + A[2] + y";
+
+    CompiledExpression ce;
+    Bindings b;
+    IncrementalEvaluator incremental;
+    int x;
+    int y;
+    int a;
+
+    void setUp(CompiledExpression.Arithmetic arithmetic) {
+        Expression expr = new Expression(EXPR);
+        expr.setArithmetic(arithmetic);
+        ce = expr.compile();
+        b = ce.newBindings();
+        x = ce.scalarSlot("x");
+        y = ce.scalarSlot("y");
+        a = ce.arraySlot("A");
+        b.setScalar(x, 1);
+        b.setScalar(y, 10);
+        b.setArray(a, new int[] {5, 6, 7, 8});
+        incremental = new IncrementalEvaluator(ce, b);
+    }
+
+    /**
+     * Evaluates incrementally, checks the result against a full evaluation of
+     * the same bindings, and returns the number of nodes recomputed
+     */
+    int evaluate(CompiledExpression.Arithmetic arithmetic) {
+        if (arithmetic == CompiledExpression.Arithmetic.TYPED) {
+            assertEquals(ce.evaluateDouble(b), incremental.evaluateDouble());
+        } else {
+            assertEquals(ce.evaluate(b), incremental.evaluate());
+        }
+        return incremental.recomputed();
+    }
+
+    @Test
+    void recomputesOnlyWhatChanged() {
+        for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+            setUp(arithmetic);
+            assertEquals(7, evaluate(arithmetic), arithmetic.name());
+            assertEquals(0, evaluate(arithmetic), arithmetic.name());
+
+            // An unchanged value dirties nothing
+            incremental.setScalar(y, 10);
+            assertEquals(0, evaluate(arithmetic), arithmetic.name());
+
+            // y and the root
+            incremental.setScalar(y, 20);
+            assertEquals(2, evaluate(arithmetic), arithmetic.name());
+
+            // x, A[x], the sum above it and the root
+            incremental.setScalar(x, 3);
+            assertEquals(4, evaluate(arithmetic), arithmetic.name());
+
+            // Only A[2] reads element 2
+            incremental.setElement(a, 2, 70);
+            assertEquals(3, evaluate(arithmetic), arithmetic.name());
+
+            // No read selects element 0
+            incremental.setElement(a, 0, 50);
+            assertEquals(0, evaluate(arithmetic), arithmetic.name());
+
+            // Element 3 is read through A[x]
+            incremental.setElement(a, 3, 80);
+            assertEquals(3, evaluate(arithmetic), arithmetic.name());
+
+            // A new array dirties both element reads
+            incremental.setArray(a, new int[] {-1, -2, -3, -4});
+            assertEquals(4, evaluate(arithmetic), arithmetic.name());
+        }
+    }
+
+    @Test
+    void resumesAfterAnException() {
+        for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+            setUp(arithmetic);
+            evaluate(arithmetic);
+            incremental.setScalar(x, 100);
+            assertThrows(IndexOutOfBoundsException.class, () -> incremental.evaluateDouble());
+            // x was recomputed before A[x] threw; A[x] and the nodes above it
+            // are still dirty
+            assertThrows(IndexOutOfBoundsException.class, () -> incremental.evaluateDouble());
+            incremental.setScalar(x, 0);
+            incremental.setScalar(y, -5);
+            // Those three, x again and y
+            assertEquals(5, evaluate(arithmetic), arithmetic.name());
+            for (int i = 0; i < 100; i++) {
+                incremental.setScalar(x, i % 4);
+                incremental.setElement(a, i % 4, i);
+                evaluate(arithmetic);
+            }
+        }
+    }
+
+    @Test
+    void setElementIsSeenByCopies() {
+        setUp(CompiledExpression.Arithmetic.TYPED);
+        Bindings copy = b.copy();
+        incremental.setElement(a, 2, 70);
+        assertEquals(70, copy.element(a, 2));
+    }
+}
@@ -0,0 +1,159 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Processes expressions far too long or deep for recursion over their
+ * structure
+ */
+class LargeExpressionTest {
+
+    static final int DEPTH = 100000;
+
+    static final String VALUES = "a 3\nb 2\nA 5 (0,1) (1,2) (2,3) (3,4) (4,0)\n";
+
+    static final int[] A = {1, 2, 3, 4, 0};
+
+    @TempDir
+    Path dir;
+
+    static String repeat(String s, int n) {
+        StringBuilder sb = new StringBuilder(s.length() * n);
+        for (int i = 0; i < n; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    static Expression load(String text)
+    throws IOException {
+        Expression expr = new Expression(text);
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner(VALUES));
+        return expr;
+    }
+
+    @Test
+    void incrementalUpdatesOfDeepExpression()
+    throws IOException {
+        // a-(a-(...a-(b)...)) is b at even depths, whatever a is
+        Expression expr = load(repeat("a-(", DEPTH) + "b" + repeat(")", DEPTH));
+        CompiledExpression ce = expr.compile();
+        IncrementalEvaluator incremental = new IncrementalEvaluator(ce, expr.values);
+        assertEquals(2, incremental.evaluate());
+        int a = ce.scalarSlot("a");
+        int b = ce.scalarSlot("b");
+        incremental.setScalar(b, 7);
+        assertEquals(7, incremental.evaluate());
+        incremental.setScalar(a, 5);
+        assertEquals(7, incremental.evaluate());
+
+        // A[A[...A[0]...]] follows 0 -> 1 -> 2 -> 3 -> 4 -> 0, and after A[0]
+        // is set to 3 follows 0 -> 3 -> 4 -> 0
+        Expression subscripts = load(repeat("A[", DEPTH) + "0" + repeat("]", DEPTH));
+        CompiledExpression sce = subscripts.compile();
+        IncrementalEvaluator chain = new IncrementalEvaluator(sce, subscripts.values);
+        assertEquals(0, chain.evaluate());
+        chain.setElement(sce.arraySlot("A"), 0, 3);
+        assertEquals(3, chain.evaluate());
+    }
+
+    /**
+     * Matches, compiles and evaluates an expression on every backend, in every
+     * arithmetic and optimized or not, then checks incremental evaluation
+     * after a to 4 and a round trip through an archive
+     *
+     * @param text Expression over a, b and A
+     * @param typed Expected result in typed arithmetic
+     * @param floats Expected result in float arithmetic
+     */
+    void check(String text, double typed, float floats)
+    throws IOException {
+        assertTrue(new Expression(text).isLegallyMatched());
+        for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+            double expected = arithmetic == CompiledExpression.Arithmetic.TYPED ? typed : floats;
+            for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+                for (boolean optimize : new boolean[] {false, true}) {
+                    Expression expr = load(text);
+                    expr.setArithmetic(arithmetic);
+                    expr.setBackend(backend);
+                    expr.setOptimize(optimize);
+                    String name = arithmetic + "/" + backend + (optimize ? "/optimized" : "");
+                    assertEquals(expected, expr.evaluateDouble(), name);
+                    assertEquals((float)expected, expr.evaluate(), name);
+                }
+            }
+
+            Expression expr = load(text);
+            expr.setArithmetic(arithmetic);
+            CompiledExpression ce = expr.compile();
+            IncrementalEvaluator incremental = new IncrementalEvaluator(ce, expr.values.copy());
+            assertEquals(expected, incremental.evaluateDouble(), arithmetic + " incremental");
+            incremental.setScalar(ce.scalarSlot("a"), 4);
+            Bindings changed = expr.values.copy();
+            changed.setScalar(ce.scalarSlot("a"), 4);
+            assertEquals(ce.evaluateDouble(changed), incremental.evaluateDouble(), arithmetic + " incremental a=4");
+
+            Path file = dir.resolve("large-" + arithmetic + ".bin");
+            ExpressionArchive.write(file, Collections.singletonList(ce));
+            List<CompiledExpression> read = ExpressionArchive.read(file);
+            assertEquals(1, read.size());
+            assertEquals(ce.nodeCount(), read.get(0).nodeCount(), arithmetic + " archive");
+            assertEquals(expected, read.get(0).evaluateDouble(expr.values), arithmetic + " archive");
+        }
+    }
+
+    @Test
+    void megabyteSum()
+    throws IOException {
+        StringBuilder sb = new StringBuilder("b");
+        double typed = 2;
+        float floats = 2;
+        for (int i = 0; sb.length() < 1 << 20; i++) {
+            sb.append(" + a*(b-").append(i % 97).append(")/(A[").append(i % 5).append("]+1)");
+            typed += 3.0 * (2 - i % 97) / (A[i % 5] + 1);
+            floats += 3f * (2 - i % 97) / (A[i % 5] + 1f);
+        }
+        check(sb.toString(), typed, floats);
+    }
+
+    @Test
+    void deepParentheses()
+    throws IOException {
+        check(repeat("(", DEPTH) + "a" + repeat(")", DEPTH), 3, 3);
+    }
+
+    @Test
+    void deepRightOperands()
+    throws IOException {
+        check(repeat("a-(", DEPTH) + "b" + repeat(")", DEPTH), 2, 2);
+    }
+
+    @Test
+    void deepNegation()
+    throws IOException {
+        check(repeat("-", DEPTH + 1) + "a", -3, -3);
+    }
+
+    @Test
+    void deepSubscripts()
+    throws IOException {
+        check("a*0 + " + repeat("A[", DEPTH) + "0" + repeat("]", DEPTH), 0, 0);
+    }
+
+    @Test
+    void longLeftOperands()
+    throws IOException {
+        check("a" + repeat("+a", DEPTH), 3.0 * (DEPTH + 1), 3f * (DEPTH + 1));
+    }
+}
@@ -0,0 +1,207 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks when a memo hits and misses, what it keeps within its size bound, that
+ * an adaptive memo turns itself off when nothing hits, and that its results
+ * are those of the expression it wraps
+ */
+class MemoizedExpressionTest {
+
+    static CompiledExpression compile(String text, CompiledExpression.Arithmetic arithmetic) {
+        Expression expr = new Expression(text);
+        expr.setArithmetic(arithmetic);
+        return expr.compile();
+    }
+
+    static CompiledExpression compile(String text) {
+        return compile(text, CompiledExpression.Arithmetic.TYPED);
+    }
+
+    @Test
+    void hitsOnTheSameValues() {
+        CompiledExpression ce = compile("a*b + A[2]");
+        MemoizedExpression memo = new MemoizedExpression(ce, MemoizedExpression.DEFAULT_MAX_BYTES, false);
+        Bindings b = ce.newBindings();
+        int a = ce.scalarSlot("a");
+        b.setScalar(a, 1);
+        b.setScalar(ce.scalarSlot("b"), 5);
+        b.setArray(ce.arraySlot("A"), new int[] {10, 20, 30});
+
+        assertEquals(35, memo.evaluate(b));
+        assertEquals(35, memo.evaluate(b));
+        assertEquals(1, memo.misses());
+        assertEquals(1, memo.hits());
+
+        b.setScalar(a, 2);
+        assertEquals(40, memo.evaluate(b));
+        b.setScalar(a, 1);
+        assertEquals(35, memo.evaluate(b));
+        assertEquals(2, memo.misses());
+        assertEquals(2, memo.hits());
+        assertEquals(2, memo.size());
+
+        // A[2] is at a constant subscript, so it is part of the key
+        b.setElement(ce.arraySlot("A"), 2, 31);
+        assertEquals(36, memo.evaluate(b));
+        assertEquals(3, memo.misses());
+        // Elements the expression does not read do not matter
+        b.setElement(ce.arraySlot("A"), 0, 11);
+        assertEquals(36, memo.evaluate(b));
+        assertEquals(3, memo.hits());
+        assertEquals(0.5, memo.hitRatio());
+    }
+
+    @Test
+    void elementsAtComputedSubscriptsInvalidate() {
+        CompiledExpression ce = compile("A[a] * 100 + b");
+        MemoizedExpression memo = new MemoizedExpression(ce, MemoizedExpression.DEFAULT_MAX_BYTES, false);
+        Bindings b = ce.newBindings();
+        int array = ce.arraySlot("A");
+        b.setScalar(ce.scalarSlot("a"), 1);
+        b.setScalar(ce.scalarSlot("b"), 7);
+        b.setArray(array, new int[] {1, 2, 3, 4});
+
+        assertEquals(207, memo.evaluate(b));
+        assertEquals(207, memo.evaluate(b));
+        assertEquals(1, memo.hits());
+
+        // The key is the same, but the element read at A[a] changed
+        b.setElement(array, 1, 5);
+        assertEquals(507, memo.evaluate(b));
+        assertEquals(2, memo.misses());
+        assertEquals(1, memo.size());
+
+        // An element not read leaves the kept result valid
+        b.setElement(array, 3, 9);
+        assertEquals(507, memo.evaluate(b));
+        assertEquals(2, memo.hits());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedWithinTheBound() {
+        CompiledExpression ce = compile("a + b");
+        Bindings b = ce.newBindings();
+        int a = ce.scalarSlot("a");
+
+        MemoizedExpression probe = new MemoizedExpression(ce, MemoizedExpression.DEFAULT_MAX_BYTES, false);
+        probe.evaluate(b);
+        long entry = probe.bytes();
+        assertTrue(entry > 0);
+
+        MemoizedExpression memo = new MemoizedExpression(ce, 3 * entry, false);
+        for (int v = 0; v < 3; v++) {
+            b.setScalar(a, v);
+            memo.evaluate(b);
+        }
+        assertEquals(3, memo.size());
+        assertEquals(3 * entry, memo.bytes());
+
+        // Use 0, so that 1 is the least recently used when 3 comes in
+        b.setScalar(a, 0);
+        memo.evaluate(b);
+        b.setScalar(a, 3);
+        memo.evaluate(b);
+        assertEquals(1, memo.evictions());
+        assertEquals(3, memo.size());
+        assertEquals(3 * entry, memo.bytes());
+
+        b.setScalar(a, 0);
+        memo.evaluate(b);
+        assertEquals(2, memo.hits());
+        b.setScalar(a, 1);
+        memo.evaluate(b);
+        assertEquals(5, memo.misses());
+        assertEquals(2, memo.evictions());
+
+        memo.setEnabled(false);
+        assertEquals(0, memo.size());
+        assertEquals(0, memo.bytes());
+
+        // A result too large to fit alone is not kept
+        MemoizedExpression tiny = new MemoizedExpression(ce, entry - 1, false);
+        tiny.evaluate(b);
+        tiny.evaluate(b);
+        assertEquals(0, tiny.size());
+        assertEquals(0, tiny.bytes());
+        assertEquals(2, tiny.misses());
+    }
+
+    @Test
+    void adaptiveMemoTurnsItselfOffWithoutHits() {
+        CompiledExpression ce = compile("a*b - c");
+        Bindings b = ce.newBindings();
+        int a = ce.scalarSlot("a");
+        MemoizedExpression adaptive = new MemoizedExpression(ce);
+        MemoizedExpression fixed = new MemoizedExpression(ce, MemoizedExpression.DEFAULT_MAX_BYTES, false);
+        for (int i = 0; i < MemoizedExpression.WINDOW; i++) {
+            b.setScalar(a, i);
+            assertEquals(ce.evaluate(b), adaptive.evaluate(b));
+            fixed.evaluate(b);
+        }
+        assertEquals(0, adaptive.hits());
+        assertFalse(adaptive.enabled());
+        assertEquals(0, adaptive.size());
+        assertTrue(fixed.enabled());
+
+        // Off, it evaluates directly and counts nothing
+        long misses = adaptive.misses();
+        b.setScalar(a, 0);
+        assertEquals(ce.evaluate(b), adaptive.evaluate(b));
+        assertEquals(ce.evaluate(b), adaptive.evaluate(b));
+        assertEquals(misses, adaptive.misses());
+        assertEquals(0, adaptive.hits());
+
+        adaptive.setEnabled(true);
+        adaptive.evaluate(b);
+        adaptive.evaluate(b);
+        assertEquals(1, adaptive.hits());
+    }
+
+    @Test
+    void resultsMatchTheExpression() {
+        String[] formulas = {
+            "a - (b+A[B[2]])*d + A[3] * (c/d + e*(a-b)) - B[a-b] / (e+1)",
+            "a*b + (c - A[B[2]])*7 - A[3]*11 + B[a-b] - d + e",
+            "A[B[a]] * A[B[b]] / (c + 1)",
+        };
+        int[] aValues = {3, 1, 4, 1, 5};
+        int[] bValues = {2, 0, 3, 2, 4};
+        Random random = new Random(7);
+        for (String formula : formulas) {
+            for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+                CompiledExpression ce = compile(formula, arithmetic);
+                MemoizedExpression memo = new MemoizedExpression(ce, MemoizedExpression.DEFAULT_MAX_BYTES, false);
+                Bindings b = ce.newBindings();
+                for (int i = 0; i < 500; i++) {
+                    // Few distinct values, so that most calls hit
+                    int[] a = new int[aValues.length];
+                    for (int k = 0; k < a.length; k++) {
+                        a[k] = aValues[k] + random.nextInt(2);
+                    }
+                    b.setArray(ce.arraySlot("A"), a);
+                    b.setArray(ce.arraySlot("B"), bValues);
+                    for (String name : new String[] {"a", "b", "c", "d", "e"}) {
+                        int slot = ce.scalarSlot(name);
+                        if (slot >= 0) {
+                            b.setScalar(slot, name.equals("a") ? 3 + random.nextInt(2) : 1 + random.nextInt(3));
+                        }
+                    }
+                    String message = arithmetic + " " + formula;
+                    assertEquals(Double.doubleToRawLongBits(ce.evaluateDouble(b)),
+                        Double.doubleToRawLongBits(memo.evaluateDouble(b)), message);
+                    assertEquals(Float.floatToRawIntBits(ce.evaluate(b)),
+                        Float.floatToRawIntBits(memo.evaluate(b)), message);
+                }
+                assertTrue(memo.hits() > memo.misses(), memo.toString());
+            }
+        }
+    }
+}
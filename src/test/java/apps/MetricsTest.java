@@ -0,0 +1,159 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Scanner;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the phase and compile events reach a Flight Recorder recording,
+ * whether it was started before or after ExpressionMetrics was first used, and
+ * that evaluations are recorded only when a recording asks for them
+ */
+class MetricsTest {
+
+    static final String EXPR = "a - (b+A[B[2]])*d + A[3] * (c/d + e*(a-b)) - B[a-b] / (e+1)";
+    static final String VALUES =
+        "a 3\nb 2\nc 5\nd 7\ne 11\nA 5 (0,3) (1,2) (2,4) (3,1) (4,9)\nB 4 (0,1) (1,3) (2,0) (3,2)\n";
+
+    static final int EXPRESSIONS = 50;
+
+    /**
+     * Phases each expression goes through in work(): building symbols,
+     * loading values, and matching brackets and compiling in compile()
+     */
+    static final int PHASES = 4;
+
+    /**
+     * Evaluations of each expression in work()
+     */
+    static final int EVALUATIONS = 10;
+
+    /**
+     * Builds, loads, compiles and evaluates EXPRESSIONS expressions, each
+     * adding a different constant so that none is shared
+     */
+    static void work()
+    throws IOException {
+        for (int i = 0; i < EXPRESSIONS; i++) {
+            Expression expr = new Expression(EXPR + " + " + i);
+            expr.buildSymbols();
+            expr.loadSymbolValues(new Scanner(VALUES));
+            CompiledExpression ce = expr.compile();
+            for (int e = 0; e < EVALUATIONS; e++) {
+                ce.evaluate(expr.values);
+            }
+        }
+    }
+
+    /**
+     * Counts the events of a type in a recording file
+     */
+    static int count(Path file, String type)
+    throws IOException {
+        int n = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals(type)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Run in a JVM of its own that starts a recording before ExpressionMetrics
+     * is loaded. Prints whether metrics were enabled.
+     */
+    public static class Startup {
+        public static void main(String[] args)
+        throws IOException {
+            work();
+            System.out.print(ExpressionMetrics.enabled);
+        }
+    }
+
+    @Test
+    void recordingStartedAtStartup(@TempDir Path dir)
+    throws IOException, InterruptedException {
+        Path file = dir.resolve("startup.jfr");
+        Path output = dir.resolve("output.txt");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-XX:StartFlightRecording=dumponexit=true,filename=" + file,
+                "-cp", System.getProperty("java.class.path"), Startup.class.getName())
+            .redirectOutput(output.toFile())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        assertEquals(0, process.waitFor());
+        // The JVM logs the start of the recording to the same output
+        String printed = Files.readString(output, StandardCharsets.UTF_8);
+        assertTrue(printed.endsWith("true"), printed);
+        assertEquals(PHASES * EXPRESSIONS, count(file, "apps.ExpressionPhase"));
+        assertEquals(EXPRESSIONS, count(file, "apps.ExpressionCompiled"));
+        // The default settings leave out the event per evaluation
+        assertEquals(0, count(file, "apps.ExpressionEvaluate"));
+    }
+
+    @Test
+    void recordingStartedLater(@TempDir Path dir)
+    throws IOException {
+        // Load ExpressionMetrics before the recording starts
+        ExpressionMetrics.listener();
+        Path file = dir.resolve("later.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("apps.ExpressionPhase");
+            recording.enable("apps.ExpressionCompiled");
+            recording.enable("apps.ExpressionEvaluate");
+            recording.start();
+            assertTrue(ExpressionMetrics.enabled);
+            work();
+            recording.stop();
+            recording.dump(file);
+        }
+        assertEquals(PHASES * EXPRESSIONS, count(file, "apps.ExpressionPhase"));
+        assertEquals(EXPRESSIONS, count(file, "apps.ExpressionCompiled"));
+        assertEquals(EVALUATIONS * EXPRESSIONS, count(file, "apps.ExpressionEvaluate"));
+    }
+
+    @Test
+    void eventsCarryAnExcerpt(@TempDir Path dir)
+    throws IOException {
+        ExpressionMetrics.listener();
+        Path file = dir.resolve("excerpt.jfr");
+        StringBuilder text = new StringBuilder("a");
+        while (text.length() < 10 * ExpressionMetrics.EXCERPT) {
+            text.append(" + a");
+        }
+        String expr = text.toString();
+        try (Recording recording = new Recording()) {
+            recording.enable("apps.ExpressionCompiled");
+            recording.start();
+            new Expression(expr).compile();
+            recording.stop();
+            recording.dump(file);
+        }
+        int seen = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals("apps.ExpressionCompiled")) {
+                assertEquals(expr.substring(0, ExpressionMetrics.EXCERPT), event.getString("expression"));
+                assertEquals(expr.length(), event.getInt("length"));
+                assertEquals(expr.hashCode(), event.getInt("hash"));
+                assertNull(event.getStackTrace());
+                seen++;
+            }
+        }
+        assertEquals(1, seen);
+    }
+}
@@ -0,0 +1,118 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how far the optimizer shrinks expressions by folding constants,
+ * rewriting identities and merging common subterms, and that the optimized
+ * form gives the same results as the original
+ */
+class OptimizerTest {
+
+    static final String[] SCALARS = {"a", "b", "c", "d", "e"};
+    static final int[] A = {3, 2, 4, 1, 9};
+    static final int[] B = {1, 3, 0, 2};
+
+    static CompiledExpression compile(String text, CompiledExpression.Arithmetic arithmetic,
+            CompiledExpression.Backend backend, boolean optimize) {
+        Expression expr = new Expression(text);
+        expr.setArithmetic(arithmetic);
+        expr.setBackend(backend);
+        expr.setOptimize(optimize);
+        return expr.compile();
+    }
+
+    static CompiledExpression optimized(String text) {
+        return compile(text, CompiledExpression.Arithmetic.TYPED, CompiledExpression.Backend.INTERPRETER, true);
+    }
+
+    static Bindings bind(CompiledExpression ce, int a) {
+        Bindings b = ce.newBindings();
+        for (int i = 0; i < SCALARS.length; i++) {
+            int slot = ce.scalarSlot(SCALARS[i]);
+            if (slot >= 0) {
+                b.setScalar(slot, i == 0 ? a : 2 * i + 1);
+            }
+        }
+        if (ce.arraySlot("A") >= 0) {
+            b.setArray(ce.arraySlot("A"), A);
+        }
+        if (ce.arraySlot("B") >= 0) {
+            b.setArray(ce.arraySlot("B"), B);
+        }
+        return b;
+    }
+
+    @Test
+    void foldsConstants() {
+        // a, 2, 3, *, + becomes a, 6, +
+        CompiledExpression ce = optimized("a + 2*3");
+        assertEquals(5, ce.sourceNodeCount());
+        assertEquals(3, ce.nodeCount());
+
+        // Everything folds into one constant
+        ce = optimized("(1+2)*(10-4)/2 - -3");
+        assertEquals(1, ce.nodeCount());
+        assertEquals(12, ce.evaluate(ce.newBindings()));
+    }
+
+    @Test
+    void mergesCommonSubterms() {
+        // a, b, + and the product of it with itself
+        CompiledExpression ce = optimized("(a+b)*(a+b)");
+        assertEquals(7, ce.sourceNodeCount());
+        assertEquals(4, ce.nodeCount());
+
+        // A[B[2]] and a*b appear twice, and a and b three times
+        ce = optimized("A[B[2]] + a*b - (A[B[2]] - a*b) / (a+b)");
+        assertEquals(19, ce.sourceNodeCount());
+        assertEquals(11, ce.nodeCount());
+    }
+
+    @Test
+    void rewritesIdentities() {
+        String[] identities = {"a+0", "0+a", "a-0", "a*1", "1*a", "a/1", "--a", "-(-a)"};
+        for (String text : identities) {
+            CompiledExpression ce = optimized(text);
+            assertEquals(1, ce.nodeCount(), text);
+            assertEquals(7, ce.evaluate(bind(ce, 7)), text);
+        }
+        // Identities uncovered by folding
+        CompiledExpression ce = optimized("(a + (3-3)) * (2-1) / (5-4)");
+        assertEquals(1, ce.nodeCount());
+        // Not identities
+        assertEquals(3, optimized("0-a").nodeCount());
+        assertEquals(3, optimized("1/a").nodeCount());
+    }
+
+    @Test
+    void optimizedResultsMatch() {
+        String[] formulas = {
+            "a - (b+A[B[2]])*d + A[3] * (c/d + e*(a-b)) - B[a-b] / (e+1)",
+            "a*b + (c - A[B[2]])*7 - A[3]*11 + B[a-b] - d + e",
+            "(a+b)*(a+b) - (a+b)/(c*1) + (2*3 - 6 + 0)*e + --d",
+            "A[(a-a) + 1*2] * (b/1) - (0 + c) * (A[B[1]] - 0) / (d - 0.5*2)",
+            "16777217*a + 16777217*a - a/3 + b/3",
+            "(c + 1/3) * 3 - c - (e - 0.1) * 10",
+        };
+        for (String text : formulas) {
+            for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+                for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+                    CompiledExpression plain = compile(text, arithmetic, backend, false);
+                    CompiledExpression folded = compile(text, arithmetic, backend, true);
+                    String message = arithmetic + "/" + backend + " " + text;
+                    assertEquals(plain.nodeCount(), plain.sourceNodeCount(), message);
+                    assertEquals(plain.sourceNodeCount(), folded.sourceNodeCount(), message);
+                    for (int a = 3; a < 6; a++) {
+                        assertEquals(Double.doubleToRawLongBits(plain.evaluateDouble(bind(plain, a))),
+                            Double.doubleToRawLongBits(folded.evaluateDouble(bind(folded, a))), message + " a=" + a);
+                        assertEquals(Float.floatToRawIntBits(plain.evaluate(bind(plain, a))),
+                            Float.floatToRawIntBits(folded.evaluate(bind(folded, a))), message + " a=" + a);
+                    }
+                }
+            }
+        }
+    }
+}
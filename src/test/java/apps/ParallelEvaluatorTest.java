@@ -0,0 +1,127 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares parallel evaluation with sequential evaluation bit for bit, on
+ * random expressions split with a grain small enough that the top holds
+ * negations, element reads and both integral and real operations
+ */
+class ParallelEvaluatorTest {
+
+    static final int GRAIN = 8;
+
+    static final int SCALARS = 10;
+    static final int[] A = {4, 1, 3, 0, 2};
+    static final int[] B = {7, 0, 9, 2, 5, 1, 8, 3, 6, 4};
+
+    /**
+     * Builds a random subtree of about 2^depth leaves. Without division its
+     * value is integral, unless its bound overflows a long.
+     */
+    static String generate(Random random, int depth, boolean division) {
+        if (depth == 0) {
+            switch (random.nextInt(4)) {
+                case 0: return Integer.toString(1 + random.nextInt(9));
+                case 1: return "A[" + random.nextInt(A.length) + "]";
+                case 2: return "B[x" + random.nextInt(SCALARS) + "]";
+                default: return "x" + random.nextInt(SCALARS);
+            }
+        }
+        String left = generate(random, depth - 1, division);
+        switch (random.nextInt(division ? 6 : 5)) {
+            case 0: return "-(" + left + ")";
+            case 1: return "A[(" + left + ")*0 + " + random.nextInt(A.length) + "]";
+            case 2: return "(" + left + ")*(" + generate(random, depth - 1, division) + ")";
+            case 3: return "(" + left + ")-(" + generate(random, depth - 1, division) + ")";
+            case 4: return "(" + left + ")+(" + generate(random, depth - 1, division) + ")";
+            default: return "(" + left + ")/(" + generate(random, depth - 1, division) + ")";
+        }
+    }
+
+    /**
+     * Builds an expression whose top, for a grain of GRAIN, is a negation of
+     * an element read, an integral product and a real quotient
+     */
+    static String expression(Random random) {
+        return "-(A[(" + generate(random, 5, true) + ")*0 + 2] * (" + generate(random, 5, false) + ") - ("
+            + generate(random, 5, true) + ")/(" + generate(random, 5, true) + "))";
+    }
+
+    static Bindings bind(CompiledExpression ce, Bindings b) {
+        for (int i = 0; i < SCALARS; i++) {
+            int slot = ce.scalarSlot("x" + i);
+            if (slot >= 0) {
+                b.setScalar(slot, i);
+            }
+        }
+        if (ce.arraySlot("A") >= 0) {
+            b.setArray(ce.arraySlot("A"), A);
+        }
+        if (ce.arraySlot("B") >= 0) {
+            b.setArray(ce.arraySlot("B"), B);
+        }
+        return b;
+    }
+
+    static MapSymbolProvider provider() {
+        MapSymbolProvider provider = new MapSymbolProvider().setArray("A", A).setArray("B", B);
+        for (int i = 0; i < SCALARS; i++) {
+            provider.setScalar("x" + i, i);
+        }
+        return provider;
+    }
+
+    static void assertSameBits(double expected, double actual, String message) {
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual),
+            message + ": " + expected + " != " + actual);
+    }
+
+    @Test
+    void poolHasSeveralThreads() {
+        // Set by the build, so that the parallel paths below really fork
+        assertTrue(ForkJoinPool.getCommonPoolParallelism() > 1);
+    }
+
+    @Test
+    void splitMatchesSequential() {
+        Random random = new Random(42);
+        for (int n = 0; n < 50; n++) {
+            String text = expression(random);
+            for (CompiledExpression.Arithmetic arithmetic : CompiledExpression.Arithmetic.values()) {
+                for (boolean optimize : new boolean[] {false, true}) {
+                    Expression expr = new Expression(text);
+                    expr.setArithmetic(arithmetic);
+                    expr.setOptimize(optimize);
+                    CompiledExpression ce = expr.compile();
+                    boolean typed = arithmetic == CompiledExpression.Arithmetic.TYPED;
+                    String message = arithmetic + (optimize ? " optimized " : " ") + text;
+
+                    ParallelEvaluator split = new ParallelEvaluator(ce.root, typed, GRAIN);
+                    assertTrue(split.groupCount() > 1, message);
+                    assertTrue(split.topCount() >= 5, message);
+
+                    Bindings b = bind(ce, ce.newBindings());
+                    double expected = ce.evaluateDouble(b);
+                    assertSameBits(expected, split.evaluateDouble(b, true), message);
+                    assertSameBits(expected, split.evaluateDouble(b, false), message);
+                    assertSameBits(expected, ce.evaluateDoubleParallel(b, 1), message);
+                    assertEquals(Float.floatToRawIntBits(ce.evaluate(b)),
+                        Float.floatToRawIntBits(ce.evaluateParallel(b, 1)), message);
+
+                    // Provided bindings take the sequential path
+                    Bindings provided = ce.newBindings(provider());
+                    assertSameBits(expected, split.evaluateDouble(provided, true), message);
+                    provided.reset();
+                    assertSameBits(expected, ce.evaluateDoubleParallel(provided, 1), message);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the pipeline writes results in input order whatever order the
+ * workers finish in, reports malformed rows at their line in the whole input,
+ * and stops reading when the writer falls behind
+ */
+class RowPipelineTest {
+
+    static final int THREADS = 4;
+    static final int CHUNK_BYTES = 64;
+
+    static final List<String> COLUMNS = Arrays.asList("a", "x", "b", "c");
+    static final int[] A = {5, -3, 8};
+
+    static CompiledExpression compile() {
+        return new Expression("a*1000 + b/4 - A[c]").compile();
+    }
+
+    static RowPipeline pipeline(CompiledExpression ce) {
+        Bindings arrays = ce.newBindings();
+        arrays.setArray(ce.arraySlot("A"), A);
+        return new RowPipeline(ce, arrays, COLUMNS, THREADS, CHUNK_BYTES);
+    }
+
+    static String row(int i) {
+        return i + " " + (i * 31) + "  " + (i % 7) + "\t" + (i % 3) + "\n";
+    }
+
+    static String run(String input)
+    throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pipeline(compile()).run(new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)), out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void resultsAreInInputOrder()
+    throws IOException {
+        CompiledExpression ce = compile();
+        Bindings b = ce.newBindings();
+        b.setArray(ce.arraySlot("A"), A);
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        int rows = 5000;
+        for (int i = 0; i < rows; i++) {
+            input.append(row(i));
+            if (i % 100 == 0) {
+                input.append("\n  \r\n");
+            }
+            b.setScalar(ce.scalarSlot("a"), i);
+            b.setScalar(ce.scalarSlot("b"), i % 7);
+            b.setScalar(ce.scalarSlot("c"), i % 3);
+            expected.append(ce.evaluate(b)).append('\n');
+        }
+        // The last row need not end its line
+        input.setLength(input.length() - 1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count = pipeline(ce).run(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.US_ASCII)),
+            out);
+        assertEquals(rows, count);
+        assertEquals(expected.toString(), out.toString(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void errorsGiveTheLineInTheWholeInput() {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            input.append(row(i));
+        }
+        // Lines 301 and 302 are blank, far past the first chunk
+        input.append("\n\n");
+        String[] bad = {"1 2 3\n", "1 2 3 4 5\n", "1 2 x 4\n", "1 2 3 4294967296\n", "1 - 3 4\n"};
+        for (String line : bad) {
+            IOException e = assertThrows(IOException.class, () -> run(input + line + row(0)));
+            assertTrue(e.getMessage().endsWith(" at line 303"), line + ": " + e.getMessage());
+        }
+        IOException e = assertThrows(IOException.class, () -> run("1 2 3\n"));
+        assertEquals("expected 4 values at line 1", e.getMessage());
+    }
+
+    @Test
+    void readerWaitsForASlowWriter()
+    throws Exception {
+        long total = 1000L * CHUNK_BYTES;
+        AtomicLong read = new AtomicLong();
+        InputStream in = new InputStream() {
+            final byte[] line = "1 2 3 1\n".getBytes(StandardCharsets.US_ASCII);
+
+            public int read() {
+                if (read.get() == total) {
+                    return -1;
+                }
+                return line[(int)(read.getAndIncrement() % line.length)];
+            }
+        };
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicLong written = new AtomicLong();
+        OutputStream out = new OutputStream() {
+            public void write(int b)
+            throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                written.incrementAndGet();
+            }
+        };
+        long[] rows = new long[1];
+        Exception[] failure = new Exception[1];
+        Thread runner = new Thread(() -> {
+            try {
+                rows[0] = pipeline(compile()).run(in, out);
+            } catch (Exception e) {
+                failure[0] = e;
+            }
+        });
+        runner.start();
+
+        // Wait until the reader stops making progress
+        long last = -1;
+        while (read.get() != last) {
+            last = read.get();
+            Thread.sleep(200);
+        }
+        // The queue of chunks in flight, the chunk being written and the one
+        // the reader holds
+        assertTrue(last <= (2 * THREADS + 3) * CHUNK_BYTES, "read " + last + " of " + total);
+        assertEquals(0, written.get());
+
+        release.countDown();
+        runner.join(60000);
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertEquals(total, read.get());
+        assertEquals(total / 8, rows[0]);
+    }
+}
@@ -0,0 +1,140 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that provided bindings fetch only what evaluation reads, keep at most
+ * the configured number of elements per array, and that CachingSymbolProvider
+ * evicts by capacity and by age
+ */
+class SymbolProviderTest {
+
+    static MapSymbolProvider provider() {
+        int[] a = new int[1000];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = i * 3;
+        }
+        return new MapSymbolProvider().setScalar("a", 5).setScalar("b", 7).setScalar("c", 11).setArray("A", a);
+    }
+
+    @Test
+    void fetchesOnlyWhatIsRead() {
+        MapSymbolProvider provider = provider();
+        CompiledExpression ce = new Expression("a + A[3] - A[b]*2").compile();
+        Bindings b = ce.newBindings(provider);
+        assertEquals(0, provider.scalarFetches());
+        assertEquals(0, provider.elementFetches());
+
+        Bindings direct = ce.newBindings();
+        direct.setScalar(ce.scalarSlot("a"), 5);
+        direct.setScalar(ce.scalarSlot("b"), 7);
+        int[] a = new int[1000];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = i * 3;
+        }
+        direct.setArray(ce.arraySlot("A"), a);
+        assertEquals(ce.evaluate(direct), ce.evaluate(b));
+        // Two scalars and two of the thousand elements
+        assertEquals(2, provider.scalarFetches());
+        assertEquals(2, provider.elementFetches());
+
+        // Kept until reset
+        ce.evaluate(b);
+        assertEquals(2, provider.scalarFetches());
+        assertEquals(2, provider.elementFetches());
+        b.reset();
+        assertEquals(ce.evaluate(direct), ce.evaluate(b));
+        assertEquals(4, provider.scalarFetches());
+        assertEquals(4, provider.elementFetches());
+
+        // A copy starts out empty
+        ce.evaluate(b.copy());
+        assertEquals(6, provider.scalarFetches());
+        assertEquals(6, provider.elementFetches());
+    }
+
+    @Test
+    void elementCacheIsBounded() {
+        CompiledExpression ce = new Expression("A[0] + A[1] + A[2]").compile();
+
+        MapSymbolProvider roomy = provider();
+        Bindings enough = ce.newBindings(roomy, 3);
+        ce.evaluate(enough);
+        ce.evaluate(enough);
+        assertEquals(3, roomy.elementFetches());
+
+        // Reading 0, 1, 2 in turn through a cache of two drops each element
+        // just before it is read again
+        MapSymbolProvider tight = provider();
+        Bindings small = ce.newBindings(tight, 2);
+        assertEquals(ce.evaluate(enough), ce.evaluate(small));
+        assertEquals(3, tight.elementFetches());
+        assertEquals(ce.evaluate(enough), ce.evaluate(small));
+        assertEquals(6, tight.elementFetches());
+    }
+
+    @Test
+    void cachingProviderEvictsLeastRecentlyUsed() {
+        MapSymbolProvider source = provider();
+        CachingSymbolProvider cache = new CachingSymbolProvider(source, 2);
+        assertEquals(5, cache.scalar("a"));
+        assertEquals(7, cache.scalar("b"));
+        assertEquals(5, cache.scalar("a"));
+        assertEquals(1, cache.hits());
+        assertEquals(2, source.scalarFetches());
+
+        // b is the least recently used
+        assertEquals(11, cache.scalar("c"));
+        assertEquals(1, cache.evictions());
+        assertEquals(2, cache.size());
+        assertEquals(5, cache.scalar("a"));
+        assertEquals(3, source.scalarFetches());
+        assertEquals(7, cache.scalar("b"));
+        assertEquals(4, source.scalarFetches());
+        assertEquals(2, cache.evictions());
+        assertEquals(2, cache.hits());
+        assertEquals(4, cache.misses());
+
+        // Elements and lengths are entries too
+        assertEquals(9, cache.element("A", 3));
+        assertEquals(9, cache.element("A", 3));
+        assertEquals(1, source.elementFetches());
+        assertEquals(1000, cache.arrayLength("A"));
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(9, cache.element("A", 3));
+        assertEquals(2, source.elementFetches());
+    }
+
+    @Test
+    void cachingProviderExpiresOldEntries()
+    throws InterruptedException {
+        MapSymbolProvider source = provider();
+        CachingSymbolProvider cache = new CachingSymbolProvider(source, 100, 1, TimeUnit.MILLISECONDS);
+        cache.scalar("a");
+        Thread.sleep(10);
+        cache.scalar("a");
+        assertEquals(2, source.scalarFetches());
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    void sharedCachingProviderAcrossBindings() {
+        MapSymbolProvider source = provider();
+        CachingSymbolProvider cache = new CachingSymbolProvider(source, 100);
+        CompiledExpression ce = new Expression("a*b + A[c]").compile();
+        float expected = ce.evaluate(ce.newBindings(cache));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(expected, ce.evaluate(ce.newBindings(cache)));
+        }
+        // a, b and c once each, and the one element c selects
+        assertEquals(3, source.scalarFetches());
+        assertEquals(1, source.elementFetches());
+    }
+}
@@ -0,0 +1,181 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a tiered expression is promoted by the evaluation that reaches
+ * the threshold and not before, that the promoted form replaces the first tier
+ * with the same results, and that the promotion is reported to
+ * ExpressionMetrics
+ */
+class TieredExpressionTest {
+
+    static final String EXPR = "a*1 + (2*3)*b - (a+b)*(a+b) + A[c-0]";
+
+    static final long THRESHOLD = 5;
+
+    /**
+     * Records the promotions and PROMOTE phases reported to it
+     */
+    static class Promotions implements ExpressionMetrics.Listener {
+        final List<String> promoted = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> phases = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        public void phase(ExpressionMetrics.Phase phase, String expr, long nanos) {
+            if (phase == ExpressionMetrics.Phase.PROMOTE) {
+                phases.add(expr);
+            }
+        }
+
+        public void compiled(String expr, int nodes, int depth, int scalars, int arrays) {
+        }
+
+        public void promoted(String expr, long invocations, CompiledExpression.Backend backend) {
+            promoted.add(expr + " " + invocations + " " + backend);
+            done.countDown();
+        }
+    }
+
+    @AfterEach
+    void stopListening() {
+        ExpressionMetrics.setListener(null);
+    }
+
+    static TieredExpression tiered(long threshold) {
+        Expression expr = new Expression(EXPR);
+        expr.setTiering(threshold);
+        return expr.tiered();
+    }
+
+    static Bindings bind(TieredExpression tiered, int a) {
+        CompiledExpression ce = tiered.current();
+        Bindings b = tiered.newBindings();
+        b.setScalar(ce.scalarSlot("a"), a);
+        b.setScalar(ce.scalarSlot("b"), 7);
+        b.setScalar(ce.scalarSlot("c"), 2);
+        b.setArray(ce.arraySlot("A"), new int[] {1, 4, 9});
+        return b;
+    }
+
+    static void awaitPromotion(Promotions listener)
+    throws InterruptedException {
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS), "not promoted");
+    }
+
+    @Test
+    void promotesAtTheThreshold()
+    throws InterruptedException {
+        Promotions listener = new Promotions();
+        ExpressionMetrics.setListener(listener);
+        TieredExpression tiered = tiered(THRESHOLD);
+        assertEquals(THRESHOLD, tiered.threshold());
+        CompiledExpression baseline = tiered.current();
+        assertEquals(CompiledExpression.Backend.INTERPRETER, baseline.backend());
+        assertEquals(baseline.sourceNodeCount(), baseline.nodeCount());
+
+        Bindings b = bind(tiered, 3);
+        float expected = tiered.evaluate(b);
+        for (int i = 1; i < THRESHOLD - 1; i++) {
+            tiered.evaluateDouble(b);
+        }
+        // One short of the threshold, nothing is started
+        Thread.sleep(100);
+        assertFalse(tiered.promoted());
+        assertEquals(0, listener.promoted.size());
+        assertEquals(THRESHOLD - 1, tiered.invocations());
+
+        assertEquals(expected, tiered.evaluate(b));
+        awaitPromotion(listener);
+        assertTrue(tiered.promoted());
+        assertEquals(Collections.singletonList(EXPR + " " + THRESHOLD + " " + CompiledExpression.Backend.BYTECODE),
+            listener.promoted);
+        assertEquals(Collections.singletonList(EXPR), listener.phases);
+
+        // The promoted form is optimized bytecode over the same slots
+        CompiledExpression promoted = tiered.current();
+        assertNotSame(baseline, promoted);
+        assertEquals(CompiledExpression.Backend.BYTECODE, promoted.backend());
+        assertTrue(promoted.nodeCount() < baseline.nodeCount());
+        for (String name : new String[] {"a", "b", "c"}) {
+            assertEquals(baseline.scalarSlot(name), promoted.scalarSlot(name), name);
+        }
+
+        // Same results through the same bindings, and no more counting
+        for (int a = -3; a < 3; a++) {
+            Bindings values = bind(tiered, a);
+            assertEquals(baseline.evaluateDouble(values), tiered.evaluateDouble(values), "a=" + a);
+            assertEquals(baseline.evaluate(values), tiered.evaluate(values), "a=" + a);
+        }
+        assertEquals(expected, tiered.evaluate(b));
+        assertEquals(THRESHOLD, tiered.invocations());
+        assertSame(promoted, tiered.current());
+        assertEquals(1, listener.promoted.size());
+    }
+
+    @Test
+    void promotesOnceUnderConcurrentEvaluation()
+    throws InterruptedException {
+        Promotions listener = new Promotions();
+        ExpressionMetrics.setListener(listener);
+        TieredExpression tiered = tiered(100);
+        float expected = tiered.evaluate(bind(tiered, 4));
+        float[] last = new float[4];
+        Thread[] threads = new Thread[last.length];
+        for (int t = 0; t < threads.length; t++) {
+            int slot = t;
+            threads[t] = new Thread(() -> {
+                Bindings b = bind(tiered, 4);
+                for (int i = 0; i < 1000; i++) {
+                    last[slot] = tiered.evaluate(b);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        awaitPromotion(listener);
+        for (float result : last) {
+            assertEquals(expected, result);
+        }
+        // Evaluations under way when the form was swapped may still count
+        assertTrue(tiered.invocations() >= 100);
+        Thread.sleep(100);
+        assertEquals(1, listener.promoted.size());
+        assertEquals(1, listener.phases.size());
+    }
+
+    @Test
+    void expressionEvaluatesThroughTheTiers()
+    throws Exception {
+        Promotions listener = new Promotions();
+        ExpressionMetrics.setListener(listener);
+        Expression expr = new Expression(EXPR);
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner("a 3\nb 7\nc 2\nA 3 (0,1) (1,4) (2,9)\n"));
+        float expected = expr.evaluate();
+        expr.setTiering(THRESHOLD);
+        for (int i = 0; i < THRESHOLD; i++) {
+            assertEquals(expected, expr.evaluate());
+        }
+        awaitPromotion(listener);
+        assertTrue(expr.tiered().promoted());
+        assertEquals(expected, expr.evaluate());
+        assertEquals((double)expected, expr.evaluateDouble());
+    }
+}
@@ -0,0 +1,132 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that typed arithmetic computes integral subterms exactly past the
+ * 2^24 where float stops being exact, falls back to double where a subterm
+ * could overflow a long or divides, and that float arithmetic still rounds
+ * every operation to float as the original evaluator did
+ */
+class TypedArithmeticTest {
+
+    static final int BIG = (1 << 24) + 1;
+
+    static final int[] A = {10, 20, 30};
+
+    static CompiledExpression compile(String text, CompiledExpression.Arithmetic arithmetic,
+            CompiledExpression.Backend backend) {
+        Expression expr = new Expression(text);
+        expr.setArithmetic(arithmetic);
+        expr.setBackend(backend);
+        return expr.compile();
+    }
+
+    static Bindings bind(CompiledExpression ce, int a, int b, int c) {
+        Bindings bindings = ce.newBindings();
+        int[] values = {a, b, c};
+        String[] names = {"a", "b", "c"};
+        for (int i = 0; i < names.length; i++) {
+            int slot = ce.scalarSlot(names[i]);
+            if (slot >= 0) {
+                bindings.setScalar(slot, values[i]);
+            }
+        }
+        if (ce.arraySlot("A") >= 0) {
+            bindings.setArray(ce.arraySlot("A"), A);
+        }
+        return bindings;
+    }
+
+    @Test
+    void integralSubtermsAreExact() {
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            CompiledExpression ce = compile("a*b + 1", CompiledExpression.Arithmetic.TYPED, backend);
+            assertTrue(ce.integral(), backend.toString());
+            long exact = (long)BIG * BIG + 1;
+            assertEquals(exact, ce.evaluateLong(bind(ce, BIG, BIG, 0)), backend.toString());
+            assertEquals((double)exact, ce.evaluateDouble(bind(ce, BIG, BIG, 0)), backend.toString());
+
+            // Float cannot tell 2^24 + 1 from 2^24
+            ce = compile("a - b", CompiledExpression.Arithmetic.TYPED, backend);
+            assertEquals(1, ce.evaluateLong(bind(ce, BIG, BIG - 1, 0)), backend.toString());
+
+            // Nor pick the right element with a subscript that large
+            ce = compile("A[a - 16777216]", CompiledExpression.Arithmetic.TYPED, backend);
+            assertEquals(A[1], ce.evaluateLong(bind(ce, BIG, 0, 0)), backend.toString());
+
+            // An integral part of a real expression is exact too
+            ce = compile("(a*b - b*a + 1) / 2", CompiledExpression.Arithmetic.TYPED, backend);
+            assertFalse(ce.integral(), backend.toString());
+            assertEquals(0.5, ce.evaluateDouble(bind(ce, BIG, BIG + 2, 0)), backend.toString());
+        }
+    }
+
+    @Test
+    void possibleOverflowFallsBackToDouble() {
+        int max = Integer.MAX_VALUE;
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            // Two ints always multiply within a long
+            CompiledExpression ce = compile("a*b", CompiledExpression.Arithmetic.TYPED, backend);
+            assertTrue(ce.integral(), backend.toString());
+            assertEquals((long)Integer.MIN_VALUE * Integer.MIN_VALUE,
+                ce.evaluateLong(bind(ce, Integer.MIN_VALUE, Integer.MIN_VALUE, 0)), backend.toString());
+
+            // Three might not, so the product is real, though a*b within it
+            // is still exact
+            ce = compile("a*b*c", CompiledExpression.Arithmetic.TYPED, backend);
+            assertFalse(ce.integral(), backend.toString());
+            assertEquals((double)((long)max * max) * max, ce.evaluateDouble(bind(ce, max, max, max)),
+                backend.toString());
+            CompiledExpression real = ce;
+            assertThrows(IllegalStateException.class, () -> real.evaluateLong(bind(real, 1, 2, 3)));
+        }
+    }
+
+    @Test
+    void divisionAndRealConstantsAreReal() {
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            String[] texts = {"a/b", "7/2", "a + 0.5*b"};
+            double[] expected = {3.5, 3.5, 8};
+            for (int i = 0; i < texts.length; i++) {
+                CompiledExpression ce = compile(texts[i], CompiledExpression.Arithmetic.TYPED, backend);
+                assertFalse(ce.integral(), texts[i]);
+                assertThrows(IllegalStateException.class, () -> ce.evaluateLong(bind(ce, 7, 2, 0)), texts[i]);
+                assertEquals(expected[i], ce.evaluateDouble(bind(ce, 7, 2, 0)), texts[i]);
+            }
+            // A real subscript is floored
+            CompiledExpression ce = compile("A[a/b]", CompiledExpression.Arithmetic.TYPED, backend);
+            assertEquals(A[1], ce.evaluateDouble(bind(ce, 5, 3, 0)), backend.toString());
+        }
+    }
+
+    @Test
+    void floatArithmeticKeepsTheOriginalSemantics() {
+        for (CompiledExpression.Backend backend : CompiledExpression.Backend.values()) {
+            CompiledExpression ce = compile("a*b + 1", CompiledExpression.Arithmetic.FLOAT, backend);
+            assertFalse(ce.integral(), backend.toString());
+            assertEquals((float)BIG * (float)BIG + 1f, ce.evaluate(bind(ce, BIG, BIG, 0)), backend.toString());
+            CompiledExpression floats = ce;
+            assertThrows(IllegalStateException.class, () -> floats.evaluateLong(bind(floats, 1, 2, 0)));
+
+            ce = compile("a - b", CompiledExpression.Arithmetic.FLOAT, backend);
+            assertEquals(0f, ce.evaluate(bind(ce, BIG, BIG - 1, 0)), backend.toString());
+
+            ce = compile("A[a - 16777216]", CompiledExpression.Arithmetic.FLOAT, backend);
+            assertEquals(A[0], ce.evaluate(bind(ce, BIG, 0, 0)), backend.toString());
+
+            // Every step rounds to float, and evaluateDouble only widens
+            ce = compile("a/c + b/c", CompiledExpression.Arithmetic.FLOAT, backend);
+            float expected = 1f / 3f + 2f / 3f;
+            assertEquals(expected, ce.evaluate(bind(ce, 1, 2, 3)), backend.toString());
+            assertEquals((double)expected, ce.evaluateDouble(bind(ce, 1, 2, 3)), backend.toString());
+            ce = compile("a/c", CompiledExpression.Arithmetic.FLOAT, backend);
+            assertEquals((double)(1f / 3f), ce.evaluateDouble(bind(ce, 1, 2, 3)), backend.toString());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package apps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that loading values from a file gives the same bindings as loading
+ * them through a Scanner, and that both reject malformed array lines with the
+ * line number
+ */
+class ValueLoaderTest {
+
+    static final String EXPR = "a + b*A[c] - B[2] + C[0] - d";
+
+    static final String VALUES = "a 3\n"
+        + "unused 1 (0,1) (2,3)\n"
+        + "b -7\n"
+        + "\n"
+        + "A 5 (0,10) (3,-4) (4,2147483647)\n"
+        + "  c   1  \r\n"
+        + "B 1000 (2,9) (999,1)\n"
+        + "C 3\t(0,-2147483648)\n"
+        + "other 12\n";
+
+    @TempDir
+    Path dir;
+
+    Expression fromFile(String values)
+    throws IOException {
+        Path file = dir.resolve("values.txt");
+        Files.write(file, values.getBytes(StandardCharsets.UTF_8));
+        Expression expr = new Expression(EXPR);
+        expr.buildSymbols();
+        expr.loadSymbolValues(file);
+        return expr;
+    }
+
+    static Expression fromScanner(String values)
+    throws IOException {
+        Expression expr = new Expression(EXPR);
+        expr.buildSymbols();
+        expr.loadSymbolValues(new Scanner(values));
+        return expr;
+    }
+
+    @Test
+    void fileMatchesScanner()
+    throws IOException {
+        Expression file = fromFile(VALUES);
+        Expression scanner = fromScanner(VALUES);
+        assertEquals(scanner.symbols.scalarCount(), file.symbols.scalarCount());
+        for (int i = 0; i < scanner.symbols.scalarCount(); i++) {
+            assertEquals(scanner.values.scalar(i), file.values.scalar(i), scanner.symbols.scalarName(i));
+            assertEquals(scanner.scalars.get(i).value, file.scalars.get(i).value, scanner.symbols.scalarName(i));
+        }
+        // d has no line, so it stays 0
+        assertEquals(0, file.values.scalar(file.symbols.scalarSlot("d")));
+        assertEquals(scanner.symbols.arrayCount(), file.symbols.arrayCount());
+        for (int i = 0; i < scanner.symbols.arrayCount(); i++) {
+            ArrayStorage expected = scanner.values.array(i);
+            ArrayStorage actual = file.values.array(i);
+            String name = scanner.symbols.arrayName(i);
+            assertEquals(expected.getClass(), actual.getClass(), name);
+            assertEquals(expected.length(), actual.length(), name);
+            for (int k = 0; k < expected.length(); k++) {
+                assertEquals(expected.get(k), actual.get(k), name + "[" + k + "]");
+            }
+        }
+        assertEquals(Integer.MAX_VALUE, file.values.element(file.symbols.arraySlot("A"), 4));
+        assertEquals(Integer.MIN_VALUE, file.values.element(file.symbols.arraySlot("C"), 0));
+        assertEquals(scanner.evaluateDouble(), file.evaluateDouble());
+    }
+
+    void assertRejected(String values, String expected)
+    throws IOException {
+        IOException fromFile = assertThrows(IOException.class, () -> fromFile(values));
+        assertTrue(fromFile.getMessage().contains(expected), fromFile.getMessage());
+        IOException fromScanner = assertThrows(IOException.class, () -> fromScanner(values));
+        assertTrue(fromScanner.getMessage().contains(expected), fromScanner.getMessage());
+    }
+
+    @Test
+    void rejectsArrayWithoutPairs()
+    throws IOException {
+        assertRejected("a 3\nb 4\nA 5\n", "at line 3");
+        // Also on the last line, without a newline
+        assertRejected("a 3\n\nA 5", "at line 3");
+    }
+
+    @Test
+    void rejectsIndexWithoutValue()
+    throws IOException {
+        assertRejected("a 3\nA 5 (0,1) (3)\nb 4\n", "index 3 has no value at line 2");
+        assertRejected("A 5 (0,1)\nB 5 (4)", "index 4 has no value at line 2");
+    }
+
+    @Test
+    void skipsMalformedLinesForOtherSymbols()
+    throws IOException {
+        // Lines for symbols not in the expression are not looked at
+        String values = "unused 5\nother 5 (3)\n" + VALUES;
+        assertEquals(fromScanner(VALUES).evaluateDouble(), fromFile(values).evaluateDouble());
+        assertEquals(fromScanner(VALUES).evaluateDouble(), fromScanner(values).evaluateDouble());
+    }
+}